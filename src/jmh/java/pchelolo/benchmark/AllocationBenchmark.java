@@ -0,0 +1,126 @@
+package pchelolo.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pchelolo.downloader.DownloadManager;
+import pchelolo.downloader.DownloadRequest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the bytes allocated by the download manager per megabyte downloaded.
+ * <p/>
+ * The allocations are summed over the threads of the process except the threads of the server,
+ * the allocations of the threads terminated during a download are not counted.
+ * Requires a HotSpot runtime.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+
+    private static final double MEGABYTE = 1 << 20;
+
+    @Param({"default", "nio"})
+    public String manager;
+
+    @Param("1048576")
+    public long size;
+
+    private BenchmarkServer server;
+    private DownloadManager downloadManager;
+    private DownloadRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer(16);
+        downloadManager = Managers.create(manager);
+        request = new DownloadRequest.Builder(server.url(size, 0)).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        downloadManager.close();
+        server.close();
+    }
+
+    /**
+     * The allocations of the iteration, reported next to the time
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Allocations {
+
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Boolean> isServerThread = new HashMap<>();
+        private long allocated;
+        private long downloaded;
+
+        public double bytesPerMegabyte;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            allocated = 0;
+            downloaded = 0;
+            bytesPerMegabyte = 0;
+        }
+
+        /**
+         * @return the bytes allocated by the client threads so far
+         */
+        long allocatedBytes() {
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+            long total = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] > 0 && !isServerThread(ids[i])) {
+                    total += bytes[i];
+                }
+            }
+            return total;
+        }
+
+        private boolean isServerThread(long id) {
+            Boolean isServer = isServerThread.get(id);
+            if (isServer == null) {
+                ThreadInfo info = threads.getThreadInfo(id);
+                isServer = info != null && info.getThreadName().startsWith(BenchmarkServer.THREAD_NAME);
+                isServerThread.put(id, isServer);
+            }
+            return isServer;
+        }
+
+        void record(long bytes, long size) {
+            allocated += bytes;
+            downloaded += size;
+            bytesPerMegabyte = allocated * MEGABYTE / downloaded;
+        }
+    }
+
+    @Benchmark
+    public void download(Allocations allocations) throws InterruptedException {
+        long before = allocations.allocatedBytes();
+        Managers.await(downloadManager.download(request));
+        allocations.record(allocations.allocatedBytes() - before, size);
+    }
+}
@@ -0,0 +1,118 @@
+package pchelolo.benchmark;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An in-process HTTP server serving generated content to the benchmarks.
+ * <p/>
+ * The content of any length is served from a single preallocated chunk, so the server itself
+ * allocates little per request. The length and the rate of the content are set by the query:
+ * {@code /?size=1048576&rate=65536} serves a megabyte at 64 KB per second, a zero rate is not throttled.
+ * Ranged requests are supported, so the paused downloads are resumed.
+ */
+class BenchmarkServer implements AutoCloseable {
+
+    static final String THREAD_NAME = "benchmark-server";
+    private static final int CHUNK_SIZE = 65536;
+    private static final byte[] CHUNK = new byte[CHUNK_SIZE];
+
+    static {
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            CHUNK[i] = (byte) i;
+        }
+    }
+
+    private final Server server;
+    private final int port;
+
+    /**
+     * Starts the server on an ephemeral port
+     *
+     * @param maxThreads the maximum number of the requests served at once
+     */
+    BenchmarkServer(int maxThreads) throws Exception {
+        server = new Server(0);
+        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads);
+        threadPool.setName(THREAD_NAME);
+        server.setThreadPool(threadPool);
+        server.setHandler(new ContentHandler());
+        server.start();
+        port = server.getConnectors()[0].getLocalPort();
+    }
+
+    /**
+     * @param size the length of the content in bytes
+     * @param rate the bytes served per second, 0 to serve as fast as possible
+     * @return the URL of the content
+     */
+    String url(long size, long rate) {
+        return "http://localhost:" + port + "/?size=" + size + "&rate=" + rate;
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop();
+    }
+
+    private static class ContentHandler extends AbstractHandler {
+
+        @Override
+        public void handle(String target, Request request, HttpServletRequest httpRequest,
+                           HttpServletResponse httpResponse) throws IOException {
+            long size = Long.parseLong(httpRequest.getParameter("size"));
+            long rate = Long.parseLong(httpRequest.getParameter("rate"));
+            long start = 0;
+            long end = size;
+            String rangeHeader = httpRequest.getHeader("Range");
+            if (rangeHeader != null) {
+                String[] range = rangeHeader.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(range[0]);
+                if (!range[1].isEmpty()) {
+                    end = Long.parseLong(range[1]) + 1;
+                }
+                httpResponse.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                httpResponse.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + size);
+            } else {
+                httpResponse.setStatus(HttpServletResponse.SC_OK);
+            }
+            httpResponse.setHeader("Accept-Ranges", "bytes");
+            httpResponse.setContentType("application/octet-stream");
+            httpResponse.setHeader("Content-Length", Long.toString(end - start));
+
+            long begin = System.nanoTime();
+            long served = 0;
+            try (OutputStream out = httpResponse.getOutputStream()) {
+                while (start < end) {
+                    int length = (int) Math.min(end - start, CHUNK_SIZE);
+                    out.write(CHUNK, 0, length);
+                    start += length;
+                    served += length;
+                    if (rate > 0) {
+                        throttle(begin, served, rate);
+                    }
+                }
+            }
+            request.setHandled(true);
+        }
+
+        private static void throttle(long begin, long served, long rate) throws IOException {
+            long due = begin + served * 1000000000L / rate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while throttling", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package pchelolo.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import pchelolo.downloader.DownloadManager;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to complete the given number of downloads started at once.
+ * <p/>
+ * The requests differ by the query, so they are not shared by the download manager.
+ * Compare the virtual thread manager with {@code -p manager=virtual} on Java 21 or later.
+ * Every operation opens up to the given number of connections, the large numbers might need
+ * a wider ephemeral port range and a higher limit of open files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrencyBenchmark {
+
+    @Param({"default", "nio"})
+    public String manager;
+
+    @Param({"1", "100", "1000", "10000"})
+    public int downloads;
+
+    @Param("1024")
+    public long size;
+
+    @Param("0")
+    public long rate;
+
+    private BenchmarkServer server;
+    private DownloadManager downloadManager;
+    private DownloadRequest[] requests;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer(256);
+        downloadManager = Managers.create(manager);
+        requests = new DownloadRequest[downloads];
+        for (int i = 0; i < downloads; i++) {
+            requests[i] = new DownloadRequest.Builder(server.url(size, rate) + "&download=" + i).build();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        downloadManager.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void downloadAll(Blackhole blackhole) throws InterruptedException {
+        DownloadResponse[] responses = new DownloadResponse[downloads];
+        for (int i = 0; i < downloads; i++) {
+            responses[i] = downloadManager.download(requests[i]);
+        }
+        for (DownloadResponse response : responses) {
+            blackhole.consume(Managers.await(response));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package pchelolo.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import pchelolo.downloader.DownloadManager;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to complete many mostly idle downloads started at once and the platform threads they take.
+ * <p/>
+ * The server sends every body in small pieces with long pauses between them, so a download takes
+ * about two seconds however fast the manager is. Compare the virtual thread manager with
+ * {@code -p manager=virtual} on Java 21 or later. The large numbers of downloads need a wider
+ * ephemeral port range and a higher limit of open files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdleDownloadBenchmark {
+
+    @Param({"default", "nio"})
+    public String manager;
+
+    @Param({"1000", "10000"})
+    public int downloads;
+
+    private TricklingServer server;
+    private DownloadManager downloadManager;
+    private DownloadRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new TricklingServer();
+        downloadManager = Managers.create(manager);
+        request = new DownloadRequest.Builder(server.url())
+                .setConnectionWaitTime(0)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        downloadManager.close();
+        server.close();
+    }
+
+    /**
+     * The peak number of the platform threads of the process during the iteration, reported next to the time
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PlatformThreads {
+
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        public long peakPlatformThreads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            threads.resetPeakThreadCount();
+            peakPlatformThreads = 0;
+        }
+
+        void record() {
+            peakPlatformThreads = Math.max(peakPlatformThreads, threads.getPeakThreadCount());
+        }
+    }
+
+    @Benchmark
+    public void downloadAll(PlatformThreads platformThreads, Blackhole blackhole) throws InterruptedException {
+        DownloadResponse[] responses = new DownloadResponse[downloads];
+        for (int i = 0; i < downloads; i++) {
+            responses[i] = downloadManager.download(request);
+        }
+        for (DownloadResponse response : responses) {
+            blackhole.consume(Managers.await(response));
+        }
+        platformThreads.record();
+    }
+}
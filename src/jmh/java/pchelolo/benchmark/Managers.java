@@ -0,0 +1,45 @@
+package pchelolo.benchmark;
+
+import pchelolo.downloader.DownloadManager;
+import pchelolo.downloader.DownloadResponse;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The download managers compared by the benchmarks
+ */
+final class Managers {
+
+    private Managers() {
+    }
+
+    /**
+     * @param name {@code default} for a thread per download, {@code virtual} for a virtual thread per download
+     *             (Java 21 or later) or {@code nio} for the downloads served by a non-blocking thread per processor
+     */
+    static DownloadManager create(String name) {
+        switch (name) {
+            case "default":
+                return DownloadManager.Factory.createDefaultDownloadManager();
+            case "virtual":
+                return DownloadManager.Factory.createVirtualThreadDownloadManager();
+            case "nio":
+                return DownloadManager.Factory.createNioDownloadManager();
+            default:
+                throw new IllegalArgumentException("Unknown download manager " + name);
+        }
+    }
+
+    /**
+     * Waits for the download without copying the result
+     *
+     * @throws IllegalStateException if the download is not finished
+     */
+    static ByteBuffer await(DownloadResponse response) throws InterruptedException {
+        ByteBuffer result = response.getResultBuffer();
+        if (response.getStatus() != DownloadResponse.Status.FINISHED) {
+            throw new IllegalStateException("The download is " + response.getStatus());
+        }
+        return result;
+    }
+}
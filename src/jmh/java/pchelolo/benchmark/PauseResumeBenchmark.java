@@ -0,0 +1,84 @@
+package pchelolo.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pchelolo.downloader.DownloadManager;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time of a throttled download paused and resumed the given number of times,
+ * evenly spread over the content. The overhead of a pause is the difference with the download
+ * which is not paused divided by the number of pauses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PauseResumeBenchmark {
+
+    @Param({"default", "nio"})
+    public String manager;
+
+    @Param({"0", "1", "10"})
+    public int pauses;
+
+    @Param("1048576")
+    public long size;
+
+    @Param("8388608")
+    public long rate;
+
+    private BenchmarkServer server;
+    private DownloadManager downloadManager;
+    private DownloadRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer(16);
+        downloadManager = Managers.create(manager);
+        request = new DownloadRequest.Builder(server.url(size, rate)).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        downloadManager.close();
+        server.close();
+    }
+
+    @Benchmark
+    public ByteBuffer pauseResume() throws InterruptedException {
+        DownloadResponse response = downloadManager.download(request);
+        for (int i = 1; i <= pauses; i++) {
+            long threshold = size * i / (pauses + 1);
+            while (response.getBytesDownloaded() < threshold
+                    && response.getStatus() != DownloadResponse.Status.FINISHED) {
+                Thread.yield();
+            }
+            try {
+                response.pause();
+                response.resume();
+            } catch (IllegalStateException e) {
+                // Finished before the pause
+                break;
+            }
+        }
+        return Managers.await(response);
+    }
+}
@@ -0,0 +1,57 @@
+package pchelolo.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pchelolo.downloader.DownloadManager;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of reading the result of a finished download:
+ * the copy made by {@link DownloadResponse#getResult()} against the view of {@link DownloadResponse#getResultBuffer()}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultBenchmark {
+
+    @Param({"1024", "1048576", "67108864"})
+    public long size;
+
+    private DownloadResponse response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        try (BenchmarkServer server = new BenchmarkServer(16);
+             DownloadManager downloadManager = Managers.create("default")) {
+            response = downloadManager.download(new DownloadRequest.Builder(server.url(size, 0)).build());
+            Managers.await(response);
+        }
+    }
+
+    @Benchmark
+    public byte[] getResult() throws InterruptedException {
+        return response.getResult();
+    }
+
+    @Benchmark
+    public ByteBuffer getResultBuffer() throws InterruptedException {
+        return response.getResultBuffer();
+    }
+}
@@ -0,0 +1,65 @@
+package pchelolo.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pchelolo.downloader.DownloadManager;
+import pchelolo.downloader.DownloadRequest;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time of a single download kept in memory, the throughput is the size divided by the time.
+ * <p/>
+ * The gigabyte body is not measured by default, run it with {@code -p size=1073741824} and a heap of a few gigabytes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThroughputBenchmark {
+
+    @Param({"default", "nio"})
+    public String manager;
+
+    @Param({"1024", "1048576", "67108864"})
+    public long size;
+
+    @Param("0")
+    public long rate;
+
+    private BenchmarkServer server;
+    private DownloadManager downloadManager;
+    private DownloadRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer(16);
+        downloadManager = Managers.create(manager);
+        request = new DownloadRequest.Builder(server.url(size, rate)).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        downloadManager.close();
+        server.close();
+    }
+
+    @Benchmark
+    public ByteBuffer download() throws InterruptedException {
+        return Managers.await(downloadManager.download(request));
+    }
+}
@@ -0,0 +1,154 @@
+package pchelolo.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process HTTP server trickling the content of every response in small pieces with long pauses between them.
+ * <p/>
+ * Unlike the {@link BenchmarkServer} the connections are served by a single selector thread,
+ * so the number of the mostly idle connections open at once is not limited by the threads of the server.
+ */
+class TricklingServer implements Runnable, AutoCloseable {
+
+    static final int BODY_SIZE = 100;
+    private static final int PIECE_SIZE = 10;
+    private static final int PIECE_INTERVAL = 200;
+    private static final byte[] RESPONSE;
+
+    static {
+        String head = "HTTP/1.1 200 OK\r\nContent-Length: " + BODY_SIZE + "\r\nConnection: close\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        RESPONSE = new byte[headBytes.length + BODY_SIZE];
+        System.arraycopy(headBytes, 0, RESPONSE, 0, headBytes.length);
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread = new Thread(this, BenchmarkServer.THREAD_NAME);
+    private final List<Connection> sending = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the server on an ephemeral port
+     */
+    TricklingServer() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 65535);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the URL of the content
+     */
+    String url() throws IOException {
+        return "http://localhost:" + ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void run() {
+        long nextPiece = System.nanoTime();
+        try {
+            while (!closed) {
+                selector.select(PIECE_INTERVAL);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isAcceptable()) {
+                        SocketChannel channel;
+                        while ((channel = serverChannel.accept()) != null) {
+                            channel.configureBlocking(false);
+                            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                        }
+                    } else if (key.isReadable()) {
+                        Connection connection = (Connection) key.attachment();
+                        if (connection.readRequest()) {
+                            key.interestOps(0);
+                            sending.add(connection);
+                        }
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - nextPiece >= 0) {
+                    nextPiece = now + TimeUnit.MILLISECONDS.toNanos(PIECE_INTERVAL);
+                    Iterator<Connection> connections = sending.iterator();
+                    while (connections.hasNext()) {
+                        if (connections.next().writePiece()) {
+                            connections.remove();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        serverChannel.close();
+    }
+
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(1024);
+        private final ByteBuffer out = ByteBuffer.wrap(RESPONSE);
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            out.limit(RESPONSE.length - BODY_SIZE);
+        }
+
+        /**
+         * @return true if the whole request head was read
+         */
+        boolean readRequest() throws IOException {
+            if (channel.read(in) == -1) {
+                channel.close();
+                return false;
+            }
+            String request = new String(in.array(), 0, in.position(), StandardCharsets.ISO_8859_1);
+            return request.contains("\r\n\r\n");
+        }
+
+        /**
+         * @return true if the whole response was sent
+         */
+        boolean writePiece() throws IOException {
+            out.limit(Math.min(out.capacity(), out.limit() + PIECE_SIZE));
+            try {
+                channel.write(out);
+            } catch (IOException e) {
+                channel.close();
+                return true;
+            }
+            if (out.limit() == out.capacity() && !out.hasRemaining()) {
+                channel.close();
+                return true;
+            }
+            return false;
+        }
+    }
+}
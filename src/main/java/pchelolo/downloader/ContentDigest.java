@@ -0,0 +1,94 @@
+package pchelolo.downloader;
+
+/**
+ * The immutable class representing the expected digest of the downloaded content.
+ * <p/>
+ * The digest is computed while the content is being downloaded, the bytes are not read again
+ * unless they arrive out of order. A download whose content does not match the digest
+ * is {@link DownloadResponse.Status#FAILED}.
+ *
+ * Example of the ContentDigest construction: </br>
+ * <pre>
+ * {@code
+ *  DownloadRequest request = new DownloadRequest.Builder("http://test.test.com/file")
+ *          .setExpectedDigest(new ContentDigest(ContentDigest.Algorithm.SHA_256, "9f86d081..."))
+ *          .build();
+ * }
+ * </pre>
+ */
+public class ContentDigest {
+
+    /**
+     * Represents an algorithm computing the digest
+     */
+    public static enum Algorithm {
+
+        MD5("MD5"),
+
+        SHA_1("SHA-1"),
+
+        SHA_256("SHA-256"),
+
+        /**
+         * The 32-bit checksum with the Castagnoli polynomial, the value is big-endian.
+         * Requires Java 9 or later
+         */
+        CRC32C("CRC32C");
+
+        private final String name;
+
+        Algorithm(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the standard name of the algorithm
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final String expectedValue;
+
+    /**
+     * @param algorithm the algorithm computing the digest
+     * @param expectedValue the expected digest in hexadecimal, case insensitive
+     * @throws IllegalArgumentException if the value is not hexadecimal
+     */
+    public ContentDigest(Algorithm algorithm, String expectedValue) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("The algorithm is required");
+        }
+        if (expectedValue == null || expectedValue.isEmpty() || expectedValue.length() % 2 != 0) {
+            throw new IllegalArgumentException("The digest should be a hexadecimal number of whole bytes");
+        }
+        for (int i = 0; i < expectedValue.length(); i++) {
+            if (Character.digit(expectedValue.charAt(i), 16) == -1) {
+                throw new IllegalArgumentException("The digest should be a hexadecimal number of whole bytes");
+            }
+        }
+        this.algorithm = algorithm;
+        this.expectedValue = expectedValue.toLowerCase();
+    }
+
+    /**
+     * @return the algorithm computing the digest
+     */
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the expected digest in lower case hexadecimal
+     */
+    public String getExpectedValue() {
+        return expectedValue;
+    }
+
+    @Override
+    public String toString() {
+        return algorithm.getName() + ":" + expectedValue;
+    }
+}
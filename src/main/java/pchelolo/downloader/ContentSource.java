@@ -0,0 +1,44 @@
+package pchelolo.downloader;
+
+import java.io.Closeable;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The content opened by a {@link ProtocolProvider}.
+ * <p/>
+ * The content is read from a blocking channel. If the channel is a {@link java.nio.channels.FileChannel},
+ * it is copied to the destination file by the operating system without passing through the memory of the JVM,
+ * or mapped into memory as a whole if the download is kept in memory.
+ */
+public interface ContentSource extends Closeable {
+
+    /**
+     * @return the blocking channel reading the content from the {@link #getPosition() position}
+     */
+    ReadableByteChannel getChannel();
+
+    /**
+     * @return the position in the content the channel starts from: the requested one if the download is continued,
+     *         0 if the content is sent from the beginning
+     */
+    long getPosition();
+
+    /**
+     * @return the length of the whole content in bytes or -1 if it is not known
+     */
+    long getContentLength();
+
+    /**
+     * Returns a validator identifying the version of the content, so that a download
+     * could be continued later only if the content has not changed
+     *
+     * @return the validator or {@code null} if the content could not be told apart from its other versions
+     */
+    String getValidator();
+
+    /**
+     * @return true if the content could be opened from a position, so that a paused download
+     *         releases its thread and is continued later
+     */
+    boolean supportsRanges();
+}
@@ -0,0 +1,75 @@
+package pchelolo.downloader;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represents a batch of downloads started by {@link DownloadManager#downloadAll}.
+ * <p/>
+ * The requests are pulled lazily: a new request is taken only once one of the running downloads of the batch
+ * is over, so no more than the given number of downloads of the batch are in flight at once.
+ * The downloads which are over are handed out in the order they have finished.
+ */
+public interface DownloadBatch {
+
+    /**
+     * Returns the number of downloads started so far
+     */
+    int getSubmitted();
+
+    /**
+     * Returns the number of downloads which are over, whether finished, failed or cancelled
+     */
+    int getCompleted();
+
+    /**
+     * Returns the total number of bytes downloaded by the downloads of the batch so far.
+     * <p/>
+     * Cheap to call, so it could be polled to track the progress
+     */
+    long getBytesDownloaded();
+
+    /**
+     * Returns the requests which were not started as their protocol is not supported
+     */
+    List<DownloadRequest> getRejected();
+
+    /**
+     * Returns true if all the requests were taken, or the batch was cancelled,
+     * and all the started downloads are over and taken by {@link #takeCompleted()}
+     */
+    boolean isDone();
+
+    /**
+     * Waits for the next download to be over.
+     *
+     * @return the download which is over, or {@code null} if the batch is done
+     * @throws InterruptedException
+     */
+    DownloadResponse takeCompleted() throws InterruptedException;
+
+    /**
+     * Waits for the next download to be over no longer than the specified timeout.
+     *
+     * @return the download which is over, or {@code null} if the timeout has passed or the batch is done
+     * @throws InterruptedException
+     */
+    DownloadResponse pollCompleted(long timeout, TimeUnit timeUnit) throws InterruptedException;
+
+    /**
+     * Pauses the running downloads of the batch and stops taking new requests
+     */
+    void pause();
+
+    /**
+     * Resumes the paused downloads of the batch and continues taking new requests
+     */
+    void resume();
+
+    /**
+     * Cancels the running downloads of the batch, the remaining requests are not taken.
+     * <p/>
+     * The cancelled downloads are still handed out by {@link #takeCompleted()}
+     */
+    void cancel();
+}
@@ -1,6 +1,14 @@
 package pchelolo.downloader;
 
 import pchelolo.downloader.impl.DefaultDownloadManager;
+import pchelolo.downloader.impl.Http2DownloadManager;
+import pchelolo.downloader.impl.NioDownloadManager;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Represents an executor used to run downloads.
@@ -11,11 +19,92 @@ public interface DownloadManager extends AutoCloseable {
     /**
      * Start a download process for the specified request.
      * @param request a request for the download
-     * @throws UnsupportedOperationException if the protocol is not supported
+     * @throws UnsupportedOperationException if the protocol or the digest algorithm is not supported,
+     *                                       see {@link ProtocolProvider} to support more protocols
      * @return an instance of the {@link DownloadResponse} which represents the ongoing download process
      */
     DownloadResponse download(DownloadRequest request);
 
+    /**
+     * Starts a batch of downloads, keeping no more than the specified number of them in flight.
+     * <p/>
+     * The requests are taken from the iterator lazily, as the running downloads of the batch are over,
+     * so it could be backed by a {@link java.util.stream.Stream#iterator() stream} of any length.
+     * The iterator is not used concurrently.
+     * @param requests the requests for the downloads
+     * @param maxInFlight the maximum number of the downloads of the batch running at once
+     * @throws IllegalArgumentException if maxInFlight is less than 1
+     * @return an instance of the {@link DownloadBatch} which represents the ongoing downloads
+     */
+    DownloadBatch downloadAll(Iterator<? extends DownloadRequest> requests, int maxInFlight);
+
+    /**
+     * Starts a batch of downloads, keeping no more than the specified number of them in flight
+     * @see #downloadAll(Iterator, int)
+     */
+    DownloadBatch downloadAll(Iterable<? extends DownloadRequest> requests, int maxInFlight);
+
+    /**
+     * Limits the total rate of all the downloads of the manager.
+     * <p/>
+     * The limit applies to the running downloads as well, without reconnecting.
+     * A download is also subject to its own and its host limits, the strictest limit applies
+     *
+     * @param maxBytesPerSecond maximum bytes per second or 0 for no limit
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    void setMaxBytesPerSecond(long maxBytesPerSecond);
+
+    /**
+     * Limits the total rate of the downloads of the manager from the host.
+     * <p/>
+     * The limit applies to the running downloads as well, without reconnecting
+     *
+     * @param host the host name, case insensitive
+     * @param maxBytesPerSecond maximum bytes per second or 0 for no limit
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    void setMaxBytesPerSecondPerHost(String host, long maxBytesPerSecond);
+
+    /**
+     * Sets the TLS context of the https downloads, e.g. to trust a private certificate authority.
+     * The default context of the JDK is used otherwise.
+     * <p/>
+     * The context is shared by all the https downloads of the manager, the TLS sessions it caches
+     * are resumed by the following connections to the same server, including the reconnects
+     * continuing paused or failed downloads. The caching is configured by its
+     * {@link SSLContext#getClientSessionContext() client session context}.
+     * Applies to the downloads started afterwards
+     *
+     * @param sslContext the initialized TLS context
+     * @throws UnsupportedOperationException if the manager does not support https
+     */
+    void setSSLContext(SSLContext sslContext);
+
+    /**
+     * Sets the hook redirecting the downloads to the mirrors of their content,
+     * e.g. a {@link LocalMirror} serving the content already present on the local disk.
+     * <p/>
+     * Applies to the downloads started or continued afterwards, the content not mirrored
+     * is downloaded from its origin
+     *
+     * @param mirrorResolver the resolver or {@code null} to not use mirrors
+     * @throws UnsupportedOperationException if the manager does not support the protocol providers
+     */
+    void setMirrorResolver(MirrorResolver mirrorResolver);
+
+    /**
+     * Restores and continues the downloads recorded in the journal of the manager
+     * by a previous instance, which was closed or terminated before they were over.
+     * <p/>
+     * Each download is continued from the bytes committed to its destination file
+     * if the content has not changed in the meantime, otherwise it starts over.
+     *
+     * @return the restored downloads, an empty list if the manager does not keep a journal
+     * @throws IOException if failed to read the journal
+     */
+    List<DownloadResponse> recover() throws IOException;
+
     public static class Factory {
         /**
          * Creates a default download manager
@@ -23,5 +112,114 @@ public interface DownloadManager extends AutoCloseable {
         public static DownloadManager createDefaultDownloadManager() {
             return new DefaultDownloadManager();
         }
+
+        /**
+         * Creates a download manager recording the progress of the downloads to a file destination
+         * in a journal, so that they could be {@link DownloadManager#recover() recovered} after a restart
+         *
+         * @param journalDirectory the directory keeping the journal, created if it does not exist
+         * @throws IOException if failed to create the journal directory
+         */
+        public static DownloadManager createJournaledDownloadManager(Path journalDirectory) throws IOException {
+            return new DefaultDownloadManager.Builder().setJournalDirectory(journalDirectory).build();
+        }
+
+        /**
+         * Creates a download manager caching the content of the completed downloads on disk.
+         * <p/>
+         * The cached content is served again if the server confirms it has not changed.
+         * Only the downloads kept in memory and not split into segments are cached,
+         * the cached content is mapped into memory rather than copied.
+         *
+         * @param cacheDirectory the directory keeping the cache, created if it does not exist
+         * @param maxCacheSize the maximum total size of the cached content in bytes,
+         *                     the least recently used content is evicted first
+         * @throws IOException if failed to create the cache directory
+         */
+        public static DownloadManager createCachingDownloadManager(Path cacheDirectory, long maxCacheSize)
+                throws IOException {
+            return new DefaultDownloadManager.Builder().setCache(cacheDirectory, maxCacheSize).build();
+        }
+
+        /**
+         * Creates a download manager sharing a download between the identical requests made while it is
+         * in flight: the requests with the same URL and options for the content kept in memory.
+         * <p/>
+         * Each caller gets its own response. The shared download is paused once all its callers have paused it
+         * and cancelled once all of them have cancelled it
+         */
+        public static DownloadManager createCoalescingDownloadManager() {
+            return createDefaultDownloadManager(new DefaultDownloadManager.Builder().setCoalescing(true));
+        }
+
+        /**
+         * Creates a download manager reporting the measurements of the downloads,
+         * such as the throughput, the latencies and the failures, to the metrics.
+         * <p/>
+         * A {@link pchelolo.downloader.impl.StandardDownloadMetrics} could be registered
+         * with the platform MBean server to be exported over JMX
+         *
+         * @param metrics receives the measurements of the downloads
+         */
+        public static DownloadManager createInstrumentedDownloadManager(DownloadMetrics metrics) {
+            return createDefaultDownloadManager(new DefaultDownloadManager.Builder().setMetrics(metrics));
+        }
+
+        /**
+         * Creates a download manager limiting the number of downloads running at once.
+         * The downloads exceeding the limits are queued according to {@link DownloadRequest#getPriority()}
+         *
+         * @param maxConcurrentDownloads the maximum number of downloads running at once
+         * @param maxDownloadsPerHost the maximum number of downloads from the same host running at once
+         */
+        public static DownloadManager createBoundedDownloadManager(int maxConcurrentDownloads, int maxDownloadsPerHost) {
+            return createDefaultDownloadManager(new DefaultDownloadManager.Builder()
+                    .setLimits(maxConcurrentDownloads, maxDownloadsPerHost));
+        }
+
+        /**
+         * Creates a download manager running each download on a separate virtual thread
+         *
+         * @throws UnsupportedOperationException if the runtime does not support virtual threads
+         */
+        public static DownloadManager createVirtualThreadDownloadManager() {
+            return new DefaultDownloadManager(DefaultDownloadManager.newVirtualThreadExecutor());
+        }
+
+        /**
+         * Builds a download manager which keeps neither a journal nor a cache, so there is nothing to create on disk
+         */
+        private static DownloadManager createDefaultDownloadManager(DefaultDownloadManager.Builder builder) {
+            try {
+                return builder.build();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to create a download manager", e);
+            }
+        }
+
+        /**
+         * Creates a download manager serving all the downloads with non-blocking connections
+         * using a thread per available processor
+         */
+        public static DownloadManager createNioDownloadManager() {
+            return createNioDownloadManager(Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * Creates a download manager serving all the downloads with non-blocking connections
+         *
+         * @param selectorThreads the number of threads serving the connections
+         */
+        public static DownloadManager createNioDownloadManager(int selectorThreads) {
+            return new NioDownloadManager(selectorThreads);
+        }
+
+        /**
+         * Creates a download manager multiplexing the downloads from the same server over a single
+         * HTTP/2 connection. The servers must speak cleartext HTTP/2 without an upgrade
+         */
+        public static DownloadManager createHttp2DownloadManager() {
+            return new Http2DownloadManager();
+        }
     }
 }
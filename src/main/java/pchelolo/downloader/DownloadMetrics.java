@@ -0,0 +1,71 @@
+package pchelolo.downloader;
+
+/**
+ * Receives the measurements of the downloads run by a {@link DownloadManager}.
+ * <p/>
+ * The methods are called by the threads running the downloads, concurrently and on the hot path,
+ * so they should be thread safe, return quickly and never throw.
+ * The hosts are reported in lower case.
+ * <p/>
+ * See {@link pchelolo.downloader.impl.StandardDownloadMetrics} for an implementation exported over JMX.
+ */
+public interface DownloadMetrics {
+
+    /**
+     * A download is waiting for a free slot of the manager
+     */
+    void downloadQueued(String host);
+
+    /**
+     * A queued download has taken a slot and starts running
+     *
+     * @param waitNanos the time spent in the queue
+     */
+    void downloadStarted(String host, long waitNanos);
+
+    /**
+     * A running download has released its slot: it is over or paused
+     */
+    void downloadStopped(String host);
+
+    /**
+     * A connection to the server is established, a connection reused from the keep-alive cache
+     * is established instantly
+     *
+     * @param connectNanos the time spent establishing the connection
+     */
+    void connected(String host, long connectNanos);
+
+    /**
+     * The head of the response is received
+     *
+     * @param nanos the time since the connection was requested, the time to the first byte
+     */
+    void responseReceived(String host, long nanos);
+
+    /**
+     * The bytes of the content are read from the connection
+     */
+    void bytesDownloaded(String host, int bytes);
+
+    /**
+     * A download is finished
+     *
+     * @param nanos the time since the connection which has finished the download was requested
+     */
+    void downloadFinished(String host, long nanos);
+
+    /**
+     * A download, or one of its segments, has failed
+     *
+     * @param cause the reason of the failure
+     */
+    void downloadFailed(String host, Throwable cause);
+
+    /**
+     * A failed attempt is repeated instead of failing the download
+     *
+     * @param cause the reason of the failed attempt
+     */
+    void downloadRetried(String host, Throwable cause);
+}
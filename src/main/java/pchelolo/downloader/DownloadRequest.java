@@ -2,6 +2,7 @@ package pchelolo.downloader;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
 
 /**
  * The immutable class representing a download request and options.
@@ -27,19 +28,67 @@ import java.net.URL;
  */
 public class DownloadRequest {
 
-    private static final int     DEFAULT_CONNECTION_TIMEOUT = 5000;
-    private static final boolean DEFAULT_FOLLOWS_REDIRECT   = false;
+    /**
+     * Represents how the content compressed by the server for the transfer is treated
+     */
+    public static enum Compression {
+
+        /**
+         * The compressed content is not accepted, the server sends the content as is
+         */
+        NONE,
+
+        /**
+         * The gzip or deflate compressed content is accepted and decompressed while downloading,
+         * the result is the original content
+         */
+        DECODED,
+
+        /**
+         * The gzip or deflate compressed content is accepted and kept compressed,
+         * the result is the content as sent by the server
+         */
+        ENCODED
+    }
+
+    private static final int     DEFAULT_CONNECTION_TIMEOUT   = 5000;
+    private static final boolean DEFAULT_FOLLOWS_REDIRECT     = false;
+    private static final int     DEFAULT_SEGMENTS             = 1;
+    private static final int     DEFAULT_PRIORITY             = 0;
+    private static final long    DEFAULT_MAX_BYTES_PER_SECOND = 0;
+    private static final Compression DEFAULT_COMPRESSION      = Compression.NONE;
 
     private final URL url;
     private final int connectionWaitTime;
     private final boolean followsRedirects;
+    private final Path destination;
+    private final int segments;
+    private final int priority;
+    private final long maxBytesPerSecond;
+    private final RetryPolicy retryPolicy;
+    private final ContentDigest expectedDigest;
+    private final Compression compression;
 
     private DownloadRequest(URL url,
                             int connectionWaitTime,
-                            boolean followsRedirects) {
+                            boolean followsRedirects,
+                            Path destination,
+                            int segments,
+                            int priority,
+                            long maxBytesPerSecond,
+                            RetryPolicy retryPolicy,
+                            ContentDigest expectedDigest,
+                            Compression compression) {
         this.url = url;
         this.connectionWaitTime = connectionWaitTime;
         this.followsRedirects = followsRedirects;
+        this.destination = destination;
+        this.segments = segments;
+        this.priority = priority;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.retryPolicy = retryPolicy;
+        this.expectedDigest = expectedDigest;
+        this.compression = compression;
     }
 
     /**
@@ -72,6 +121,99 @@ public class DownloadRequest {
         return followsRedirects;
     }
 
+    /**
+     * Returns the file the downloaded bytes are written to.
+     * The default value is {@code null}, which means the bytes are kept in memory
+     *
+     * If set, the content is streamed to the file as it arrives, so the memory
+     * consumption does not depend on the size of the download.
+     * An existing file is overwritten.
+     *
+     * @return destination file or {@code null} for in-memory downloads
+     */
+    public Path getDestination() {
+        return destination;
+    }
+
+    /**
+     * Returns the number of segments downloaded in parallel.
+     * The default value is {@value #DEFAULT_SEGMENTS}
+     *
+     * The content is split into byte ranges, each of them is downloaded
+     * using a separate connection and paused or resumed independently.
+     * The option is silently ignored if the content length is not known
+     * in advance or the server does not support ranged downloads
+     *
+     * @return number of segments
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Returns the priority of the download.
+     * The default value is {@value #DEFAULT_PRIORITY}
+     *
+     * If the download manager limits the number of concurrent downloads,
+     * the queued downloads of a higher priority are started first.
+     * The option is ignored if the number of downloads is not limited
+     *
+     * @return priority of the download
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the limit of the download rate in bytes per second.
+     * The default value is {@value #DEFAULT_MAX_BYTES_PER_SECOND}, which means the rate is not limited
+     *
+     * The download is also subject to the limits of the download manager, the strictest limit applies.
+     * The limit could be changed while downloading with {@link DownloadResponse#setMaxBytesPerSecond(long)}
+     *
+     * @return maximum bytes per second or 0 for no limit
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * Returns the policy of attempting the download again after a failure.
+     * The default value is {@link RetryPolicy#NONE}, which means a failed download is not retried
+     *
+     * @return retry policy
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Returns the expected digest of the content.
+     * The default value is {@code null}, which means the content is not verified
+     *
+     * The digest is computed while downloading, the download fails if the content does not match it.
+     * The segments of a parallel download are read back once to compute the digest
+     *
+     * @return expected digest or {@code null}
+     */
+    public ContentDigest getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    /**
+     * Returns if the content could be compressed by the server for the transfer and if it is decompressed.
+     * The default value is {@link Compression#NONE}
+     *
+     * A decompressed download is continued after a pause or a failure from the compressed bytes received so far,
+     * but it could not be split into segments or recovered from the journal after a restart.
+     * The expected digest is of the content stored: the original content if decompressed, the compressed otherwise.
+     *
+     * @return compression
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
     @Override
     public String toString() {
         return url.toString() + "[waitTime: " + connectionWaitTime + " redirects: " + followsRedirects + "]";
@@ -82,6 +224,13 @@ public class DownloadRequest {
         private URL url;
         private int connectionWaitTime   = DEFAULT_CONNECTION_TIMEOUT;
         private boolean followsRedirects = DEFAULT_FOLLOWS_REDIRECT;
+        private Path destination;
+        private int segments             = DEFAULT_SEGMENTS;
+        private int priority             = DEFAULT_PRIORITY;
+        private long maxBytesPerSecond   = DEFAULT_MAX_BYTES_PER_SECOND;
+        private RetryPolicy retryPolicy  = RetryPolicy.NONE;
+        private ContentDigest expectedDigest;
+        private Compression compression  = DEFAULT_COMPRESSION;
 
         public Builder(URL url) {
             this.url = url;
@@ -111,8 +260,56 @@ public class DownloadRequest {
             return this;
         }
 
+        public Builder setDestination(Path destination) {
+            this.destination = destination;
+            return this;
+        }
+
+        public Builder setSegments(int segments) {
+            if (segments < 1) {
+                throw new IllegalArgumentException("At least one segment is required");
+            }
+            this.segments = segments;
+            return this;
+        }
+
+        public Builder setPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public Builder setMaxBytesPerSecond(long maxBytesPerSecond) {
+            if (maxBytesPerSecond < 0) {
+                throw new IllegalArgumentException("The rate limit should not be negative");
+            }
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+            if (retryPolicy == null) {
+                throw new IllegalArgumentException("The retry policy is required, use RetryPolicy.NONE to not retry");
+            }
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        public Builder setExpectedDigest(ContentDigest expectedDigest) {
+            this.expectedDigest = expectedDigest;
+            return this;
+        }
+
+        public Builder setCompression(Compression compression) {
+            if (compression == null) {
+                throw new IllegalArgumentException("The compression is required, use Compression.NONE to not compress");
+            }
+            this.compression = compression;
+            return this;
+        }
+
         public DownloadRequest build() {
-            return new DownloadRequest(url, connectionWaitTime, followsRedirects);
+            return new DownloadRequest(url, connectionWaitTime, followsRedirects, destination, segments, priority,
+                    maxBytesPerSecond, retryPolicy, expectedDigest, compression);
         }
     }
 }
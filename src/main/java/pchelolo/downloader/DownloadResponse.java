@@ -1,5 +1,10 @@
 package pchelolo.downloader;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -44,13 +49,68 @@ public interface DownloadResponse {
         FINISHED
     }
 
+    /**
+     * Listens to the transitions of the {@link DownloadResponse.Status}
+     */
+    public static interface StatusListener {
+
+        /**
+         * Called after the status of the download has changed.
+         * <p/>
+         * The transitions are delivered in order, one at a time, by one of the threads
+         * running the download or calling the {@link DownloadResponse} methods.
+         * The listener should return quickly and should not wait for the download.
+         */
+        void statusChanged(DownloadResponse response, Status oldStatus, Status newStatus);
+    }
+
     /**
      * Returns the {@link DownloadResponse.Status} of the current download process
      */
     Status getStatus();
 
+    /**
+     * Returns the number of bytes downloaded so far.
+     * <p/>
+     * Cheap to call and never blocks, so it could be polled to track the progress
+     */
+    long getBytesDownloaded();
+
+    /**
+     * Returns the number of bytes of the content received from the server so far.
+     * <p/>
+     * Differs from {@link #getBytesDownloaded()} only if the content is decompressed while downloading,
+     * see {@link DownloadRequest#getCompression()}: the received bytes are compressed, like the
+     * {@link #getContentLength()}, and the downloaded ones are decompressed. Never blocks
+     */
+    long getBytesReceived();
+
+    /**
+     * Returns the length of the content reported by the server.
+     * The length of the compressed content if it is decompressed while downloading.
+     * <p/>
+     * Never blocks
+     *
+     * @return the length of the content in bytes,
+     *         -1 if the download has not started yet or the server has not reported the length
+     */
+    long getContentLength();
+
+    /**
+     * Returns the file the download is written to.
+     * <p/>
+     * The file is complete once the download is {@link DownloadResponse.Status#FINISHED}
+     *
+     * @return the destination file, specified by {@link DownloadRequest#getDestination()}
+     *         {@code null} if the download is kept in memory
+     */
+    Path getDestination();
+
     /**
      * Wait for a result to be ready and return it
+     * <p/>
+     * If the download is written to a destination file, the content is read from the file,
+     * use {@link #getDestination()} to avoid loading it into memory
      *
      * @return a download result if it was finished
      *         {@code null} if the download was cancelled or failed
@@ -59,6 +119,82 @@ public interface DownloadResponse {
     byte[] getResult()
             throws InterruptedException;
 
+    /**
+     * Wait for a result to be ready and return a read-only buffer with it.
+     * <p/>
+     * Unlike {@link #getResult()}, the content is not copied if it was downloaded to a single memory chunk,
+     * which is the case if the content length is known in advance.
+     * If the download is written to a destination file, the file is mapped into memory.
+     *
+     * @return a download result if it was finished
+     *         all bytes, downloaded before the failure if the download fails
+     *         {@code null} if the download was cancelled
+     * @throws InterruptedException if the Thread was interrupted during wait
+     */
+    ByteBuffer getResultBuffer()
+            throws InterruptedException;
+
+    /**
+     * Wait for a result to be ready and return a stream reading it.
+     * <p/>
+     * The content is read directly from the downloaded bytes without copying it as a whole
+     *
+     * @return a stream reading the download result
+     *         {@code null} if the download was cancelled
+     * @throws InterruptedException if the Thread was interrupted during wait
+     */
+    InputStream getResultStream()
+            throws InterruptedException;
+
+    /**
+     * Wait for a result to be ready and return a channel reading it.
+     * <p/>
+     * See: {@link DownloadResponse#getResultStream()}
+     *
+     * @return a channel reading the download result
+     *         {@code null} if the download was cancelled
+     * @throws InterruptedException if the Thread was interrupted during wait
+     */
+    ReadableByteChannel getResultChannel()
+            throws InterruptedException;
+
+    /**
+     * Returns a future completed with the result once the download is over,
+     * so that many downloads could be composed and awaited without blocking a thread for each.
+     * <p/>
+     * The future is completed with the same bytes {@link #getResult()} returns if the download is finished,
+     * completed exceptionally with an {@link java.io.IOException} if the download fails,
+     * and cancelled if the download is cancelled.
+     *
+     * @return the same future for every call
+     */
+    CompletableFuture<byte[]> getResultFuture();
+
+    /**
+     * Registers a listener notified about the following status transitions
+     */
+    void addStatusListener(StatusListener listener);
+
+    /**
+     * Unregisters a status listener
+     */
+    void removeStatusListener(StatusListener listener);
+
+    /**
+     * Returns a stream reading the content while it is being downloaded.
+     * <p/>
+     * The stream blocks until more bytes are downloaded and ends once the download is finished.
+     * It fails with an {@link java.io.IOException} if the download fails or is cancelled.
+     * Several streams could be read independently.
+     * <p/>
+     * If a stream lags behind the download by more than a megabyte, the download waits for it
+     * without reading from the connection, so a stream which is not read anymore should be closed.
+     * The downloads served by a shared non-blocking thread and the segmented downloads do not wait.
+     *
+     * @return a stream reading the content from the beginning
+     */
+    InputStream getContentStream();
+
     /**
      * Timed wait for the result to be ready
      * <p/>
@@ -72,6 +208,16 @@ public interface DownloadResponse {
     byte[] getResult(long timeout, TimeUnit timeUnit)
             throws InterruptedException;
 
+    /**
+     * Changes the limit of the download rate, initially {@link DownloadRequest#getMaxBytesPerSecond()}.
+     * <p/>
+     * Applies to the running download within about a tenth of a second, without reconnecting
+     *
+     * @param maxBytesPerSecond maximum bytes per second or 0 for no limit
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    void setMaxBytesPerSecond(long maxBytesPerSecond);
+
     /**
      * Requests a downloader to pause the current download.
      * <p/>
@@ -83,7 +229,8 @@ public interface DownloadResponse {
     void pause();
 
     /**
-     * Requests a downloader to resume the current download process
+     * Requests a downloader to resume the current download process.
+     * A download paused before it has started is {@link DownloadResponse.Status#NOT_STARTED} again
      *
      * @throws IllegalStateException if the download process is not in {@link DownloadResponse.Status#PAUSED}
      */
@@ -0,0 +1,67 @@
+package pchelolo.downloader;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The mirror of the content present in a local directory, laid out by host and path:
+ * {@code http://example.com/repo/file.jar} is served from {@code <directory>/example.com/repo/file.jar}
+ * if the file exists, the rest of the content is downloaded from its origin.
+ * <p/>
+ * The query of the URL is ignored. The paths escaping the directory are never served.
+ * <p/>
+ * Example of the LocalMirror usage:
+ * <pre>
+ * {@code
+ *  manager.setMirrorResolver(new LocalMirror(Paths.get("/var/cache/artifacts")));
+ * }
+ * </pre>
+ */
+public class LocalMirror implements MirrorResolver {
+
+    private final Path directory;
+
+    /**
+     * @param directory the directory with the mirrored content
+     */
+    public LocalMirror(Path directory) {
+        this.directory = directory.toAbsolutePath().normalize();
+    }
+
+    /**
+     * @return the directory with the mirrored content
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public URL resolve(URL url) {
+        String path;
+        try {
+            path = url.toURI().getPath();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        if (url.getHost().isEmpty() || path == null || path.isEmpty()) {
+            return null;
+        }
+        Path file = directory.resolve(url.getHost().toLowerCase()).resolve(path.substring(1)).normalize();
+        if (!file.startsWith(directory) || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            return file.toUri().toURL();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[mirror: " + directory + "]";
+    }
+}
@@ -0,0 +1,22 @@
+package pchelolo.downloader;
+
+import java.net.URL;
+
+/**
+ * Redirects the downloads to the mirrors of their content, see {@link LocalMirror}.
+ * <p/>
+ * The URL is resolved each time a download is started or continued, so a download continued after a pause
+ * switches between the mirror and the origin if the mirror has changed meanwhile; the content is validated
+ * and the download starts over if it does not match.
+ * The mirrors are downloaded by the {@link ProtocolProvider protocol providers}, e.g. the built-in {@code file} one.
+ * <p/>
+ * Called by the threads starting the downloads concurrently, so it should be thread safe.
+ */
+public interface MirrorResolver {
+
+    /**
+     * @param url the URL of the request
+     * @return the URL of the mirror of the content or {@code null} to download it from the URL of the request
+     */
+    URL resolve(URL url);
+}
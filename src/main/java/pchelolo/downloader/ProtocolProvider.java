@@ -0,0 +1,43 @@
+package pchelolo.downloader;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Provides the content of the URLs of a protocol the download manager does not support itself.
+ * <p/>
+ * The providers are discovered with a {@link java.util.ServiceLoader}: an implementation is registered
+ * by listing its class in the {@code META-INF/services/pchelolo.downloader.ProtocolProvider} resource
+ * and should have a public constructor without arguments.
+ * The manager takes care of the storage, the rate limits, the pauses, the retries and the digest,
+ * the provider only opens the content. The http and https URLs are always downloaded by the manager.
+ * <p/>
+ * The provider of the {@code file} protocol is built in.
+ * <p/>
+ * The methods are called by the threads running the downloads concurrently, so they should be thread safe.
+ */
+public interface ProtocolProvider {
+
+    /**
+     * @param protocol the protocol of the URL, in lower case
+     * @return true if the provider downloads the URLs of the protocol
+     */
+    boolean supports(String protocol);
+
+    /**
+     * Opens the content of the URL.
+     * <p/>
+     * A download continued after a pause or a failure asks for the content after the bytes already downloaded.
+     * The provider should only continue from the position if the content has not changed,
+     * otherwise the content is sent from the beginning and the download starts over.
+     *
+     * @param url the URL of the content, which could differ from the URL of the request if it is mirrored
+     * @param request the request of the download
+     * @param position the number of bytes already downloaded, 0 for a new download
+     * @param validator the validator of the content already downloaded or {@code null}
+     * @return the opened content, closed by the manager
+     * @throws IOException if failed to open the content, the failure could be retried
+     *                     according to the {@link DownloadRequest#getRetryPolicy() retry policy}
+     */
+    ContentSource open(URL url, DownloadRequest request, long position, String validator) throws IOException;
+}
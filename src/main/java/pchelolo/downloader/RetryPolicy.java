@@ -0,0 +1,249 @@
+package pchelolo.downloader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The immutable class specifying if and when a failed download is attempted again.
+ * <p/>
+ * A retried download continues from the bytes already downloaded if the server supports ranged downloads
+ * and the content has not changed, otherwise it starts over.
+ * The attempts are delayed by an exponential backoff with a random jitter,
+ * so that many downloads failed at once do not hit the server at once again.
+ * The downloader does not hold a thread while waiting for the next attempt.
+ * <p/>
+ * Example of the RetryPolicy construction:
+ * <pre>
+ * {@code
+ *  RetryPolicy policy = new RetryPolicy.Builder()
+ *                              .setMaxAttempts(5)
+ *                              .setInitialBackoff(500)
+ *                              .build();
+ * }
+ * </pre>
+ */
+public class RetryPolicy {
+
+    private static final int    DEFAULT_MAX_ATTEMPTS    = 3;
+    private static final long   DEFAULT_INITIAL_BACKOFF = 1000;
+    private static final long   DEFAULT_MAX_BACKOFF     = 30000;
+    private static final double DEFAULT_MULTIPLIER      = 2.0;
+    private static final double DEFAULT_JITTER          = 0.5;
+
+    private static final Set<Class<? extends IOException>> DEFAULT_RETRYABLE_EXCEPTIONS =
+            Collections.unmodifiableSet(new LinkedHashSet<Class<? extends IOException>>(Arrays.asList(
+                    SocketException.class, SocketTimeoutException.class, EOFException.class)));
+    private static final Set<Integer> DEFAULT_RETRYABLE_STATUS_CODES =
+            Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(408, 429, 500, 502, 503, 504)));
+
+    /**
+     * The policy never attempting a failed download again, used by default
+     */
+    public static final RetryPolicy NONE = new Builder().setMaxAttempts(1).build();
+
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final double multiplier;
+    private final double jitter;
+    private final Set<Class<? extends IOException>> retryableExceptions;
+    private final Set<Integer> retryableStatusCodes;
+
+    private RetryPolicy(int maxAttempts,
+                        long initialBackoff,
+                        long maxBackoff,
+                        double multiplier,
+                        double jitter,
+                        Set<Class<? extends IOException>> retryableExceptions,
+                        Set<Integer> retryableStatusCodes) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.retryableExceptions = retryableExceptions;
+        this.retryableStatusCodes = retryableStatusCodes;
+    }
+
+    /**
+     * Returns the maximum number of attempts of a download, including the first one.
+     * The default value is {@value #DEFAULT_MAX_ATTEMPTS}
+     *
+     * @return maximum number of attempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns the delay before the first retry in milliseconds.
+     * The default value is {@value #DEFAULT_INITIAL_BACKOFF}
+     *
+     * @return initial backoff
+     */
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Returns the longest delay between the attempts in milliseconds.
+     * The default value is {@value #DEFAULT_MAX_BACKOFF}
+     *
+     * @return maximum backoff
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Returns the factor the delay grows by with each retry.
+     * The default value is {@value #DEFAULT_MULTIPLIER}
+     *
+     * @return backoff multiplier
+     */
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * Returns the fraction of the delay which is random, from 0 for fixed delays to 1 for fully random delays.
+     * The default value is {@value #DEFAULT_JITTER}
+     *
+     * @return jitter
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Returns the classes of the failures worth another attempt, such as dropped connections or timeouts.
+     * The default ones are {@link SocketException}, {@link SocketTimeoutException} and {@link EOFException}
+     *
+     * @return retryable exception classes
+     */
+    public Set<Class<? extends IOException>> getRetryableExceptions() {
+        return retryableExceptions;
+    }
+
+    /**
+     * Returns the status codes of the server responses worth another attempt.
+     * The default ones are 408, 429, 500, 502, 503 and 504
+     *
+     * The option is silently ignored if the underlying protocol has no status codes
+     *
+     * @return retryable status codes
+     */
+    public Set<Integer> getRetryableStatusCodes() {
+        return retryableStatusCodes;
+    }
+
+    /**
+     * Checks if the failure is worth another attempt.
+     * An error response of the server is only retried if its status code is retryable,
+     * any other failure if it is an instance of a retryable exception class
+     *
+     * @param cause the failure of the attempt
+     * @param statusCode the status code of the server response or -1 if there was no response
+     */
+    public boolean isRetryable(IOException cause, int statusCode) {
+        if (statusCode >= 400) {
+            return retryableStatusCodes.contains(statusCode);
+        }
+        for (Class<? extends IOException> retryable : retryableExceptions) {
+            if (retryable.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a random delay before the retry, growing exponentially with the number of retries
+     *
+     * @param retry the number of the retry, starting from 1
+     * @return delay in milliseconds
+     */
+    public long getBackoff(int retry) {
+        double backoff = Math.min(initialBackoff * Math.pow(multiplier, retry - 1), maxBackoff);
+        return (long) (backoff * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    @Override
+    public String toString() {
+        return "[attempts: " + maxAttempts + " backoff: " + initialBackoff + "-" + maxBackoff + "]";
+    }
+
+    public static class Builder {
+
+        private int maxAttempts       = DEFAULT_MAX_ATTEMPTS;
+        private long initialBackoff   = DEFAULT_INITIAL_BACKOFF;
+        private long maxBackoff       = DEFAULT_MAX_BACKOFF;
+        private double multiplier     = DEFAULT_MULTIPLIER;
+        private double jitter         = DEFAULT_JITTER;
+        private Set<Class<? extends IOException>> retryableExceptions = DEFAULT_RETRYABLE_EXCEPTIONS;
+        private Set<Integer> retryableStatusCodes                    = DEFAULT_RETRYABLE_STATUS_CODES;
+
+        public Builder setMaxAttempts(int maxAttempts) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("At least one attempt is required");
+            }
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder setInitialBackoff(long initialBackoff) {
+            if (initialBackoff < 0) {
+                throw new IllegalArgumentException("The backoff should not be negative");
+            }
+            this.initialBackoff = initialBackoff;
+            return this;
+        }
+
+        public Builder setMaxBackoff(long maxBackoff) {
+            if (maxBackoff < 0) {
+                throw new IllegalArgumentException("The backoff should not be negative");
+            }
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        public Builder setMultiplier(double multiplier) {
+            if (multiplier < 1) {
+                throw new IllegalArgumentException("The backoff should not shrink");
+            }
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        public Builder setJitter(double jitter) {
+            if (jitter < 0 || jitter > 1) {
+                throw new IllegalArgumentException("The jitter should be between 0 and 1");
+            }
+            this.jitter = jitter;
+            return this;
+        }
+
+        public Builder setRetryableExceptions(Set<Class<? extends IOException>> retryableExceptions) {
+            this.retryableExceptions = Collections.unmodifiableSet(new HashSet<>(retryableExceptions));
+            return this;
+        }
+
+        public Builder setRetryableStatusCodes(Set<Integer> retryableStatusCodes) {
+            this.retryableStatusCodes = Collections.unmodifiableSet(new HashSet<>(retryableStatusCodes));
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier, jitter,
+                    retryableExceptions, retryableStatusCodes);
+        }
+    }
+}
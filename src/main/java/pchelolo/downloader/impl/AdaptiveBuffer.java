@@ -0,0 +1,57 @@
+package pchelolo.downloader.impl;
+
+/**
+ * A read buffer leased from a {@link BufferPool}, resized to the amount of data the connection delivers.
+ * <p/>
+ * The buffer starts small and doubles while the reads fill it completely, so a fast connection
+ * is read with fewer calls. It halves once the reads return much less, so a slow download
+ * does not hold a large buffer. Not thread safe.
+ */
+class AdaptiveBuffer {
+
+    private final BufferPool pool;
+    private byte[] buf;
+
+    AdaptiveBuffer(BufferPool pool) {
+        this.pool = pool;
+        this.buf = pool.acquire(BufferPool.MIN_BUFFER_SIZE);
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    /**
+     * Resizes the buffer according to the number of bytes the last read has returned.
+     * The content of the buffer is not preserved.
+     *
+     * @return true if the buffer was replaced
+     */
+    boolean adapt(int len) {
+        if (len == buf.length && buf.length < BufferPool.MAX_BUFFER_SIZE) {
+            resize(buf.length << 1);
+            return true;
+        }
+        if (len < buf.length >> 2 && buf.length > BufferPool.MIN_BUFFER_SIZE) {
+            resize(buf.length >> 1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the buffer to the pool, it should not be used anymore
+     */
+    void release() {
+        if (buf != null) {
+            pool.release(buf);
+            buf = null;
+        }
+    }
+
+    private void resize(int size) {
+        byte[] resized = pool.acquire(size);
+        pool.release(buf);
+        buf = resized;
+    }
+}
@@ -0,0 +1,83 @@
+package pchelolo.downloader.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The rate limits of the downloads of a manager: the total one, the per-host ones,
+ * and the one of each download kept by its response.
+ * <p/>
+ * A read is charged to all the buckets applying to it and waits for the slowest of them.
+ * The limits could be changed at any time, the running downloads follow them
+ * after their current wait, which is never longer than about a tenth of a second
+ * as the reads are cut into chunks by the strictest limit.
+ */
+class BandwidthLimiter {
+
+    private final TokenBucket total = new TokenBucket(0);
+    private final ConcurrentMap<String, TokenBucket> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param bytesPerSecond the limit of all the downloads together, 0 for no limit
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    void setMaxBytesPerSecond(long bytesPerSecond) {
+        total.setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * @param host the host the limit applies to, case insensitive
+     * @param bytesPerSecond the limit of the downloads from the host together, 0 for no limit
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    void setMaxBytesPerSecondPerHost(String host, long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The rate limit should not be negative");
+        }
+        String key = host.toLowerCase();
+        if (bytesPerSecond == 0) {
+            hosts.remove(key);
+            return;
+        }
+        TokenBucket bucket = hosts.get(key);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(bytesPerSecond);
+            bucket = hosts.putIfAbsent(key, created);
+            if (bucket == null) {
+                return;
+            }
+        }
+        bucket.setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * @param host the lower case host of the download
+     * @param download the bucket of the download
+     * @param length the most bytes the reader could take
+     * @return the number of bytes to read at once
+     */
+    int limitRead(String host, TokenBucket download, int length) {
+        int limit = Math.min(total.getChunkSize(), download.getChunkSize());
+        TokenBucket bucket = hosts.get(host);
+        if (bucket != null) {
+            limit = Math.min(limit, bucket.getChunkSize());
+        }
+        return Math.min(limit, length);
+    }
+
+    /**
+     * Charges the read bytes to the buckets
+     *
+     * @param host the lower case host of the download
+     * @param download the bucket of the download
+     * @return nanoseconds to wait before reading more, 0 if the download could continue at once
+     */
+    long take(String host, TokenBucket download, int bytes) {
+        long wait = Math.max(total.take(bytes), download.take(bytes));
+        TokenBucket bucket = hosts.get(host);
+        if (bucket != null) {
+            wait = Math.max(wait, bucket.take(bytes));
+        }
+        return wait;
+    }
+}
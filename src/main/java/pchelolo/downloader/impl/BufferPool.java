@@ -0,0 +1,81 @@
+package pchelolo.downloader.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable read buffers shared by the downloads of a manager.
+ * <p/>
+ * The buffers have power-of-two sizes from {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}.
+ * The total size of the idle buffers kept by the pool is limited, the excess buffers are left to the GC.
+ * Thread safe.
+ */
+class BufferPool {
+
+    static final int MIN_BUFFER_SIZE = 8192;
+    static final int MAX_BUFFER_SIZE = 1 << 20;
+    private static final long DEFAULT_MAX_RETAINED = 64 << 20;
+
+    // The idle buffers of each size class, indexed by the class
+    private final List<Queue<byte[]>> free;
+    private final AtomicLong retained = new AtomicLong();
+    private final long maxRetained;
+
+    BufferPool() {
+        this(DEFAULT_MAX_RETAINED);
+    }
+
+    /**
+     * @param maxRetained the maximum total size of the idle buffers kept by the pool
+     */
+    BufferPool(long maxRetained) {
+        this.maxRetained = maxRetained;
+        int classes = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE / MIN_BUFFER_SIZE) + 1;
+        free = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            free.add(new ConcurrentLinkedQueue<byte[]>());
+        }
+    }
+
+    /**
+     * Takes an idle buffer or allocates a new one
+     *
+     * @param size the minimal size of the buffer, rounded up to a power of two within the supported sizes
+     */
+    byte[] acquire(int size) {
+        int index = sizeClass(size);
+        byte[] buf = free.get(index).poll();
+        if (buf != null) {
+            retained.addAndGet(-buf.length);
+            return buf;
+        }
+        return new byte[MIN_BUFFER_SIZE << index];
+    }
+
+    /**
+     * Returns the buffer to the pool, it should not be used by the caller anymore
+     */
+    void release(byte[] buf) {
+        int index = sizeClass(buf.length);
+        if (buf.length != MIN_BUFFER_SIZE << index) {
+            // Not acquired from the pool
+            return;
+        }
+        if (retained.addAndGet(buf.length) > maxRetained) {
+            retained.addAndGet(-buf.length);
+            return;
+        }
+        free.get(index).offer(buf);
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        int rounded = Math.min(MAX_BUFFER_SIZE, Integer.highestOneBit(size - 1) << 1);
+        return Integer.numberOfTrailingZeros(rounded / MIN_BUFFER_SIZE);
+    }
+}
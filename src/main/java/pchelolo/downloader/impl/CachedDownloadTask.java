@@ -0,0 +1,114 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadRequest;
+
+import java.io.IOException;
+import java.net.URLConnection;
+
+/**
+ * A runnable serving the content from the {@link DownloadCache} if the server confirms
+ * that the cached version is still valid, downloading and caching it otherwise.
+ * <p/>
+ * The cached content is mapped into memory and exposed by the response without copying.
+ */
+class CachedDownloadTask implements Runnable {
+
+    private final DownloadTask protocol;
+    private final DownloadResponseImpl response;
+    private final DownloadCache cache;
+
+    CachedDownloadTask(DownloadTask protocol, DownloadCache cache) {
+        this.protocol = protocol;
+        this.response = protocol.response;
+        this.cache = cache;
+    }
+
+    @Override
+    public void run() {
+        if (response.getStorage() != null) {
+            // Resuming a download which was not served from the cache
+            protocol.run();
+            return;
+        }
+
+        URLConnection conn = null;
+        boolean reusable = false;
+        response.workerStarted();
+        try {
+            if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+                return;
+            }
+            String url = protocol.request.getUrl().toString();
+            if (protocol.request.getCompression() == DownloadRequest.Compression.ENCODED) {
+                // The encoded content is cached apart from the original one
+                url += " encoded";
+            }
+            DownloadCache.Entry cached = cache.get(url);
+            DownloadStorage storage = null;
+            if (cached != null) {
+                try {
+                    // Mapped before asking the server, the body could not be evicted from under the response
+                    storage = cache.open(cached);
+                } catch (IOException e) {
+                    // Evicted in the meantime
+                }
+            }
+
+            conn = protocol.prepareConnection();
+            if (storage != null) {
+                protocol.setRevalidation(cached.getETag(), cached.getLastModified(), conn);
+            }
+            long started = protocol.connect(conn);
+            if (storage != null) {
+                if (protocol.isNotModified(conn)) {
+                    conn.getInputStream().close();
+                    reusable = true;
+                    response.setContentLength(storage.size());
+                    response.setBytesDownloaded(storage.size());
+                    response.setStorage(storage);
+                    response.verifyDigest();
+                    protocol.metrics.downloadFinished(protocol.host, System.nanoTime() - started);
+                    // A download paused meanwhile is finished by its resume, a cancelled one is not
+                    response.start();
+                    response.finish();
+                    return;
+                }
+            }
+
+            cacheOnFinish(url, conn);
+            protocol.download(conn, started);
+            reusable = true;
+        } catch (IOException | InterruptedException e) {
+            if (!protocol.retryLater(e, conn)) {
+                protocol.metrics.downloadFailed(protocol.host, e);
+                protocol.closeStorage();
+                response.fail();
+            }
+        } finally {
+            protocol.finalizeConnection(conn, reusable);
+            response.workerStopped();
+        }
+    }
+
+    /**
+     * Stores the content once the download is finished, if it could be revalidated later.
+     * The content is stored before the download is reported as finished
+     */
+    private void cacheOnFinish(final String url, URLConnection conn) {
+        final String eTag = protocol.getETag(conn);
+        final String lastModified = protocol.getLastModified(conn);
+        if (eTag == null && lastModified == null) {
+            return;
+        }
+        response.setFinishAction(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.put(url, eTag, lastModified, response.getStorage());
+                } catch (IOException e) {
+                    // The download is complete anyway, it is just not cached
+                }
+            }
+        });
+    }
+}
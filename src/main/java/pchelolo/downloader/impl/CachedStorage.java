@@ -0,0 +1,103 @@
+package pchelolo.downloader.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Exposes a body from the {@link DownloadCache} or a local file, mapped into memory.
+ * <p/>
+ * The content is complete and read-only: it is never copied unless requested as an array,
+ * and the mapped file is kept when the storage is discarded.
+ */
+class CachedStorage implements DownloadStorage {
+
+    private final ByteBuffer body;
+
+    CachedStorage(ByteBuffer body) {
+        this.body = body.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) {
+        throw new IllegalStateException("The cached content could not be written");
+    }
+
+    @Override
+    public void allocate(long length) {
+        throw new IllegalStateException("The cached content could not be written");
+    }
+
+    @Override
+    public void write(long position, byte[] buf, int off, int len) {
+        throw new IllegalStateException("The cached content could not be written");
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel channel, long count) {
+        throw new IllegalStateException("The cached content could not be written");
+    }
+
+    @Override
+    public long size() {
+        return body.capacity();
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        byte[] result = new byte[body.capacity()];
+        body.duplicate().get(result);
+        return result;
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return body.duplicate();
+    }
+
+    @Override
+    public ReadableByteChannel openChannel() {
+        final ByteBuffer content = body.duplicate();
+        return new ReadableByteChannel() {
+
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+                int len = Math.min(dst.remaining(), content.remaining());
+                ByteBuffer chunk = content.duplicate();
+                chunk.limit(chunk.position() + len);
+                dst.put(chunk);
+                content.position(content.position() + len);
+                return len;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    @Override
+    public void force() {
+        // Never written
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, the mapping is released by the GC
+    }
+
+    @Override
+    public void discard() {
+        // The mapped file is kept
+    }
+}
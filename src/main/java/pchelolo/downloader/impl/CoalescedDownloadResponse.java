@@ -0,0 +1,226 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A handle of a caller to a download shared with the other callers by the {@link DownloadCoalescer}.
+ * <p/>
+ * The results are read from the shared storage. Pausing or cancelling the handle only affects
+ * the other callers once all of them have paused or cancelled their handles,
+ * a cancelled handle stops reporting the progress of the shared download.
+ */
+class CoalescedDownloadResponse implements DownloadResponse {
+
+    private final DownloadCoalescer coalescer;
+    final DownloadCoalescer.SharedDownload shared;
+
+    // Changed under the lock of the coalescer
+    volatile boolean paused = false;
+    volatile boolean cancelled = false;
+
+    private final ReentrantLock LOCK = new ReentrantLock();
+
+    // Guarded by the LOCK, so that the transitions are queued in the order they are seen
+    private Status lastStatus;
+    private final List<StatusListener> statusListeners = new CopyOnWriteArrayList<>();
+    private final Queue<Status[]> statusEvents = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isFiringStatusEvents = new AtomicBoolean(false);
+    private final AtomicReference<CompletableFuture<byte[]>> resultFuture = new AtomicReference<>();
+
+    CoalescedDownloadResponse(DownloadCoalescer coalescer, DownloadCoalescer.SharedDownload shared) {
+        this.coalescer = coalescer;
+        this.shared = shared;
+        this.lastStatus = getStatus();
+    }
+
+    /**
+     * Delivers the status transition seen by this handle, if any, to the listeners
+     * and completes the result future
+     */
+    void refreshStatus() {
+        LOCK.lock();
+        try {
+            Status current = getStatus();
+            if (lastStatus != current) {
+                statusEvents.add(new Status[] {lastStatus, current});
+                lastStatus = current;
+            }
+        } finally {
+            LOCK.unlock();
+        }
+        while (!statusEvents.isEmpty() && isFiringStatusEvents.compareAndSet(false, true)) {
+            try {
+                Status[] event;
+                while ((event = statusEvents.poll()) != null) {
+                    for (StatusListener listener : statusListeners) {
+                        try {
+                            listener.statusChanged(this, event[0], event[1]);
+                        } catch (RuntimeException e) {
+                            // A broken listener should not break the download or the other listeners
+                        }
+                    }
+                    completeResultFuture(event[1]);
+                }
+            } finally {
+                isFiringStatusEvents.set(false);
+            }
+        }
+    }
+
+    /**
+     * Completes the result future if it was requested and the status is final.
+     * Every handle gets its own copy of the content
+     */
+    private void completeResultFuture(Status status) {
+        CompletableFuture<byte[]> future = resultFuture.get();
+        if (future == null) {
+            return;
+        }
+        switch (status) {
+            case FINISHED:
+                try {
+                    future.complete(shared.response.getStorage().toByteArray());
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+                break;
+            case FAILED:
+                future.completeExceptionally(new IOException("The download has failed"));
+                break;
+            case CANCELLED:
+                future.cancel(false);
+                break;
+            default:
+                // Not final yet
+        }
+    }
+
+    // ------------ PUBLIC API --------------- //
+
+    @Override
+    public Status getStatus() {
+        if (cancelled) {
+            return Status.CANCELLED;
+        }
+        Status status = shared.response.getStatus();
+        if (paused && !DownloadCoalescer.isOver(status)) {
+            return Status.PAUSED;
+        }
+        return status;
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return shared.response.getBytesDownloaded();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return shared.response.getBytesReceived();
+    }
+
+    @Override
+    public long getContentLength() {
+        return shared.response.getContentLength();
+    }
+
+    @Override
+    public Path getDestination() {
+        return null;
+    }
+
+    @Override
+    public byte[] getResult() throws InterruptedException {
+        return getResult(0, null);
+    }
+
+    @Override
+    public byte[] getResult(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        if (!coalescer.await(this, timeout, timeUnit) || cancelled) {
+            return null;
+        }
+        // The shared download is over, returns without waiting
+        return shared.response.getResult();
+    }
+
+    @Override
+    public ByteBuffer getResultBuffer() throws InterruptedException {
+        coalescer.await(this, 0, null);
+        return cancelled ? null : shared.response.getResultBuffer();
+    }
+
+    @Override
+    public InputStream getResultStream() throws InterruptedException {
+        coalescer.await(this, 0, null);
+        return cancelled ? null : shared.response.getResultStream();
+    }
+
+    @Override
+    public ReadableByteChannel getResultChannel() throws InterruptedException {
+        coalescer.await(this, 0, null);
+        return cancelled ? null : shared.response.getResultChannel();
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getResultFuture() {
+        resultFuture.compareAndSet(null, new CompletableFuture<byte[]>());
+        // Already final, no transition would complete the future
+        completeResultFuture(getStatus());
+        return resultFuture.get();
+    }
+
+    @Override
+    public void addStatusListener(StatusListener listener) {
+        statusListeners.add(listener);
+    }
+
+    @Override
+    public void removeStatusListener(StatusListener listener) {
+        statusListeners.remove(listener);
+    }
+
+    @Override
+    public InputStream getContentStream() {
+        return shared.response.getContentStream();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The limit applies to the shared download, so it is changed for all its callers
+     */
+    @Override
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        shared.response.setMaxBytesPerSecond(maxBytesPerSecond);
+    }
+
+    @Override
+    public void pause() {
+        coalescer.pause(this);
+    }
+
+    @Override
+    public void resume() {
+        coalescer.resume(this);
+    }
+
+    @Override
+    public void cancel() {
+        coalescer.cancel(this);
+    }
+}
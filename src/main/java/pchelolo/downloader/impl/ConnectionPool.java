@@ -0,0 +1,145 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Idle keep-alive connections of a {@link SelectorLoop}, leased by the following downloads
+ * from the same server instead of opening a new connection.
+ * <p/>
+ * The idle connections stay registered with the selector of the loop, so that a connection closed
+ * by the server is noticed and evicted. The connections idle for longer than a timeout are closed,
+ * as well as the oldest ones exceeding the limit of idle connections per server.
+ * Only accessed by the loop thread.
+ */
+class ConnectionPool {
+
+    private final long idleTimeout;
+    private final int maxIdlePerRoute;
+    private final Map<String, Deque<IdleConnection>> idle = new HashMap<>();
+
+    /**
+     * @param idleTimeout nanoseconds to keep an idle connection
+     * @param maxIdlePerRoute the maximum number of idle connections kept per server
+     */
+    ConnectionPool(long idleTimeout, int maxIdlePerRoute) {
+        this.idleTimeout = idleTimeout;
+        this.maxIdlePerRoute = maxIdlePerRoute;
+    }
+
+    /**
+     * Takes the most recently used idle connection to the server
+     *
+     * @param route the host and port of the server
+     * @return the selection key of the connection or {@code null} if there are no idle connections
+     */
+    SelectionKey lease(String route) {
+        Deque<IdleConnection> connections = idle.get(route);
+        if (connections == null) {
+            return null;
+        }
+        SelectionKey key = null;
+        while (key == null && !connections.isEmpty()) {
+            IdleConnection connection = connections.pollLast();
+            if (connection.key.isValid()) {
+                key = connection.key;
+            }
+        }
+        if (connections.isEmpty()) {
+            idle.remove(route);
+        }
+        return key;
+    }
+
+    /**
+     * Takes the connection back after the response was completely read
+     *
+     * @param route the host and port of the server
+     * @param key the selection key of the connection
+     */
+    void release(String route, SelectionKey key) {
+        Deque<IdleConnection> connections = idle.get(route);
+        if (connections == null) {
+            connections = new ArrayDeque<>();
+            idle.put(route, connections);
+        }
+        if (connections.size() >= maxIdlePerRoute) {
+            connections.pollFirst().close();
+        }
+        IdleConnection connection = new IdleConnection(route, key, System.nanoTime());
+        key.attach(connection);
+        key.interestOps(SelectionKey.OP_READ);
+        connections.addLast(connection);
+    }
+
+    /**
+     * Closes the connections idle for longer than the timeout
+     */
+    void evict(long now) {
+        Iterator<Deque<IdleConnection>> routes = idle.values().iterator();
+        while (routes.hasNext()) {
+            Deque<IdleConnection> connections = routes.next();
+            // The oldest connections are at the head
+            while (!connections.isEmpty() && now - connections.peekFirst().since >= idleTimeout) {
+                connections.pollFirst().close();
+            }
+            if (connections.isEmpty()) {
+                routes.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes all the idle connections
+     */
+    void close() {
+        for (Deque<IdleConnection> connections : idle.values()) {
+            for (IdleConnection connection : connections) {
+                connection.close();
+            }
+        }
+        idle.clear();
+    }
+
+    private class IdleConnection implements SelectorLoop.Handler {
+
+        private final String route;
+        private final SelectionKey key;
+        private final long since;
+
+        IdleConnection(String route, SelectionKey key, long since) {
+            this.route = route;
+            this.key = key;
+            this.since = since;
+        }
+
+        /**
+         * The server has closed the idle connection or sent something unexpected, it could not be reused
+         */
+        @Override
+        public void handle(SelectionKey key) {
+            Deque<IdleConnection> connections = idle.get(route);
+            if (connections != null) {
+                connections.remove(this);
+                if (connections.isEmpty()) {
+                    idle.remove(route);
+                }
+            }
+            close();
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // The connection is not used anymore
+            }
+        }
+    }
+}
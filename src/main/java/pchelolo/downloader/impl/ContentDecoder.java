@@ -0,0 +1,299 @@
+package pchelolo.downloader.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decodes the gzip or deflate encoded content incrementally, as the encoded bytes arrive.
+ * <p/>
+ * Unlike the {@link java.util.zip.GZIPInputStream}, the decoder is fed the bytes instead of pulling them
+ * from a stream, so the decoding state survives reconnecting: the encoded content is continued
+ * with a ranged request from {@link #getInputPosition()}.
+ * Concatenated gzip members are decoded one after another, the deflate content is accepted
+ * both with and without the zlib wrapper.
+ * <p/>
+ * Used by a single downloading thread at a time.
+ */
+class ContentDecoder {
+
+    /**
+     * Receives the decoded bytes
+     */
+    interface Sink {
+
+        void write(byte[] buf, int off, int len) throws IOException;
+    }
+
+    private static final int OUTPUT_SIZE = 16384;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private enum State {
+        HEADER, EXTRA_LENGTH, EXTRA, NAME, COMMENT, HEADER_CRC, BODY, TRAILER, FINISHED
+    }
+
+    private final boolean gzip;
+    private final byte[] output = new byte[OUTPUT_SIZE];
+    private final CRC32 crc = new CRC32();
+    private Inflater inflater;
+
+    private State state;
+    // The bytes of the current fixed-size gzip field and the number of them already read
+    private final byte[] field = new byte[10];
+    private int fieldLength;
+    private int fieldRead;
+    private int flags;
+    private int extraRemaining;
+    // The number of complete gzip members
+    private int members = 0;
+    private long inputPosition = 0;
+
+    /**
+     * @param encoding the content encoding
+     * @return the decoder or {@code null} if the encoding is not supported
+     */
+    static ContentDecoder forEncoding(String encoding) {
+        if (encoding == null) {
+            return null;
+        }
+        switch (encoding.trim().toLowerCase()) {
+            case "gzip":
+            case "x-gzip":
+                return new ContentDecoder(true);
+            case "deflate":
+                return new ContentDecoder(false);
+            default:
+                return null;
+        }
+    }
+
+    private ContentDecoder(boolean gzip) {
+        this.gzip = gzip;
+        if (gzip) {
+            startMember();
+        } else {
+            state = State.BODY;
+        }
+    }
+
+    /**
+     * @return the number of the encoded bytes consumed, where the encoded content should be continued from
+     */
+    long getInputPosition() {
+        return inputPosition;
+    }
+
+    /**
+     * @return true if the encoded content is complete
+     */
+    boolean isFinished() {
+        return state == State.FINISHED || (members > 0 && state == State.HEADER && fieldRead == 0);
+    }
+
+    /**
+     * @throws EOFException if the encoded content is not complete
+     */
+    void checkFinished() throws EOFException {
+        if (!isFinished()) {
+            throw new EOFException("The connection was closed before the encoded content was finished");
+        }
+    }
+
+    /**
+     * Decodes the encoded bytes, passing the decoded bytes to the sink
+     *
+     * @throws ZipException if the content is malformed
+     */
+    void decode(byte[] buf, int off, int len, Sink sink) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            switch (state) {
+                case HEADER:
+                case EXTRA_LENGTH:
+                case EXTRA:
+                case HEADER_CRC:
+                case TRAILER:
+                    off = readField(buf, off, end);
+                    break;
+                case NAME:
+                case COMMENT:
+                    off = skipZeroTerminated(buf, off, end);
+                    break;
+                case BODY:
+                    off = inflate(buf, off, end, sink);
+                    break;
+                case FINISHED:
+                    // Nothing but padding should follow the deflate content
+                    inputPosition += end - off;
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Releases the native memory of the decoder
+     */
+    void end() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private void startMember() {
+        state = State.HEADER;
+        startField(10);
+    }
+
+    private void startField(int length) {
+        fieldLength = length;
+        fieldRead = 0;
+    }
+
+    private int readField(byte[] buf, int off, int end) throws IOException {
+        int len = Math.min(fieldLength - fieldRead, end - off);
+        System.arraycopy(buf, off, field, fieldRead, len);
+        fieldRead += len;
+        inputPosition += len;
+        if (fieldRead == fieldLength) {
+            fieldComplete();
+        }
+        return off + len;
+    }
+
+    private int skipZeroTerminated(byte[] buf, int off, int end) {
+        while (off < end) {
+            inputPosition++;
+            if (buf[off++] == 0) {
+                nextHeaderField(state);
+                break;
+            }
+        }
+        return off;
+    }
+
+    private void fieldComplete() throws IOException {
+        switch (state) {
+            case HEADER:
+                if (littleEndian(0, 2) != GZIP_MAGIC || field[2] != 8) {
+                    throw new ZipException("Not in the gzip format");
+                }
+                flags = field[3] & 0xff;
+                nextHeaderField(State.HEADER);
+                break;
+            case EXTRA_LENGTH:
+                state = State.EXTRA;
+                extraRemaining = (int) littleEndian(0, 2);
+                continueExtra();
+                break;
+            case EXTRA:
+                continueExtra();
+                break;
+            case HEADER_CRC:
+                startBody();
+                break;
+            case TRAILER:
+                if (littleEndian(0, 4) != crc.getValue()
+                        || littleEndian(4, 4) != (inflater.getBytesWritten() & 0xffffffffL)) {
+                    throw new ZipException("Corrupt gzip trailer");
+                }
+                end();
+                members++;
+                // Another member might follow
+                startMember();
+                break;
+            default:
+                throw new IllegalStateException(state.toString());
+        }
+    }
+
+    /**
+     * The extra field is skipped in pieces fitting the field buffer
+     */
+    private void continueExtra() {
+        if (extraRemaining == 0) {
+            nextHeaderField(State.EXTRA);
+        } else {
+            int len = Math.min(extraRemaining, field.length);
+            extraRemaining -= len;
+            startField(len);
+        }
+    }
+
+    /**
+     * Moves to the next optional header field present in the member, or to the deflate body
+     */
+    private void nextHeaderField(State after) {
+        if (after.compareTo(State.EXTRA_LENGTH) < 0 && (flags & FEXTRA) != 0) {
+            state = State.EXTRA_LENGTH;
+            startField(2);
+        } else if (after.compareTo(State.NAME) < 0 && (flags & FNAME) != 0) {
+            state = State.NAME;
+        } else if (after.compareTo(State.COMMENT) < 0 && (flags & FCOMMENT) != 0) {
+            state = State.COMMENT;
+        } else if (after.compareTo(State.HEADER_CRC) < 0 && (flags & FHCRC) != 0) {
+            state = State.HEADER_CRC;
+            startField(2);
+        } else {
+            startBody();
+        }
+    }
+
+    private void startBody() {
+        state = State.BODY;
+        crc.reset();
+    }
+
+    private int inflate(byte[] buf, int off, int end, Sink sink) throws IOException {
+        if (inflater == null) {
+            // The zlib wrapper is optional for the deflate encoding
+            inflater = new Inflater(gzip || !hasZlibHeader(buf[off], off + 1 < end ? buf[off + 1] : 0));
+        }
+        inflater.setInput(buf, off, end - off);
+        try {
+            while (!inflater.finished() && !inflater.needsInput()) {
+                int len = inflater.inflate(output);
+                if (len > 0) {
+                    crc.update(output, 0, len);
+                    sink.write(output, 0, len);
+                } else if (inflater.needsDictionary()) {
+                    throw new ZipException("The deflate content requires a preset dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+        int consumed = end - off - inflater.getRemaining();
+        inputPosition += consumed;
+        if (inflater.finished()) {
+            if (gzip) {
+                state = State.TRAILER;
+                startField(8);
+            } else {
+                end();
+                state = State.FINISHED;
+            }
+        }
+        return off + consumed;
+    }
+
+    private static boolean hasZlibHeader(byte cmf, byte flg) {
+        return (cmf & 0x0f) == 8 && (((cmf & 0xff) << 8) | (flg & 0xff)) % 31 == 0;
+    }
+
+    private long littleEndian(int off, int len) {
+        long value = 0;
+        for (int i = len - 1; i >= 0; i--) {
+            value = (value << 8) | (field[off + i] & 0xff);
+        }
+        return value;
+    }
+}
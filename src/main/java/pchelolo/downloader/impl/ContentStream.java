@@ -0,0 +1,89 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A stream reading the content while it is being downloaded.
+ * <p/>
+ * Follows the downloaded position of the {@link DownloadResponseImpl}: blocks while there are
+ * no new bytes and ends once the download is finished. The downloading thread waits for the stream
+ * if it lags too much behind, so an abandoned stream should be closed.
+ */
+class ContentStream extends InputStream {
+
+    private final DownloadResponseImpl response;
+    private ReadableByteChannel channel;
+    private volatile long position = 0;
+    private boolean closed = false;
+
+    ContentStream(DownloadResponseImpl response) {
+        this.response = response;
+    }
+
+    /**
+     * @return the number of bytes already read from the stream
+     */
+    long getPosition() {
+        return position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        long available;
+        try {
+            available = response.awaitContent(position);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the content", e);
+        }
+        if (available == -1) {
+            return -1;
+        }
+        if (channel == null) {
+            // The storage is known once there is some content
+            channel = response.getStorage().openChannel();
+        }
+        ByteBuffer dst = ByteBuffer.wrap(b, off, (int) Math.min(len, available - position));
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) == -1) {
+                throw new IOException("The downloaded content is no longer available");
+            }
+        }
+        int read = dst.position() - off;
+        position += read;
+        response.contentConsumed();
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, response.getContentPosition() - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        response.removeContentStream(this);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -1,49 +1,348 @@
 package pchelolo.downloader.impl;
 
+import pchelolo.downloader.DownloadBatch;
+import pchelolo.downloader.DownloadMetrics;
 import pchelolo.downloader.DownloadRequest;
 import pchelolo.downloader.DownloadResponse;
+import pchelolo.downloader.MirrorResolver;
+import pchelolo.downloader.ProtocolProvider;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceLoader;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Default implementation of the download manager.
- * Uses a cachedThreadPool as an executor
+ * Uses a cachedThreadPool as an executor unless another executor is specified
  */
 public class DefaultDownloadManager implements DownloadManagerImpl {
 
-    private final ExecutorService controller = Executors.newCachedThreadPool();
+    private final ExecutorService controller;
+    private final DownloadScheduler scheduler;
+    private final BufferPool bufferPool = new BufferPool();
+    private final DownloadJournal journal;
+    private final DownloadCache cache;
+    private final DownloadMetrics metrics;
+    private final BandwidthLimiter limiter = new BandwidthLimiter();
+    // The thread is only started by the first retry
+    private final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "download-retry");
+            // The downloads are awaited by the callers, the timer should not keep the JVM running
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final DownloadCoalescer coalescer;
+    // Shared, as both the TLS sessions and the idle connections are only reused with the same factory
+    private volatile SSLSocketFactory sslSocketFactory;
+    private final List<ProtocolProvider> providers = loadProtocolProviders();
+    private volatile MirrorResolver mirrorResolver;
+
+    public DefaultDownloadManager() {
+        this(Executors.newCachedThreadPool());
+    }
+
+    /**
+     * @param controller an executor running the download tasks, a thread is blocked per running download
+     */
+    public DefaultDownloadManager(ExecutorService controller) {
+        this(new Builder().setExecutor(controller), null, null);
+    }
+
+    /**
+     * @param journal the journal recording the progress of the downloads or {@code null}
+     * @param cache the cache of the content of the in-memory downloads or {@code null}
+     */
+    private DefaultDownloadManager(Builder builder, DownloadJournal journal, DownloadCache cache) {
+        this.controller = builder.controller;
+        this.scheduler = new DownloadScheduler(controller, builder.maxConcurrentDownloads, builder.maxDownloadsPerHost,
+                builder.metrics);
+        this.journal = journal;
+        this.cache = cache;
+        this.metrics = builder.metrics;
+        this.coalescer = builder.isCoalescing ? new DownloadCoalescer(this) : null;
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task.
+     * <p/>
+     * A blocked virtual thread does not hold a platform thread, so the number of
+     * concurrent downloads is not limited by the number of platform threads.
+     *
+     * @throws UnsupportedOperationException if the runtime does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Looked up reflectively to keep the library running on older runtimes
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Failed to create a virtual thread executor", e);
+        }
+    }
 
     @Override
     public void resumeDownload(DownloadRequest request, DownloadResponseImpl response) {
-        controller.execute(createDownloadTask(request, response));
+        scheduler.schedule(request, response, createDownloadTask(request, response));
+    }
+
+    /**
+     * Discovers the protocol providers on the class path, the built-in ones included
+     */
+    private static List<ProtocolProvider> loadProtocolProviders() {
+        List<ProtocolProvider> providers = new ArrayList<>();
+        for (ProtocolProvider provider : ServiceLoader.load(ProtocolProvider.class,
+                DefaultDownloadManager.class.getClassLoader())) {
+            providers.add(provider);
+        }
+        return providers;
+    }
+
+    /**
+     * @return the provider of the protocol or {@code null} if there is none
+     */
+    private ProtocolProvider findProvider(String protocol) {
+        for (ProtocolProvider provider : providers) {
+            if (provider.supports(protocol)) {
+                return provider;
+            }
+        }
+        return null;
     }
 
     private Runnable createDownloadTask(DownloadRequest request, DownloadResponseImpl response) {
+        MirrorResolver mirrorResolver = this.mirrorResolver;
+        if (mirrorResolver != null) {
+            URL mirror = mirrorResolver.resolve(request.getUrl());
+            ProtocolProvider provider = mirror == null ? null : findProvider(mirror.getProtocol().toLowerCase());
+            if (provider != null) {
+                return new ProviderDownloadTask(provider, mirror, request, response, journal, metrics, limiter,
+                        retryTimer);
+            }
+        }
         String protocol = request.getUrl().getProtocol().toLowerCase();
         switch (protocol) {
             case "http":
-                return new HttpDownloadTask(request, response);
+            case "https":
+                HttpDownloadTask task = "https".equals(protocol)
+                        ? new HttpsDownloadTask(request, response, bufferPool, journal, metrics, limiter, retryTimer,
+                                sslSocketFactory)
+                        : new HttpDownloadTask(request, response, bufferPool, journal, metrics, limiter, retryTimer);
+                if (request.getSegments() > 1) {
+                    // The segments are limited per host along with the rest of the downloads
+                    return new SegmentedDownloadTask(task, scheduler.workerExecutor(request));
+                }
+                // Only the content kept in memory could be served from the cache without copying
+                if (cache != null && request.getDestination() == null) {
+                    return new CachedDownloadTask(task, cache);
+                }
+                return task;
             default:
-                throw new UnsupportedOperationException("Protocol " + protocol + " is not supported");
+                ProtocolProvider provider = findProvider(protocol);
+                if (provider == null) {
+                    throw new UnsupportedOperationException("Protocol " + protocol + " is not supported");
+                }
+                return new ProviderDownloadTask(provider, request.getUrl(), request, response, journal, metrics,
+                        limiter, retryTimer);
         }
     }
 
     // ------------- PUBLIC API ---------- //
 
+    /**
+     * {@inheritDoc}
+     *
+     * If the manager is coalescing, the identical requests for the content kept in memory made
+     * while the download is in flight share the download, each of them gets its own response
+     */
     @Override
     public DownloadResponse download(DownloadRequest request) {
+        if (coalescer != null && DownloadCoalescer.isCoalescable(request)) {
+            return coalescer.download(request);
+        }
         DownloadResponseImpl response = new DownloadResponseImpl(request, this);
         resumeDownload(request, response);
         return response;
     }
 
+    @Override
+    public DownloadBatch downloadAll(Iterator<? extends DownloadRequest> requests, int maxInFlight) {
+        return new DownloadBatchImpl(this, requests, maxInFlight);
+    }
+
+    @Override
+    public DownloadBatch downloadAll(Iterable<? extends DownloadRequest> requests, int maxInFlight) {
+        return downloadAll(requests.iterator(), maxInFlight);
+    }
+
     /**
-     * Shuts down a thread pool used to run download tasks
+     * {@inheritDoc}
+     *
+     * A throttled download waits between the reads on a condition rather than spinning,
+     * on a virtual thread it does not hold a platform thread meanwhile
+     */
+    @Override
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        limiter.setMaxBytesPerSecond(maxBytesPerSecond);
+    }
+
+    @Override
+    public void setMaxBytesPerSecondPerHost(String host, long maxBytesPerSecond) {
+        limiter.setMaxBytesPerSecondPerHost(host, maxBytesPerSecond);
+    }
+
+    @Override
+    public void setSSLContext(SSLContext sslContext) {
+        this.sslSocketFactory = sslContext.getSocketFactory();
+    }
+
+    @Override
+    public void setMirrorResolver(MirrorResolver mirrorResolver) {
+        this.mirrorResolver = mirrorResolver;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The restored downloads are continued from the bytes committed to the destination files
+     */
+    @Override
+    public List<DownloadResponse> recover() throws IOException {
+        List<DownloadResponse> responses = new ArrayList<>();
+        if (journal == null) {
+            return responses;
+        }
+        for (DownloadResponseImpl response : journal.recover(this)) {
+            if (response.getStatus() != DownloadResponse.Status.FINISHED) {
+                resumeDownload(response.getRequest(), response);
+            }
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    /**
+     * Shuts down a thread pool used to run download tasks.
+     * The progress of the downloads is flushed to the journal, if any.
+     * The downloads waiting to be retried fail once their backoff has passed
      * @throws Exception
      */
     @Override
     public void close() throws Exception {
         controller.shutdown();
+        retryTimer.shutdown();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Configures a {@link DefaultDownloadManager}, only the options which are set differ from the defaults:
+     * a cached thread pool, no limits of the running downloads, no journal, no cache, no metrics
+     * and no sharing of the downloads.
+     * <p/>
+     * <pre>
+     *  DownloadManager manager = new DefaultDownloadManager.Builder()
+     *          .setLimits(8, 2)
+     *          .setJournalDirectory(journalDirectory)
+     *          .build();
+     * </pre>
+     */
+    public static class Builder {
+
+        private ExecutorService controller;
+        private int maxConcurrentDownloads = Integer.MAX_VALUE;
+        private int maxDownloadsPerHost    = Integer.MAX_VALUE;
+        private Path journalDirectory;
+        private Path cacheDirectory;
+        private long maxCacheSize;
+        private DownloadMetrics metrics    = NoDownloadMetrics.INSTANCE;
+        private boolean isCoalescing       = false;
+
+        /**
+         * @param controller an executor running the download tasks, a thread is blocked per running download
+         */
+        public Builder setExecutor(ExecutorService controller) {
+            this.controller = controller;
+            return this;
+        }
+
+        /**
+         * @param maxConcurrentDownloads the maximum number of downloads running at once, the rest are queued
+         * @param maxDownloadsPerHost the maximum number of downloads from the same host running at once
+         */
+        public Builder setLimits(int maxConcurrentDownloads, int maxDownloadsPerHost) {
+            if (maxConcurrentDownloads < 1 || maxDownloadsPerHost < 1) {
+                throw new IllegalArgumentException("At least one download should be allowed to run");
+            }
+            this.maxConcurrentDownloads = maxConcurrentDownloads;
+            this.maxDownloadsPerHost = maxDownloadsPerHost;
+            return this;
+        }
+
+        /**
+         * @param journalDirectory the directory recording the progress of the downloads to files,
+         *                         so that they could be {@link #recover() recovered} after a restart
+         */
+        public Builder setJournalDirectory(Path journalDirectory) {
+            this.journalDirectory = journalDirectory;
+            return this;
+        }
+
+        /**
+         * @param cacheDirectory the directory caching the content of the in-memory downloads
+         * @param maxCacheSize the maximum total size of the cached content in bytes
+         */
+        public Builder setCache(Path cacheDirectory, long maxCacheSize) {
+            this.cacheDirectory = cacheDirectory;
+            this.maxCacheSize = maxCacheSize;
+            return this;
+        }
+
+        /**
+         * @param metrics receives the measurements of the downloads, e.g. a {@link StandardDownloadMetrics}
+         */
+        public Builder setMetrics(DownloadMetrics metrics) {
+            if (metrics == null) {
+                throw new IllegalArgumentException("The metrics are required, use the default to not measure");
+            }
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * @param isCoalescing true to share the download between the identical requests for the content
+         *                     kept in memory made while it is in flight
+         */
+        public Builder setCoalescing(boolean isCoalescing) {
+            this.isCoalescing = isCoalescing;
+            return this;
+        }
+
+        /**
+         * @throws IOException if failed to create the journal or the cache directory
+         */
+        public DefaultDownloadManager build() throws IOException {
+            if (controller == null) {
+                controller = Executors.newCachedThreadPool();
+            }
+            DownloadJournal journal = journalDirectory == null ? null : new DownloadJournal(journalDirectory);
+            DownloadCache cache = cacheDirectory == null ? null : new DownloadCache(cacheDirectory, maxCacheSize);
+            return new DefaultDownloadManager(this, journal, cache);
+        }
     }
 }
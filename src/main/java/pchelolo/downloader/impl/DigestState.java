@@ -0,0 +1,144 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.ContentDigest;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+/**
+ * The digest of a download, computed incrementally as the content is appended to the storage.
+ * <p/>
+ * The state is kept by the response, so it survives pauses, retries and ranged continuations
+ * and is only reset if the download starts over with a new storage.
+ * The bytes which do not continue the digested ones, e.g. the segments of a parallel download
+ * or the bytes continuing a download recovered from the journal, are skipped and read back
+ * from the storage once the download is complete.
+ * <p/>
+ * Updated by a single downloading thread at a time.
+ */
+class DigestState {
+
+    private static final int CATCH_UP_CHUNK = 65536;
+
+    private final ContentDigest expected;
+    private final MessageDigest digest;
+    private final Checksum checksum;
+
+    private DownloadStorage storage;
+    private long position = 0;
+
+    /**
+     * @throws UnsupportedOperationException if the algorithm is not available in the runtime
+     */
+    DigestState(ContentDigest expected) {
+        this.expected = expected;
+        if (expected.getAlgorithm() == ContentDigest.Algorithm.CRC32C) {
+            this.digest = null;
+            this.checksum = newCrc32c();
+        } else {
+            try {
+                this.digest = MessageDigest.getInstance(expected.getAlgorithm().getName());
+            } catch (NoSuchAlgorithmException e) {
+                throw new UnsupportedOperationException("Digest " + expected.getAlgorithm() + " is not supported", e);
+            }
+            this.checksum = null;
+        }
+    }
+
+    private static Checksum newCrc32c() {
+        try {
+            // Looked up reflectively to keep the library running on older runtimes
+            return (Checksum) Class.forName("java.util.zip.CRC32C").getConstructor().newInstance();
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            throw new UnsupportedOperationException("CRC32C requires Java 9 or later", e);
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Failed to create a CRC32C checksum", e);
+        }
+    }
+
+    /**
+     * Digests the bytes just written to the storage
+     *
+     * @param storage the storage the bytes were written to, a new one restarts the digest
+     * @param offset the position of the bytes in the content
+     */
+    void update(DownloadStorage storage, long offset, byte[] buf, int off, int len) {
+        if (storage != this.storage) {
+            reset(storage);
+        }
+        if (offset != position) {
+            // Caught up once the download is complete
+            return;
+        }
+        digest(buf, off, len);
+    }
+
+    /**
+     * Completes the digest with the stored bytes not digested yet and compares it with the expected one
+     *
+     * @throws IOException if the digest does not match or failed to read the storage
+     */
+    void verify(DownloadStorage storage) throws IOException {
+        if (storage != this.storage) {
+            reset(storage);
+        }
+        if (position < storage.size()) {
+            try (ReadableByteChannel channel = storage.openChannel()) {
+                ByteBuffer buf = ByteBuffer.allocate(CATCH_UP_CHUNK);
+                long skipped = 0;
+                while (channel.read(buf) != -1) {
+                    buf.flip();
+                    if (skipped < position) {
+                        // Already digested
+                        int skip = (int) Math.min(buf.remaining(), position - skipped);
+                        buf.position(skip);
+                        skipped += skip;
+                    }
+                    digest(buf.array(), buf.position(), buf.remaining());
+                    buf.clear();
+                }
+            }
+        }
+        String actual = toHex(digest != null ? digest.digest() : toBytes(checksum.getValue()));
+        if (!actual.equals(expected.getExpectedValue())) {
+            throw new IOException("The content does not match the expected " + expected.getAlgorithm().getName()
+                    + " digest " + expected.getExpectedValue() + ", was " + actual);
+        }
+    }
+
+    private void digest(byte[] buf, int off, int len) {
+        if (digest != null) {
+            digest.update(buf, off, len);
+        } else {
+            checksum.update(buf, off, len);
+        }
+        position += len;
+    }
+
+    private void reset(DownloadStorage storage) {
+        this.storage = storage;
+        this.position = 0;
+        if (digest != null) {
+            digest.reset();
+        } else {
+            checksum.reset();
+        }
+    }
+
+    private static byte[] toBytes(long crc) {
+        return new byte[] {(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc};
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
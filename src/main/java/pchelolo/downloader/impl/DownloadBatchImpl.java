@@ -0,0 +1,329 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadBatch;
+import pchelolo.downloader.DownloadManager;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the requests of a batch through a download manager keeping a bounded number of them in flight.
+ * <p/>
+ * The requests are taken from the iterator by the threads finishing the downloads, one at a time,
+ * so the iterator does not need to be thread safe, but it should not block for long.
+ * The downloads are started outside of the lock, their listeners might call back into the batch.
+ */
+class DownloadBatchImpl implements DownloadBatch, DownloadResponse.StatusListener {
+
+    private final ReentrantLock LOCK = new ReentrantLock();
+    private final Condition STATE_CHANGED = LOCK.newCondition();
+
+    private final DownloadManager manager;
+    private final int maxInFlight;
+
+    // Guarded by the LOCK
+    private final Iterator<? extends DownloadRequest> requests;
+    private final Set<DownloadResponse> inFlight = new HashSet<>();
+    private final Queue<DownloadResponse> completed = new ArrayDeque<>();
+    private final List<DownloadRequest> rejected = new ArrayList<>();
+    // The requests taken from the iterator whose downloads are not over yet
+    private int running = 0;
+    private int submittedCount = 0;
+    private int completedCount = 0;
+    private long completedBytes = 0;
+    private boolean exhausted = false;
+    private boolean paused = false;
+    private boolean cancelled = false;
+
+    /**
+     * Creates a batch and starts the first downloads
+     *
+     * @param manager the manager running the downloads
+     * @param requests the requests of the batch, taken lazily
+     * @param maxInFlight the maximum number of the downloads of the batch running at once
+     */
+    DownloadBatchImpl(DownloadManager manager, Iterator<? extends DownloadRequest> requests, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one download should be in flight");
+        }
+        this.manager = manager;
+        this.requests = requests;
+        this.maxInFlight = maxInFlight;
+        submitMore();
+    }
+
+    /**
+     * Takes the requests from the iterator and starts their downloads while there is a capacity
+     */
+    private void submitMore() {
+        while (true) {
+            DownloadRequest request;
+            LOCK.lock();
+            try {
+                if (paused || cancelled || exhausted || running >= maxInFlight) {
+                    return;
+                }
+                if (!requests.hasNext()) {
+                    exhausted = true;
+                    STATE_CHANGED.signalAll();
+                    return;
+                }
+                request = requests.next();
+                running++;
+            } finally {
+                LOCK.unlock();
+            }
+
+            DownloadResponse response;
+            try {
+                response = manager.download(request);
+            } catch (UnsupportedOperationException e) {
+                LOCK.lock();
+                try {
+                    running--;
+                    rejected.add(request);
+                    STATE_CHANGED.signalAll();
+                } finally {
+                    LOCK.unlock();
+                }
+                continue;
+            }
+
+            boolean pause;
+            boolean cancel;
+            LOCK.lock();
+            try {
+                submittedCount++;
+                inFlight.add(response);
+                pause = paused;
+                cancel = cancelled;
+            } finally {
+                LOCK.unlock();
+            }
+            response.addStatusListener(this);
+            if (cancel) {
+                cancel(response);
+            } else if (pause) {
+                pause(response);
+            }
+            if (isOver(response.getStatus())) {
+                // Over before the listener was added, not recursing to keep the stack flat
+                complete(response);
+            }
+        }
+    }
+
+    /**
+     * Hands out the download which is over, once
+     *
+     * @return false if the download was already handed out
+     */
+    private boolean complete(DownloadResponse response) {
+        LOCK.lock();
+        try {
+            if (!inFlight.remove(response)) {
+                return false;
+            }
+            running--;
+            completedCount++;
+            completedBytes += response.getBytesDownloaded();
+            completed.add(response);
+            STATE_CHANGED.signalAll();
+            return true;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private static boolean isOver(DownloadResponse.Status status) {
+        return status == DownloadResponse.Status.FINISHED
+                || status == DownloadResponse.Status.FAILED
+                || status == DownloadResponse.Status.CANCELLED;
+    }
+
+    private List<DownloadResponse> getInFlight() {
+        LOCK.lock();
+        try {
+            return new ArrayList<>(inFlight);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private static void pause(DownloadResponse response) {
+        try {
+            response.pause();
+        } catch (IllegalStateException e) {
+            // Over or already paused
+        }
+    }
+
+    private static void cancel(DownloadResponse response) {
+        try {
+            response.cancel();
+        } catch (IllegalStateException e) {
+            // Over in the meantime
+        }
+    }
+
+    @Override
+    public void statusChanged(DownloadResponse response, DownloadResponse.Status oldStatus,
+                              DownloadResponse.Status newStatus) {
+        if (isOver(newStatus) && complete(response)) {
+            submitMore();
+        }
+    }
+
+    // ------------ PUBLIC API --------------- //
+
+    @Override
+    public int getSubmitted() {
+        LOCK.lock();
+        try {
+            return submittedCount;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    @Override
+    public int getCompleted() {
+        LOCK.lock();
+        try {
+            return completedCount;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        List<DownloadResponse> responses;
+        long bytes;
+        LOCK.lock();
+        try {
+            responses = new ArrayList<>(inFlight);
+            bytes = completedBytes;
+        } finally {
+            LOCK.unlock();
+        }
+        // The progress of the responses is read without locking
+        for (DownloadResponse response : responses) {
+            bytes += response.getBytesDownloaded();
+        }
+        return bytes;
+    }
+
+    @Override
+    public List<DownloadRequest> getRejected() {
+        LOCK.lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<>(rejected));
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        LOCK.lock();
+        try {
+            return isDrained() && completed.isEmpty();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * @return true if no more downloads would be over, called under the LOCK
+     */
+    private boolean isDrained() {
+        return (exhausted || cancelled) && running == 0;
+    }
+
+    @Override
+    public DownloadResponse takeCompleted() throws InterruptedException {
+        LOCK.lock();
+        try {
+            while (completed.isEmpty() && !isDrained()) {
+                STATE_CHANGED.await();
+            }
+            return completed.poll();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    @Override
+    public DownloadResponse pollCompleted(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        LOCK.lock();
+        try {
+            long nanos = timeUnit.toNanos(timeout);
+            while (completed.isEmpty() && !isDrained()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = STATE_CHANGED.awaitNanos(nanos);
+            }
+            return completed.poll();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    @Override
+    public void pause() {
+        LOCK.lock();
+        try {
+            paused = true;
+        } finally {
+            LOCK.unlock();
+        }
+        for (DownloadResponse response : getInFlight()) {
+            pause(response);
+        }
+    }
+
+    @Override
+    public void resume() {
+        LOCK.lock();
+        try {
+            paused = false;
+        } finally {
+            LOCK.unlock();
+        }
+        for (DownloadResponse response : getInFlight()) {
+            try {
+                response.resume();
+            } catch (IllegalStateException e) {
+                // Not paused
+            }
+        }
+        submitMore();
+    }
+
+    @Override
+    public void cancel() {
+        LOCK.lock();
+        try {
+            cancelled = true;
+            STATE_CHANGED.signalAll();
+        } finally {
+            LOCK.unlock();
+        }
+        for (DownloadResponse response : getInFlight()) {
+            cancel(response);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the completed downloads on disk, so that the same content is not downloaded again
+ * as long as the server confirms it has not changed.
+ * <p/>
+ * The bodies are content-addressed: a body is stored once in a file named by its SHA-256 digest,
+ * however many URLs it was downloaded from. Each URL has an entry with the validators sent by the server
+ * (ETag and Last-Modified) and the digest of the body.
+ * The least recently used entries are evicted once the total size of the bodies exceeds the budget.
+ * <p/>
+ * Thread safe.
+ */
+class DownloadCache {
+
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int COPY_BUF_SIZE = 65536;
+
+    private final ReentrantLock LOCK = new ReentrantLock();
+
+    private final Path directory;
+    private final long maxSize;
+    // In the access order, the eldest entry is evicted first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> bodyReferences = new HashMap<>();
+    private final Map<String, Long> bodySizes = new HashMap<>();
+    private long size = 0;
+
+    /**
+     * A cached version of a content
+     */
+    static class Entry {
+
+        private final String url;
+        private final String body;
+        private final long length;
+        private final String eTag;
+        private final String lastModified;
+
+        Entry(String url, String body, long length, String eTag, String lastModified) {
+            this.url = url;
+            this.body = body;
+            this.length = length;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the ETag of the content or {@code null}
+         */
+        String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return the Last-Modified date of the content or {@code null}
+         */
+        String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Loads the entries stored by the previous instances
+     *
+     * @param directory the directory keeping the cache, created if it does not exist
+     * @param maxSize the maximum total size of the cached bodies in bytes
+     * @throws IOException if failed to read the directory
+     */
+    DownloadCache(Path directory, long maxSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxSize = maxSize;
+        List<Path> entryFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(ENTRY_SUFFIX)) {
+                    entryFiles.add(file);
+                }
+            }
+        }
+        // The entry files are touched on access, restore the access order
+        final Map<Path, FileTime> accessTimes = new HashMap<>();
+        for (Path file : entryFiles) {
+            accessTimes.put(file, Files.getLastModifiedTime(file));
+        }
+        Collections.sort(entryFiles, new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                return accessTimes.get(a).compareTo(accessTimes.get(b));
+            }
+        });
+        for (Path file : entryFiles) {
+            Entry entry = readEntry(file);
+            if (entry == null || !Files.isRegularFile(bodyFile(entry.body))) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            entries.put(entry.url, entry);
+            reference(entry);
+        }
+        evict();
+    }
+
+    /**
+     * Looks up the cached version of the content
+     *
+     * @return the entry or {@code null} if the content is not cached
+     */
+    Entry get(String url) {
+        LOCK.lock();
+        try {
+            return entries.get(url);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Maps the cached body into memory, marking the entry as recently used
+     *
+     * @throws IOException if the body was evicted or failed to be read
+     */
+    DownloadStorage open(Entry entry) throws IOException {
+        ByteBuffer body;
+        try (FileChannel channel = FileChannel.open(bodyFile(entry.body), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed and even after the file is evicted
+            body = channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.length);
+        }
+        try {
+            Files.setLastModifiedTime(entryFile(entry.url), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only the order of the eviction after a restart is affected
+        }
+        return new CachedStorage(body);
+    }
+
+    /**
+     * Stores a completed download, replacing the previous version of the content
+     *
+     * @param storage the storage of the completed download
+     * @throws IOException if failed to store the content
+     */
+    void put(String url, String eTag, String lastModified, DownloadStorage storage) throws IOException {
+        long length = storage.size();
+        if (length > Integer.MAX_VALUE || length > maxSize) {
+            // Could not be mapped or would evict everything
+            return;
+        }
+        Path tmp = Files.createTempFile(directory, "body", TMP_SUFFIX);
+        String body;
+        try {
+            body = copy(storage, tmp);
+            try {
+                Files.move(tmp, bodyFile(body), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // The same content is already cached for another URL
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        Entry entry = new Entry(url, body, length, eTag, lastModified);
+        LOCK.lock();
+        try {
+            writeEntry(entry);
+            // Referenced first, the previous version might have the same body
+            reference(entry);
+            Entry previous = entries.put(url, entry);
+            if (previous != null) {
+                release(previous);
+            }
+            evict();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Copies the stored bytes to the file
+     *
+     * @return the hex SHA-256 digest of the bytes
+     */
+    private static String copy(DownloadStorage storage, Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (ReadableByteChannel in = storage.openChannel();
+             FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocate(COPY_BUF_SIZE);
+            while (in.read(buf) != -1) {
+                buf.flip();
+                digest.update(buf.array(), 0, buf.limit());
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                buf.clear();
+            }
+            out.force(false);
+        }
+        return toHex(digest.digest());
+    }
+
+    private void reference(Entry entry) {
+        Integer references = bodyReferences.get(entry.body);
+        if (references == null) {
+            bodyReferences.put(entry.body, 1);
+            bodySizes.put(entry.body, entry.length);
+            size += entry.length;
+        } else {
+            bodyReferences.put(entry.body, references + 1);
+        }
+    }
+
+    /**
+     * Deletes the body once no entry refers to it
+     */
+    private void release(Entry entry) {
+        int references = bodyReferences.get(entry.body) - 1;
+        if (references > 0) {
+            bodyReferences.put(entry.body, references);
+            return;
+        }
+        bodyReferences.remove(entry.body);
+        size -= bodySizes.remove(entry.body);
+        try {
+            Files.deleteIfExists(bodyFile(entry.body));
+        } catch (IOException e) {
+            // Left on disk, but not counted anymore
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            try {
+                Files.deleteIfExists(entryFile(entry.url));
+            } catch (IOException e) {
+                // Dropped on the next start, as its body is missing
+            }
+            release(entry);
+        }
+    }
+
+    private void writeEntry(Entry entry) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", entry.url);
+        properties.setProperty("body", entry.body);
+        properties.setProperty("length", Long.toString(entry.length));
+        if (entry.eTag != null) {
+            properties.setProperty("eTag", entry.eTag);
+        }
+        if (entry.lastModified != null) {
+            properties.setProperty("lastModified", entry.lastModified);
+        }
+        Path tmp = Files.createTempFile(directory, "entry", TMP_SUFFIX);
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                properties.store(out, null);
+            }
+            Files.move(tmp, entryFile(entry.url), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return the entry or {@code null} if the file is not a valid entry
+     */
+    private static Entry readEntry(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        String url = properties.getProperty("url");
+        String body = properties.getProperty("body");
+        String length = properties.getProperty("length");
+        if (url == null || body == null || length == null) {
+            return null;
+        }
+        try {
+            return new Entry(url, body, Long.parseLong(length),
+                    properties.getProperty("eTag"), properties.getProperty("lastModified"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Path entryFile(String url) {
+        return directory.resolve(digest(url) + ENTRY_SUFFIX);
+    }
+
+    private Path bodyFile(String body) {
+        return directory.resolve(body + BODY_SUFFIX);
+    }
+
+    private static String digest(String url) {
+        return toHex(newDigest().digest(url.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
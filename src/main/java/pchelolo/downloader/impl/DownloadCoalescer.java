@@ -0,0 +1,255 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Deduplicates the concurrent downloads of the same content.
+ * <p/>
+ * The identical requests made while a download is in flight share the download: a single task,
+ * connection and storage. Each caller gets its own {@link CoalescedDownloadResponse} handle.
+ * The shared download is paused only when all its handles are paused and cancelled only when
+ * all its handles are cancelled. Once the download is over, the following requests start a new one.
+ * <p/>
+ * Only the downloads kept in memory are shared. The requests are identical if they have the same URL,
+ * redirect policy and number of segments, the rest of the options of the first request apply.
+ */
+class DownloadCoalescer {
+
+    private final ReentrantLock LOCK = new ReentrantLock();
+    private final Condition STATE_CHANGED = LOCK.newCondition();
+
+    private final DownloadManagerImpl manager;
+    private final Map<String, SharedDownload> inFlight = new HashMap<>();
+
+    DownloadCoalescer(DownloadManagerImpl manager) {
+        this.manager = manager;
+    }
+
+    static boolean isCoalescable(DownloadRequest request) {
+        return request.getDestination() == null;
+    }
+
+    /**
+     * Joins the download of the identical request in flight or starts a new one
+     *
+     * @throws UnsupportedOperationException if the protocol is not supported
+     */
+    DownloadResponse download(DownloadRequest request) {
+        String key = request.getUrl().toString() + ' ' + request.isFollowsRedirects() + ' ' + request.getSegments()
+                + ' ' + request.getExpectedDigest() + ' ' + request.getCompression();
+        SharedDownload shared;
+        CoalescedDownloadResponse handle;
+        boolean start = false;
+        LOCK.lock();
+        try {
+            shared = inFlight.get(key);
+            if (shared == null) {
+                shared = new SharedDownload(key, new DownloadResponseImpl(request, manager));
+                inFlight.put(key, shared);
+                start = true;
+            }
+            handle = new CoalescedDownloadResponse(this, shared);
+            shared.handles.add(handle);
+            if (!start) {
+                // The download might have been paused by all the other callers
+                reconcile(shared);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+        if (start) {
+            shared.response.addStatusListener(shared);
+            try {
+                manager.resumeDownload(request, shared.response);
+            } catch (RuntimeException e) {
+                LOCK.lock();
+                try {
+                    inFlight.remove(key);
+                } finally {
+                    LOCK.unlock();
+                }
+                throw e;
+            }
+        } else {
+            shared.refreshHandles();
+        }
+        return handle;
+    }
+
+    // ------- Called by the handles ------- //
+
+    void pause(CoalescedDownloadResponse handle) {
+        LOCK.lock();
+        try {
+            DownloadResponse.Status status = handle.getStatus();
+            if (status != DownloadResponse.Status.IN_PROGRESS
+                    && status != DownloadResponse.Status.NOT_STARTED) {
+                throw new IllegalStateException("Only not started or progressing downloads can be paused");
+            }
+            handle.paused = true;
+            reconcile(handle.shared);
+        } finally {
+            LOCK.unlock();
+        }
+        handle.shared.refreshHandles();
+    }
+
+    void resume(CoalescedDownloadResponse handle) {
+        LOCK.lock();
+        try {
+            if (handle.getStatus() != DownloadResponse.Status.PAUSED) {
+                throw new IllegalStateException("Only paused download could be resumed");
+            }
+            handle.paused = false;
+            reconcile(handle.shared);
+        } finally {
+            LOCK.unlock();
+        }
+        handle.shared.refreshHandles();
+    }
+
+    void cancel(CoalescedDownloadResponse handle) {
+        LOCK.lock();
+        try {
+            DownloadResponse.Status status = handle.getStatus();
+            if (status == DownloadResponse.Status.FAILED || status == DownloadResponse.Status.FINISHED) {
+                throw new IllegalStateException("Could not cancel finished or failed download");
+            }
+            if (!handle.cancelled) {
+                handle.cancelled = true;
+                SharedDownload shared = handle.shared;
+                shared.handles.remove(handle);
+                if (shared.handles.isEmpty()) {
+                    // Nobody needs the download anymore
+                    inFlight.remove(shared.key, shared);
+                    try {
+                        shared.response.cancel();
+                    } catch (IllegalStateException e) {
+                        // Finished in the meantime
+                    }
+                } else {
+                    reconcile(shared);
+                }
+                STATE_CHANGED.signalAll();
+            }
+        } finally {
+            LOCK.unlock();
+        }
+        handle.refreshStatus();
+        handle.shared.refreshHandles();
+    }
+
+    /**
+     * Waits for the shared download to be over or the handle to be cancelled
+     *
+     * @return false if the timeout has passed
+     */
+    boolean await(CoalescedDownloadResponse handle, long timeout, TimeUnit timeUnit) throws InterruptedException {
+        LOCK.lock();
+        try {
+            long nanos = timeUnit == null ? 0 : timeUnit.toNanos(timeout);
+            while (!handle.cancelled && !isOver(handle.shared.response.getStatus())) {
+                if (timeUnit == null) {
+                    STATE_CHANGED.await();
+                } else {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = STATE_CHANGED.awaitNanos(nanos);
+                }
+            }
+            return true;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Pauses the shared download if all the handles are paused, resumes it otherwise.
+     * The handles are refreshed by the caller once the lock is released
+     */
+    private void reconcile(SharedDownload shared) {
+        boolean allPaused = true;
+        for (CoalescedDownloadResponse handle : shared.handles) {
+            allPaused &= handle.paused;
+        }
+        DownloadResponse.Status status = shared.response.getStatus();
+        try {
+            if (allPaused && (status == DownloadResponse.Status.NOT_STARTED
+                    || status == DownloadResponse.Status.IN_PROGRESS)) {
+                shared.response.pause();
+            } else if (!allPaused && status == DownloadResponse.Status.PAUSED) {
+                shared.response.resume();
+            }
+        } catch (IllegalStateException e) {
+            // The download is over in the meantime
+        }
+    }
+
+    static boolean isOver(DownloadResponse.Status status) {
+        return status == DownloadResponse.Status.FINISHED
+                || status == DownloadResponse.Status.FAILED
+                || status == DownloadResponse.Status.CANCELLED;
+    }
+
+    /**
+     * A download shared by the handles of the identical requests
+     */
+    class SharedDownload implements DownloadResponse.StatusListener {
+
+        private final String key;
+        final DownloadResponseImpl response;
+        // Guarded by the LOCK of the coalescer
+        private final List<CoalescedDownloadResponse> handles = new ArrayList<>();
+
+        SharedDownload(String key, DownloadResponseImpl response) {
+            this.key = key;
+            this.response = response;
+        }
+
+        @Override
+        public void statusChanged(DownloadResponse response, DownloadResponse.Status oldStatus,
+                                  DownloadResponse.Status newStatus) {
+            boolean isReconciling = LOCK.isHeldByCurrentThread();
+            LOCK.lock();
+            try {
+                if (isOver(newStatus)) {
+                    // The following requests start a new download
+                    inFlight.remove(key, this);
+                    STATE_CHANGED.signalAll();
+                }
+            } finally {
+                LOCK.unlock();
+            }
+            if (!isReconciling) {
+                // Otherwise refreshed once the lock is released, the listeners are not called under the lock
+                refreshHandles();
+            }
+        }
+
+        /**
+         * Delivers the status transitions seen by the handles to their listeners
+         */
+        void refreshHandles() {
+            List<CoalescedDownloadResponse> handles;
+            LOCK.lock();
+            try {
+                handles = new ArrayList<>(this.handles);
+            } finally {
+                LOCK.unlock();
+            }
+            for (CoalescedDownloadResponse handle : handles) {
+                handle.refreshStatus();
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.ContentDigest;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+import pchelolo.downloader.RetryPolicy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records the progress of the downloads to files on disk, so that they could be resumed after a restart.
+ * <p/>
+ * Each download has an entry file in the journal directory with the request, the validator of the content
+ * and the number of bytes committed to the destination file, or the ranges of the content committed
+ * by the segments. A segmented download is restored with new segments filling the gaps between the ranges.
+ * The entries are written in batches by a background thread: the destination files of all the progressing
+ * downloads are synced first, then their entries are replaced atomically, so an entry never claims
+ * more bytes than there are on disk.
+ * <p/>
+ * Only the downloads to a file which could be resumed with a ranged request are recorded.
+ * The entry is removed once the download is over.
+ */
+class DownloadJournal implements AutoCloseable {
+
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final String ENTRY_SUFFIX = ".journal";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final ReentrantLock LOCK = new ReentrantLock();
+    private final ReentrantLock FLUSH_LOCK = new ReentrantLock();
+
+    private final Path directory;
+    private final Map<DownloadResponseImpl, Entry> entries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param directory the directory keeping the entries, created if it does not exist
+     * @throws IOException if failed to create the directory
+     */
+    DownloadJournal(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "download-journal");
+                // Whatever was not flushed is downloaded again after a restart
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts recording a download whose storage has just been prepared.
+     * Does nothing if the download is already recorded and starts over
+     */
+    void register(DownloadRequest request, DownloadResponseImpl response) {
+        if (!entries.containsKey(response)) {
+            register(new Entry(UUID.randomUUID().toString(), request, response));
+        }
+    }
+
+    private void register(final Entry entry) {
+        entries.put(entry.response, entry);
+        entry.response.addStatusListener(new DownloadResponse.StatusListener() {
+            @Override
+            public void statusChanged(DownloadResponse response, DownloadResponse.Status oldStatus,
+                                      DownloadResponse.Status newStatus) {
+                switch (newStatus) {
+                    case FINISHED:
+                    case FAILED:
+                    case CANCELLED:
+                        remove(entry);
+                        break;
+                    default:
+                        // Still could be resumed
+                }
+            }
+        });
+    }
+
+    /**
+     * Restores the downloads recorded in the journal.
+     * <p/>
+     * The restored downloads are not started. A download whose destination file could not be reopened
+     * is restored without any progress and starts over.
+     *
+     * @throws IOException if failed to read the journal directory
+     */
+    List<DownloadResponseImpl> recover(DownloadManagerImpl manager) throws IOException {
+        List<DownloadResponseImpl> responses = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // Left by a crash while writing an entry, the previous version is still valid
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                if (!name.endsWith(ENTRY_SUFFIX)) {
+                    continue;
+                }
+                Properties properties = new Properties();
+                try (InputStream in = Files.newInputStream(file)) {
+                    properties.load(in);
+                }
+                DownloadResponseImpl response;
+                try {
+                    response = restore(name.substring(0, name.length() - ENTRY_SUFFIX.length()), properties, manager);
+                } catch (IllegalArgumentException | MalformedURLException e) {
+                    // Not an entry of this journal
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                responses.add(response);
+            }
+        }
+        return responses;
+    }
+
+    private static void writeRetryPolicy(Properties properties, RetryPolicy policy) {
+        if (policy.getMaxAttempts() == 1) {
+            return;
+        }
+        StringBuilder exceptions = new StringBuilder();
+        for (Class<? extends IOException> exception : policy.getRetryableExceptions()) {
+            if (exceptions.length() > 0) {
+                exceptions.append(',');
+            }
+            exceptions.append(exception.getName());
+        }
+        StringBuilder statusCodes = new StringBuilder();
+        for (Integer statusCode : policy.getRetryableStatusCodes()) {
+            if (statusCodes.length() > 0) {
+                statusCodes.append(',');
+            }
+            statusCodes.append(statusCode);
+        }
+        properties.setProperty("retryMaxAttempts", Integer.toString(policy.getMaxAttempts()));
+        properties.setProperty("retryInitialBackoff", Long.toString(policy.getInitialBackoff()));
+        properties.setProperty("retryMaxBackoff", Long.toString(policy.getMaxBackoff()));
+        properties.setProperty("retryMultiplier", Double.toString(policy.getMultiplier()));
+        properties.setProperty("retryJitter", Double.toString(policy.getJitter()));
+        properties.setProperty("retryExceptions", exceptions.toString());
+        properties.setProperty("retryStatusCodes", statusCodes.toString());
+    }
+
+    /**
+     * @return the recorded retry policy, {@link RetryPolicy#NONE} if the download was not retried
+     */
+    private static RetryPolicy restoreRetryPolicy(Properties properties) {
+        String maxAttempts = properties.getProperty("retryMaxAttempts");
+        if (maxAttempts == null) {
+            return RetryPolicy.NONE;
+        }
+        Set<Class<? extends IOException>> exceptions = new LinkedHashSet<>();
+        for (String name : properties.getProperty("retryExceptions").split(",")) {
+            try {
+                exceptions.add(Class.forName(name).asSubclass(IOException.class));
+            } catch (ClassNotFoundException | ClassCastException e) {
+                // Not available to this application anymore, nothing could throw it
+            }
+        }
+        Set<Integer> statusCodes = new LinkedHashSet<>();
+        for (String statusCode : properties.getProperty("retryStatusCodes").split(",")) {
+            if (!statusCode.isEmpty()) {
+                statusCodes.add(Integer.parseInt(statusCode));
+            }
+        }
+        return new RetryPolicy.Builder()
+                .setMaxAttempts(Integer.parseInt(maxAttempts))
+                .setInitialBackoff(Long.parseLong(properties.getProperty("retryInitialBackoff")))
+                .setMaxBackoff(Long.parseLong(properties.getProperty("retryMaxBackoff")))
+                .setMultiplier(Double.parseDouble(properties.getProperty("retryMultiplier")))
+                .setJitter(Double.parseDouble(properties.getProperty("retryJitter")))
+                .setRetryableExceptions(exceptions)
+                .setRetryableStatusCodes(statusCodes)
+                .build();
+    }
+
+    /**
+     * @return the recorded expected digest, {@code null} if the content was not verified.
+     *         The recovered download reads back the already downloaded bytes to compute it
+     */
+    private static ContentDigest restoreDigest(Properties properties) {
+        String algorithm = properties.getProperty("digestAlgorithm");
+        if (algorithm == null) {
+            return null;
+        }
+        return new ContentDigest(ContentDigest.Algorithm.valueOf(algorithm), properties.getProperty("digestValue"));
+    }
+
+    private DownloadResponseImpl restore(String id, Properties properties, DownloadManagerImpl manager)
+            throws IOException {
+        String url = properties.getProperty("url");
+        String destination = properties.getProperty("destination");
+        if (url == null || destination == null) {
+            throw new IllegalArgumentException("Incomplete entry " + id);
+        }
+        DownloadRequest request = new DownloadRequest.Builder(url)
+                .setDestination(Paths.get(destination))
+                .setConnectionWaitTime(Integer.parseInt(properties.getProperty("connectionWaitTime")))
+                .setFollowsRedirects(Boolean.parseBoolean(properties.getProperty("followsRedirects")))
+                .setSegments(Integer.parseInt(properties.getProperty("segments")))
+                .setPriority(Integer.parseInt(properties.getProperty("priority")))
+                .setMaxBytesPerSecond(Long.parseLong(properties.getProperty("maxBytesPerSecond")))
+                .setRetryPolicy(restoreRetryPolicy(properties))
+                .setExpectedDigest(restoreDigest(properties))
+                .setCompression(DownloadRequest.Compression.valueOf(properties.getProperty("compression")))
+                .build();
+        DownloadResponseImpl response = new DownloadResponseImpl(request, manager);
+        long contentLength = Long.parseLong(properties.getProperty("contentLength"));
+        String ranges = properties.getProperty("completedRanges");
+        try {
+            if (ranges != null) {
+                Segments segments = Segments.fill(RangeSet.parse(ranges), contentLength, request.getSegments());
+                response.setStorage(new MappedFileStorage(request.getDestination(), contentLength));
+                response.setSegments(segments);
+                response.setBytesDownloaded(segments.getDownloaded());
+                // The segments are only started for a progressing download
+                response.setStatus(DownloadResponse.Status.IN_PROGRESS);
+            } else {
+                long position = Long.parseLong(properties.getProperty("position"));
+                response.setStorage(new FileStorage(request.getDestination(), position));
+                response.setBytesDownloaded(position);
+            }
+        } catch (IOException e) {
+            // The partial content is lost, the download starts over and is recorded again
+            response.setStorage(null);
+            response.setSegments(null);
+            Files.deleteIfExists(entryFile(id));
+            return response;
+        }
+        response.setContentLength(contentLength);
+        response.setValidator(properties.getProperty("validator"));
+        register(new Entry(id, request, response));
+        Segments segments = response.getSegments();
+        if (segments != null && segments.isComplete()) {
+            // Crashed right before the entry was removed
+            response.getStorage().close();
+            response.setStatus(DownloadResponse.Status.FINISHED);
+        }
+        return response;
+    }
+
+    /**
+     * Writes the entries of the downloads which have progressed since the last flush
+     */
+    void flush() {
+        FLUSH_LOCK.lock();
+        try {
+            List<Entry> dirty = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                // The progress is captured before the sync, the bytes before it are already written
+                if (entry.capture()) {
+                    dirty.add(entry);
+                }
+            }
+            for (Entry entry : dirty) {
+                try {
+                    entry.storage.force();
+                    entry.write();
+                } catch (IOException e) {
+                    // The storage was closed in the meantime or the disk fails,
+                    // either way the previous entry is still valid
+                }
+            }
+        } finally {
+            FLUSH_LOCK.unlock();
+        }
+    }
+
+    private void remove(Entry entry) {
+        LOCK.lock();
+        try {
+            entries.remove(entry.response);
+            entry.removed = true;
+            Files.deleteIfExists(entryFile(entry.id));
+        } catch (IOException e) {
+            // A stale entry only makes the download resume and finish again
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private Path entryFile(String id) {
+        return directory.resolve(id + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Stops the background flushes after flushing the progress of the downloads for the last time.
+     * <p/>
+     * The entries of the downloads which are not over are kept to be recovered
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * The recorded state of a single download
+     */
+    private class Entry {
+
+        private final String id;
+        private final DownloadRequest request;
+        private final DownloadResponseImpl response;
+
+        // Only touched while flushing
+        private String flushedProgress;
+        private String capturedProgress;
+        private DownloadStorage storage;
+        private Properties captured;
+
+        private boolean removed = false;
+
+        Entry(String id, DownloadRequest request, DownloadResponseImpl response) {
+            this.id = id;
+            this.request = request;
+            this.response = response;
+        }
+
+        /**
+         * Captures the current progress of the download
+         *
+         * @return true if the download has progressed since the last flush
+         */
+        boolean capture() {
+            DownloadStorage storage = response.getStorage();
+            if (storage == null) {
+                // Not prepared yet
+                return false;
+            }
+            Properties properties = new Properties();
+            Segments segments = response.getSegments();
+            if (segments != null) {
+                properties.setProperty("completedRanges", segments.getCompleted().toString());
+            } else {
+                properties.setProperty("position", Long.toString(storage.size()));
+            }
+            String validator = response.getValidator();
+            if (validator != null) {
+                properties.setProperty("validator", validator);
+            }
+            properties.setProperty("contentLength", Long.toString(response.getContentLength()));
+            String progress = properties.toString();
+            if (progress.equals(flushedProgress)) {
+                return false;
+            }
+            properties.setProperty("url", request.getUrl().toString());
+            properties.setProperty("destination", request.getDestination().toAbsolutePath().toString());
+            properties.setProperty("connectionWaitTime", Integer.toString(request.getConnectionWaitTime()));
+            properties.setProperty("followsRedirects", Boolean.toString(request.isFollowsRedirects()));
+            properties.setProperty("segments", Integer.toString(request.getSegments()));
+            properties.setProperty("priority", Integer.toString(request.getPriority()));
+            properties.setProperty("maxBytesPerSecond", Long.toString(request.getMaxBytesPerSecond()));
+            properties.setProperty("compression", request.getCompression().name());
+            writeRetryPolicy(properties, request.getRetryPolicy());
+            ContentDigest digest = request.getExpectedDigest();
+            if (digest != null) {
+                properties.setProperty("digestAlgorithm", digest.getAlgorithm().name());
+                properties.setProperty("digestValue", digest.getExpectedValue());
+            }
+            this.storage = storage;
+            this.captured = properties;
+            this.capturedProgress = progress;
+            return true;
+        }
+
+        /**
+         * Replaces the entry file with the captured progress
+         *
+         * @throws IOException if failed to write the entry
+         */
+        void write() throws IOException {
+            StringWriter text = new StringWriter();
+            captured.store(text, null);
+            ByteBuffer bytes = StandardCharsets.ISO_8859_1.encode(text.toString());
+            LOCK.lock();
+            try {
+                if (removed) {
+                    return;
+                }
+                Path tmp = directory.resolve(id + TMP_SUFFIX);
+                try (FileChannel channel = FileChannel.open(tmp,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                    channel.force(true);
+                }
+                Files.move(tmp, entryFile(id), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                flushedProgress = capturedProgress;
+            } finally {
+                LOCK.unlock();
+            }
+        }
+    }
+}
@@ -3,56 +3,625 @@ package pchelolo.downloader.impl;
 import pchelolo.downloader.DownloadRequest;
 import pchelolo.downloader.DownloadResponse;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * The state of a download shared by the downloading threads and the users of the response.
+ * <p/>
+ * The status and the progress are read without locking, so the downloading threads and the monitoring
+ * threads polling them do not contend with each other. The status is only changed under the lock,
+ * which keeps the transitions and the events delivered to the listeners in order, and the lock
+ * is used to wait for the status changes. The workers only change the status from the one they expect,
+ * so that a pause or a cancellation requested meanwhile is never overwritten.
+ */
 public class DownloadResponseImpl implements DownloadResponse {
 
-    private final Lock LOCK = new ReentrantLock();
+    /**
+     * The number of bytes a content stream could lag behind before the download waits for it
+     */
+    static final long STREAM_WINDOW = 1 << 20;
+
+    private final ReentrantLock LOCK = new ReentrantLock();
     private final Condition STATE_CHANGED = LOCK.newCondition();
 
     private final DownloadManagerImpl manager;
     private final DownloadRequest request;
+    private final TokenBucket bandwidth;
+    private final DigestState digest;
 
-
-    private ByteArrayOutputStream downloadResult;
-    private Status status = Status.NOT_STARTED;
+    private volatile DownloadStorage downloadResult;
+    private volatile ContentDecoder decoder;
+    private volatile Segments segments;
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.NOT_STARTED);
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicInteger retries = new AtomicInteger();
+    private volatile long contentLength = -1;
+    private volatile String validator;
     private boolean isThreadReleased = false;
+    // A download paused before it has started is not started by the resume either
+    private boolean isPausedBeforeStart = false;
+    // A download paused as its content was complete is finished by the resume, no worker continues it
+    private boolean isFinishPending = false;
+    private int runningWorkers = 0;
+    private final List<ContentStream> contentStreams = new ArrayList<>();
+    private volatile int contentStreamCount = 0;
+    private volatile boolean isWriterWaiting = false;
+
+    private final List<StatusListener> statusListeners = new CopyOnWriteArrayList<>();
+    private final Queue<Status[]> statusEvents = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isFiringStatusEvents = new AtomicBoolean(false);
+    private volatile CompletableFuture<byte[]> resultFuture;
+    private volatile Runnable finishAction;
+
+    /**
+     * Stores the decoded bytes after the stored ones
+     */
+    private final ContentDecoder.Sink decodedContent = new ContentDecoder.Sink() {
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            DownloadStorage storage = downloadResult;
+            long offset = storage.size();
+            storage.write(buf, off, len);
+            contentDigested(storage, offset, buf, off, len);
+        }
+    };
 
     DownloadResponseImpl(DownloadRequest request, DownloadManagerImpl manager) {
         this.request = request;
         this.manager = manager;
+        this.bandwidth = new TokenBucket(request.getMaxBytesPerSecond());
+        this.digest = request.getExpectedDigest() == null ? null : new DigestState(request.getExpectedDigest());
+    }
+
+    DownloadRequest getRequest() {
+        return request;
     }
 
-    ByteArrayOutputStream getStream() {
+    /**
+     * Returns the rate limit of this download, shared by all its workers
+     */
+    TokenBucket getBandwidth() {
+        return bandwidth;
+    }
+
+    DownloadStorage getStorage() {
         return downloadResult;
     }
 
-    void setStream(ByteArrayOutputStream stream) {
-        this.downloadResult = stream;
+    /**
+     * Sets the storage of the content, the decoder of the previous storage is dropped
+     */
+    void setStorage(DownloadStorage storage) {
+        this.downloadResult = storage;
+        setDecoder(null);
+    }
+
+    /**
+     * Sets the decoder of the content received for the storage
+     *
+     * @param decoder the decoder or {@code null} if the content is stored as received
+     */
+    void setDecoder(ContentDecoder decoder) {
+        ContentDecoder old = this.decoder;
+        this.decoder = decoder;
+        if (old != null) {
+            old.end();
+        }
+    }
+
+    /**
+     * Returns the position a ranged request should continue the content from:
+     * the number of stored bytes, or the number of the encoded bytes decoded so far if the content is decoded
+     */
+    long getResumePosition() {
+        ContentDecoder decoder = this.decoder;
+        return decoder != null ? decoder.getInputPosition() : downloadResult.size();
+    }
+
+    /**
+     * Appends the bytes received from the connection to the storage and digests them.
+     * The bytes are decoded first if the content is decoded
+     *
+     * @return the number of bytes written to the storage
+     * @throws IOException if failed to write or the encoded content is malformed
+     */
+    int storeContent(byte[] buf, int off, int len) throws IOException {
+        ContentDecoder decoder = this.decoder;
+        if (decoder == null) {
+            decodedContent.write(buf, off, len);
+            return len;
+        }
+        long size = downloadResult.size();
+        decoder.decode(buf, off, len, decodedContent);
+        return (int) (downloadResult.size() - size);
+    }
+
+    /**
+     * Checks if the whole content was received once the connection has reached its end,
+     * as the connection could end early if it is dropped
+     *
+     * @throws EOFException if the content is not complete
+     */
+    void checkContentComplete() throws EOFException {
+        ContentDecoder decoder = this.decoder;
+        if (decoder != null) {
+            decoder.checkFinished();
+        } else if (contentLength != -1 && downloadResult.size() < contentLength) {
+            throw new EOFException("The connection was closed before the download was finished");
+        }
+    }
+
+    Segments getSegments() {
+        return segments;
+    }
+
+    void setSegments(Segments segments) {
+        this.segments = segments;
+    }
+
+    void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Returns the validator identifying the version of the content being downloaded
+     *
+     * @return the validator or {@code null} if the server has not provided any
+     */
+    String getValidator() {
+        return validator;
+    }
+
+    void setValidator(String validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Resets the number of downloaded and received bytes, when the download is restored or starts over
+     */
+    void setBytesDownloaded(long bytesDownloaded) {
+        this.bytesDownloaded.set(bytesDownloaded);
+        this.bytesReceived.set(bytesDownloaded);
+    }
+
+    /**
+     * Returns the number of bytes downloaded without gaps from the beginning of the content
+     */
+    long getContentPosition() {
+        Segments segments = this.segments;
+        if (segments != null) {
+            return segments.getContiguousPosition();
+        }
+        DownloadStorage storage = downloadResult;
+        return storage == null ? 0 : storage.size();
+    }
+
+    /**
+     * Counts newly downloaded bytes and notifies the content streams about them.
+     * <p/>
+     * If allowed to wait, holds the downloading thread back while the slowest content stream lags behind
+     * by more than {@link #STREAM_WINDOW} bytes, so that the data is not read from the connection faster
+     * than it is consumed. Does nothing if there are no content streams.
+     *
+     * @param len the number of bytes written to the storage
+     * @param received the number of bytes received from the connection, differs from len if the content is decoded
+     * @param canWait true if the downloading thread could be blocked
+     * @throws InterruptedException
+     */
+    void contentWritten(int len, int received, boolean canWait) throws InterruptedException {
+        bytesDownloaded.addAndGet(len);
+        bytesReceived.addAndGet(received);
+        if (contentStreamCount == 0) {
+            return;
+        }
+        LOCK.lock();
+        try {
+            STATE_CHANGED.signalAll();
+            if (canWait) {
+                while (status.get() == Status.IN_PROGRESS
+                        && !contentStreams.isEmpty()
+                        && getContentPosition() - getSlowestStreamPosition() > STREAM_WINDOW) {
+                    isWriterWaiting = true;
+                    STATE_CHANGED.await();
+                }
+                isWriterWaiting = false;
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Digests the bytes just appended to the storage, if the request expects a digest
+     *
+     * @param storage the storage the bytes were written to
+     * @param offset the size of the storage before the bytes were written
+     */
+    void contentDigested(DownloadStorage storage, long offset, byte[] buf, int off, int len) {
+        if (digest != null) {
+            digest.update(storage, offset, buf, off, len);
+        }
+    }
+
+    /**
+     * Checks the complete content against the expected digest of the request, if any.
+     * Called once by the thread completing the download
+     *
+     * @throws IOException if the content does not match the digest
+     */
+    void verifyDigest() throws IOException {
+        if (digest != null) {
+            digest.verify(downloadResult);
+        }
+    }
+
+    /**
+     * Holds the downloading thread back to keep the download within its rate limits.
+     * <p/>
+     * The thread waits on a {@link Condition}, so a waiting virtual thread does not hold its carrier thread.
+     * Stops waiting early if the download is paused or cancelled meanwhile.
+     *
+     * @param nanos the time to wait
+     * @throws InterruptedException
+     */
+    void awaitBandwidth(long nanos) throws InterruptedException {
+        if (nanos <= 0) {
+            return;
+        }
+        LOCK.lock();
+        try {
+            while (nanos > 0 && status.get() == Status.IN_PROGRESS) {
+                nanos = STATE_CHANGED.awaitNanos(nanos);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Wakes up the downloading thread waiting for the content streams
+     */
+    void contentConsumed() {
+        if (isWriterWaiting) {
+            LOCK.lock();
+            try {
+                STATE_CHANGED.signalAll();
+            } finally {
+                LOCK.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for the content after the position to be downloaded
+     *
+     * @return the number of bytes downloaded without gaps if there are any after the position,
+     *         -1 if the download has finished and there are no more bytes
+     * @throws IOException if the download has failed or was cancelled
+     */
+    long awaitContent(long position) throws InterruptedException, IOException {
+        LOCK.lock();
+        try {
+            while (true) {
+                long available = getContentPosition();
+                if (available > position) {
+                    return available;
+                }
+                switch (status.get()) {
+                    case FINISHED:
+                        return -1;
+                    case FAILED:
+                        throw new IOException("The download has failed");
+                    case CANCELLED:
+                        throw new IOException("The download was cancelled");
+                    default:
+                        STATE_CHANGED.await();
+                }
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    void removeContentStream(ContentStream stream) {
+        LOCK.lock();
+        try {
+            contentStreams.remove(stream);
+            contentStreamCount = contentStreams.size();
+            // The downloading thread might be waiting for the removed stream
+            STATE_CHANGED.signalAll();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private long getSlowestStreamPosition() {
+        long position = Long.MAX_VALUE;
+        for (ContentStream stream : contentStreams) {
+            position = Math.min(position, stream.getPosition());
+        }
+        return position;
+    }
+
+    /**
+     * Deletes already downloaded bytes
+     */
+    private void discardStorage() {
+        DownloadStorage storage = downloadResult;
+        setStorage(null);
+        if (storage != null) {
+            try {
+                storage.discard();
+            } catch (IOException e) {
+                // The download is cancelled anyway, nothing to report to
+            }
+        }
+    }
+
+    /**
+     * Marks the download as started once the server has responded: NOT_STARTED to IN_PROGRESS.
+     * <p/>
+     * A download paused meanwhile stays paused, but it is in progress once resumed,
+     * as its content is already on the way. A cancelled download stays cancelled.
+     *
+     * @return true if the download is in progress, false if it was paused or cancelled meanwhile
+     */
+    boolean start() {
+        boolean isStarted;
+        LOCK.lock();
+        try {
+            isPausedBeforeStart = false;
+            isStarted = transition(Status.NOT_STARTED, Status.IN_PROGRESS) || status.get() == Status.IN_PROGRESS;
+        } finally {
+            LOCK.unlock();
+        }
+        fireStatusEvents();
+        return isStarted;
+    }
+
+    /**
+     * Marks the download as finished once its whole content is stored: IN_PROGRESS to FINISHED.
+     * <p/>
+     * A cancelled download stays cancelled. A download paused meanwhile is finished by its resume,
+     * as nothing is left to download. Either way the worker should stop.
+     *
+     * @return true if the download is finished, false if it was paused or cancelled meanwhile
+     */
+    boolean finish() {
+        boolean isFinished;
+        LOCK.lock();
+        try {
+            isFinishPending = status.get() == Status.PAUSED;
+            isFinished = transition(Status.IN_PROGRESS, Status.FINISHED);
+        } finally {
+            LOCK.unlock();
+        }
+        fireStatusEvents();
+        return isFinished;
+    }
+
+    /**
+     * Sets the action committing the complete content, e.g. to a cache. It is run before the download
+     * is reported as finished, so the listeners, the waiters and the result future observe its effects
+     */
+    void setFinishAction(Runnable finishAction) {
+        this.finishAction = finishAction;
     }
 
+    /**
+     * Changes the status only if it is still the expected one, so that a pause or a cancellation
+     * made meanwhile is not overwritten by a worker. The finish action, if any, is run before
+     * the download is reported as finished.
+     *
+     * @return true if the status was changed
+     */
+    boolean transition(Status from, Status to) {
+        LOCK.lock();
+        try {
+            Runnable finishAction = this.finishAction;
+            if (to == Status.FINISHED && finishAction != null && status.get() == from) {
+                finishAction.run();
+            }
+            if (!status.compareAndSet(from, to)) {
+                return false;
+            }
+            statusEvents.add(new Status[] {from, to});
+            STATE_CHANGED.signalAll();
+        } finally {
+            LOCK.unlock();
+        }
+        fireStatusEvents();
+        return true;
+    }
+
+    /**
+     * Changes the status whatever it is, only for the changes requested by the users of the response
+     * and for the responses restored by the journal before anyone else has seen them
+     */
     void setStatus(Status status) {
         LOCK.lock();
         try {
-            this.status = status;
+            Status old = this.status.getAndSet(status);
+            if (old != status) {
+                statusEvents.add(new Status[] {old, status});
+            }
             STATE_CHANGED.signalAll();
         } finally {
             LOCK.unlock();
         }
+        fireStatusEvents();
+    }
+
+    /**
+     * Delivers the status transitions to the listeners and completes the result future.
+     * <p/>
+     * The transitions are delivered in order by one thread at a time. Does nothing while the lock is held,
+     * the transitions are delivered once the lock is released, so that the listeners could call the response.
+     */
+    private void fireStatusEvents() {
+        if (LOCK.isHeldByCurrentThread()) {
+            return;
+        }
+        while (!statusEvents.isEmpty() && isFiringStatusEvents.compareAndSet(false, true)) {
+            try {
+                Status[] event;
+                while ((event = statusEvents.poll()) != null) {
+                    for (StatusListener listener : statusListeners) {
+                        try {
+                            listener.statusChanged(this, event[0], event[1]);
+                        } catch (RuntimeException e) {
+                            // A broken listener should not break the download or the other listeners
+                        }
+                    }
+                    completeResultFuture(event[1]);
+                }
+            } finally {
+                isFiringStatusEvents.set(false);
+            }
+        }
+    }
+
+    /**
+     * Completes the result future if it was requested and the status is final
+     */
+    private void completeResultFuture(Status status) {
+        CompletableFuture<byte[]> future = resultFuture;
+        if (future == null) {
+            return;
+        }
+        switch (status) {
+            case FINISHED:
+                try {
+                    future.complete(downloadResult.toByteArray());
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+                break;
+            case FAILED:
+                future.completeExceptionally(new IOException("The download has failed"));
+                break;
+            case CANCELLED:
+                future.cancel(false);
+                break;
+            default:
+                // Not final yet
+        }
+    }
+
+    /**
+     * Marks the download as failed unless it was cancelled in the meantime
+     */
+    void fail() {
+        LOCK.lock();
+        try {
+            if (status.get() != Status.CANCELLED) {
+                setStatus(Status.FAILED);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+        fireStatusEvents();
+    }
+
+    /**
+     * Counts a retry of the download after a failed attempt
+     *
+     * @return the number of retries so far, including this one
+     */
+    int countRetry() {
+        return retries.incrementAndGet();
+    }
+
+    /**
+     * Continues the download after a failed attempt, called once the backoff has passed.
+     * <p/>
+     * No thread runs the download while waiting for the retry, so a cancellation cleans up
+     * right away and a pause is noticed once the download is started again
+     */
+    void retry() {
+        if (status.get() == Status.CANCELLED) {
+            return;
+        }
+        try {
+            manager.resumeDownload(request, this);
+        } catch (RejectedExecutionException e) {
+            // The manager was closed while waiting
+            DownloadStorage storage = downloadResult;
+            if (storage != null) {
+                try {
+                    storage.close();
+                } catch (IOException closeFailure) {
+                    // Already failing, the download result is incomplete anyway
+                }
+            }
+            fail();
+        }
+    }
+
+    /**
+     * Registers a thread which is going to write to the storage
+     */
+    void workerStarted() {
+        LOCK.lock();
+        try {
+            runningWorkers++;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Unregisters a thread which has stopped writing to the storage.
+     * <p/>
+     * The last stopping thread of the cancelled download deletes the downloaded bytes
+     */
+    void workerStopped() {
+        LOCK.lock();
+        try {
+            runningWorkers--;
+            if (runningWorkers == 0 && status.get() == Status.CANCELLED) {
+                discardStorage();
+            }
+        } finally {
+            LOCK.unlock();
+        }
     }
 
     /**
      * Checks if the download is paused.
      * <p/>
-     * If paused, the method either waits for resume or returns true if the downloading thread should be released
+     * If paused, the method either waits for resume or returns true if the downloading thread should be released.
+     * The wait is done on a {@link Condition} outside of any monitor, so a waiting virtual thread
+     * does not pin its carrier thread. The lock is only taken if the download is paused.
      *
      * @throws InterruptedException
      */
     boolean checkPaused(boolean supportsRangedDownload) throws InterruptedException {
+        if (status.get() != Status.PAUSED) {
+            // A pause requested right after the check is noticed by the next call
+            return false;
+        }
         LOCK.lock();
         try {
             if (this.getStatus() == DownloadResponseImpl.Status.PAUSED) {
@@ -78,30 +647,142 @@ public class DownloadResponseImpl implements DownloadResponse {
 
     @Override
     public Status getStatus() {
+        return status.get();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public Path getDestination() {
+        return request.getDestination();
+    }
+
+    @Override
+    public byte[] getResult()
+            throws InterruptedException {
+        return getResult(0, null);
+    }
+
+    @Override
+    public byte[] getResult(long timeout, TimeUnit timeUnit)
+            throws InterruptedException {
+        DownloadStorage storage = awaitResult(timeout, timeUnit);
+        if (storage == null) {
+            return null;
+        }
+        try {
+            return storage.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read the downloaded content", e);
+        }
+    }
+
+    @Override
+    public ByteBuffer getResultBuffer()
+            throws InterruptedException {
+        DownloadStorage storage = awaitResult(0, null);
+        if (storage == null) {
+            return null;
+        }
+        try {
+            return storage.asByteBuffer();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read the downloaded content", e);
+        }
+    }
+
+    @Override
+    public ReadableByteChannel getResultChannel()
+            throws InterruptedException {
+        DownloadStorage storage = awaitResult(0, null);
+        if (storage == null) {
+            return null;
+        }
+        try {
+            return storage.openChannel();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read the downloaded content", e);
+        }
+    }
+
+    @Override
+    public InputStream getResultStream()
+            throws InterruptedException {
+        ReadableByteChannel channel = getResultChannel();
+        return channel == null ? null : Channels.newInputStream(channel);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getResultFuture() {
+        CompletableFuture<byte[]> future;
+        Status current;
         LOCK.lock();
         try {
-            return status;
+            if (resultFuture == null) {
+                resultFuture = new CompletableFuture<>();
+            }
+            future = resultFuture;
+            current = status.get();
         } finally {
             LOCK.unlock();
         }
+        // Already final, no transition would complete the future
+        completeResultFuture(current);
+        return future;
     }
 
     @Override
-    public byte[] getResult()
-            throws InterruptedException {
-        return getResult(0, null);
+    public void addStatusListener(StatusListener listener) {
+        statusListeners.add(listener);
     }
 
     @Override
-    public byte[] getResult(long timeout, TimeUnit timeUnit)
+    public void removeStatusListener(StatusListener listener) {
+        statusListeners.remove(listener);
+    }
+
+    @Override
+    public InputStream getContentStream() {
+        LOCK.lock();
+        try {
+            ContentStream stream = new ContentStream(this);
+            contentStreams.add(stream);
+            contentStreamCount = contentStreams.size();
+            return stream;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Waits for the download to finish or fail
+     *
+     * @return the storage with the downloaded bytes,
+     *         {@code null} if the download was cancelled or a timeout passed
+     */
+    private DownloadStorage awaitResult(long timeout, TimeUnit timeUnit)
             throws InterruptedException {
         LOCK.lock();
         try {
             while (true) {
-                switch (this.status) {
+                switch (status.get()) {
                     case FINISHED:
                     case FAILED:
-                        return downloadResult.toByteArray();
+                        // Nothing writes to the storage anymore
+                        return downloadResult;
                     case CANCELLED:
                         return null;
                     default:
@@ -119,6 +800,11 @@ public class DownloadResponseImpl implements DownloadResponse {
         }
     }
 
+    @Override
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        bandwidth.setBytesPerSecond(maxBytesPerSecond);
+    }
+
     @Override
     public void pause() {
         LOCK.lock();
@@ -127,10 +813,12 @@ public class DownloadResponseImpl implements DownloadResponse {
                     && this.getStatus() != Status.NOT_STARTED) {
                 throw new IllegalStateException("Only not started or progressing downloads can be paused");
             }
+            isPausedBeforeStart = this.getStatus() == Status.NOT_STARTED;
             setStatus(Status.PAUSED);
         } finally {
             LOCK.unlock();
         }
+        fireStatusEvents();
     }
 
     @Override
@@ -140,15 +828,23 @@ public class DownloadResponseImpl implements DownloadResponse {
             if (this.getStatus() != Status.PAUSED) {
                 throw new IllegalStateException("Only paused download could be resumed");
             }
-            if (isThreadReleased) {
-                isThreadReleased = false;
-                manager.resumeDownload(request, this);
+            if (isFinishPending) {
+                // The content is complete and the worker has stopped, nothing is left to resume
+                isFinishPending = false;
+                transition(Status.PAUSED, Status.FINISHED);
+            } else {
+                if (isThreadReleased) {
+                    isThreadReleased = false;
+                    manager.resumeDownload(request, this);
+                }
+                // If we did not yet release a thread - short circuit and let it not release.
+                // A queued download stays not started until it is given a slot and its task starts it
+                this.setStatus(isPausedBeforeStart ? Status.NOT_STARTED : Status.IN_PROGRESS);
             }
-            // If we did not yet release a thread - short circuit and let it not release
-            this.setStatus(DownloadResponseImpl.Status.IN_PROGRESS);
         } finally {
             LOCK.unlock();
         }
+        fireStatusEvents();
     }
 
     @Override
@@ -159,9 +855,14 @@ public class DownloadResponseImpl implements DownloadResponse {
                 throw new IllegalStateException("Could not cancel finished or failed download");
             }
             this.setStatus(Status.CANCELLED);
+            if (runningWorkers == 0) {
+                // No downloading thread would notice the cancellation, clean up here
+                discardStorage();
+            }
         } finally {
             LOCK.unlock();
         }
+        fireStatusEvents();
     }
 
 }
@@ -0,0 +1,255 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadMetrics;
+import pchelolo.downloader.DownloadRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of download tasks running at once, globally and per host.
+ * <p/>
+ * The tasks exceeding the limits are queued and stay {@link DownloadResponseImpl.Status#NOT_STARTED}
+ * until a slot is freed. The queue is ordered by {@link DownloadRequest#getPriority()},
+ * the tasks of the same priority are started in the order of submission.
+ * A host having no free slots does not hold back the tasks of other hosts.
+ * <p/>
+ * A slot is held until the task releases its thread, so a download paused with a ranged download
+ * support frees its slot for the next task, and is queued again on resume.
+ * The segments of a segmented download take slots of their own, so they are limited per host as well.
+ */
+class DownloadScheduler {
+
+    private final Lock LOCK = new ReentrantLock();
+
+    private final Executor executor;
+    private final int maxConcurrentDownloads;
+    private final int maxDownloadsPerHost;
+    private final DownloadMetrics metrics;
+
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    private int running = 0;
+    private long submitted = 0;
+
+    /**
+     * @param executor an executor running the tasks
+     * @param maxConcurrentDownloads the maximum number of tasks running at once
+     * @param maxDownloadsPerHost the maximum number of tasks downloading from the same host at once
+     * @param metrics receives the utilisation of the slots
+     */
+    DownloadScheduler(Executor executor, int maxConcurrentDownloads, int maxDownloadsPerHost,
+                      DownloadMetrics metrics) {
+        if (maxConcurrentDownloads < 1 || maxDownloadsPerHost < 1) {
+            throw new IllegalArgumentException("At least one concurrent download is required");
+        }
+        this.executor = executor;
+        this.maxConcurrentDownloads = maxConcurrentDownloads;
+        this.maxDownloadsPerHost = maxDownloadsPerHost;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs the task once a slot is free
+     *
+     * @throws RejectedExecutionException if the executor does not accept tasks anymore
+     */
+    void schedule(DownloadRequest request, DownloadResponseImpl response, Runnable task) {
+        String host = request.getUrl().getHost().toLowerCase();
+        LOCK.lock();
+        try {
+            enqueue(host, request.getPriority(), response, task);
+        } finally {
+            LOCK.unlock();
+        }
+        metrics.downloadQueued(host);
+        dispatch();
+    }
+
+    /**
+     * Returns an executor running the workers of the download, such as its segments, once a slot is free.
+     * <p/>
+     * The workers take slots like the tasks, but are not reported to the metrics as downloads.
+     * A worker is run even if the download is paused or cancelled while it is queued, it checks that on its own
+     */
+    Executor workerExecutor(final DownloadRequest request) {
+        final String host = request.getUrl().getHost().toLowerCase();
+        return new Executor() {
+            @Override
+            public void execute(Runnable worker) {
+                LOCK.lock();
+                try {
+                    enqueue(host, request.getPriority(), null, worker);
+                } finally {
+                    LOCK.unlock();
+                }
+                dispatch();
+            }
+        };
+    }
+
+    /**
+     * Queues the task of the host. Called under the LOCK
+     */
+    private void enqueue(String host, int priority, DownloadResponseImpl response, Runnable task) {
+        HostQueue hostQueue = hosts.get(host);
+        if (hostQueue == null) {
+            hostQueue = new HostQueue(host);
+            hosts.put(host, hostQueue);
+        }
+        hostQueue.queue.add(new Entry(priority, submitted++, hostQueue, response, task));
+    }
+
+    /**
+     * Starts the queued tasks while there are free slots
+     */
+    private void dispatch() {
+        Entry entry;
+        while ((entry = takeSlot()) != null) {
+            start(entry);
+        }
+    }
+
+    /**
+     * Removes the next task to run from the queue and takes a slot for it
+     *
+     * @return the task or {@code null} if there are no free slots or no tasks to run
+     */
+    private Entry takeSlot() {
+        LOCK.lock();
+        try {
+            if (running >= maxConcurrentDownloads) {
+                return null;
+            }
+            Entry next = null;
+            for (HostQueue hostQueue : hosts.values()) {
+                if (hostQueue.running < maxDownloadsPerHost) {
+                    Entry head = hostQueue.queue.peek();
+                    if (head != null && (next == null || head.compareTo(next) < 0)) {
+                        next = head;
+                    }
+                }
+            }
+            if (next != null) {
+                next.hostQueue.queue.poll();
+                next.hostQueue.running++;
+                running++;
+            }
+            return next;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    private void releaseSlot(Entry entry) {
+        if (entry.response != null) {
+            metrics.downloadStopped(entry.hostQueue.host);
+        }
+        LOCK.lock();
+        try {
+            running--;
+            HostQueue hostQueue = entry.hostQueue;
+            hostQueue.running--;
+            if (hostQueue.running == 0 && hostQueue.queue.isEmpty()) {
+                // Forget the idle host
+                hosts.remove(hostQueue.host);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Runs the task in a slot taken for it
+     */
+    private void start(final Entry entry) {
+        if (entry.response != null) {
+            metrics.downloadStarted(entry.hostQueue.host, System.nanoTime() - entry.queuedAt);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DownloadScheduler.this.run(entry);
+                    } finally {
+                        releaseSlot(entry);
+                        dispatch();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releaseSlot(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the task unless it was paused or cancelled while queued.
+     * Checked by the worker thread, as the response calls back to the scheduler under its own lock
+     */
+    private void run(Entry entry) {
+        if (entry.response == null) {
+            // A worker checks the pause and the cancellation of its download on its own
+            entry.task.run();
+            return;
+        }
+        try {
+            if (entry.response.checkPaused(true)
+                    || entry.response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+                // The resume would schedule the download again
+                return;
+            }
+        } catch (InterruptedException e) {
+            // Never waits if the thread could be released
+            Thread.currentThread().interrupt();
+            return;
+        }
+        entry.task.run();
+    }
+
+    private static class HostQueue {
+
+        private final String host;
+        private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+        private int running = 0;
+
+        HostQueue(String host) {
+            this.host = host;
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        private final int priority;
+        private final long order;
+        private final HostQueue hostQueue;
+        // The download of the task, null for a worker of a download
+        private final DownloadResponseImpl response;
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        Entry(int priority, long order, HostQueue hostQueue, DownloadResponseImpl response, Runnable task) {
+            this.priority = priority;
+            this.order = order;
+            this.hostQueue = hostQueue;
+            this.response = response;
+            this.task = task;
+        }
+
+        /**
+         * Higher priority first, then the earlier submitted first
+         */
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A destination for the downloaded bytes.
+ * <p/>
+ * Bytes are either appended sequentially by a single downloading thread,
+ * or written at known positions by the threads downloading separate segments
+ * after the storage was {@link #allocate(long) allocated}.
+ */
+interface DownloadStorage {
+
+    /**
+     * Appends bytes to the end of the storage
+     *
+     * @throws IOException if failed to store the bytes
+     */
+    void write(byte[] buf, int off, int len) throws IOException;
+
+    /**
+     * Preallocates the storage for the content of the known length,
+     * so that it could be written at any position
+     *
+     * @throws IOException if failed to allocate the storage
+     */
+    void allocate(long length) throws IOException;
+
+    /**
+     * Writes bytes at the specific position of the allocated storage.
+     * <p/>
+     * Could be called concurrently for non-overlapping ranges
+     *
+     * @throws IOException if failed to store the bytes
+     */
+    void write(long position, byte[] buf, int off, int len) throws IOException;
+
+    /**
+     * Appends up to the number of bytes read from the blocking channel,
+     * without an intermediate buffer if possible
+     *
+     * @param count the maximum number of bytes to append
+     * @return the number of bytes appended or -1 if the channel has reached its end
+     * @throws IOException if failed to read or to store the bytes
+     */
+    long transferFrom(ReadableByteChannel channel, long count) throws IOException;
+
+    /**
+     * @return the number of bytes already stored or the allocated length
+     */
+    long size();
+
+    /**
+     * Returns all the stored bytes as a new array
+     *
+     * @throws IOException if failed to read the stored bytes
+     */
+    byte[] toByteArray() throws IOException;
+
+    /**
+     * Returns a read-only buffer with all the stored bytes, avoiding a copy if possible
+     *
+     * @throws IOException if failed to read the stored bytes
+     */
+    ByteBuffer asByteBuffer() throws IOException;
+
+    /**
+     * Opens a channel reading the stored bytes from the beginning without copying them as a whole.
+     * <p/>
+     * Could be called while the bytes are being written, the channel reads the bytes
+     * stored by the time of each read
+     *
+     * @throws IOException if failed to read the stored bytes
+     */
+    ReadableByteChannel openChannel() throws IOException;
+
+    /**
+     * Forces the stored bytes to the disk. Does nothing if the bytes are kept in memory
+     *
+     * @throws IOException if failed to sync the bytes or the storage is closed
+     */
+    void force() throws IOException;
+
+    /**
+     * Releases the resources held by the storage, keeping the stored bytes
+     *
+     * @throws IOException if failed to close the storage
+     */
+    void close() throws IOException;
+
+    /**
+     * Releases the resources held by the storage and deletes the stored bytes
+     *
+     * @throws IOException if failed to delete the stored bytes
+     */
+    void discard() throws IOException;
+}
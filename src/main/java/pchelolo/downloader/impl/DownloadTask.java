@@ -1,11 +1,15 @@
 package pchelolo.downloader.impl;
 
+import pchelolo.downloader.DownloadMetrics;
 import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.RetryPolicy;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLConnection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A runnable representing a download loop
@@ -13,15 +17,35 @@ import java.net.URLConnection;
  */
 abstract class DownloadTask implements Runnable {
 
-    private static final int TMP_BUF_SIZE = 512;
     private static final int INITIAL_OUTPUT_SIZE = 16384;
 
     final DownloadRequest request;
-    private final DownloadResponseImpl response;
+    final DownloadResponseImpl response;
+    final BufferPool bufferPool;
+    final DownloadJournal journal;
+    final DownloadMetrics metrics;
+    final BandwidthLimiter limiter;
+    final ScheduledExecutorService retryTimer;
+    final String host;
 
-    DownloadTask(DownloadRequest request, DownloadResponseImpl response) {
+    /**
+     * @param bufferPool the pool of the read buffers of the manager
+     * @param journal the journal recording the progress of the downloads or {@code null}
+     * @param metrics the measurements of the downloads of the manager
+     * @param limiter the rate limits of the downloads of the manager
+     * @param retryTimer the timer starting the failed downloads again once their backoff has passed
+     */
+    DownloadTask(DownloadRequest request, DownloadResponseImpl response, BufferPool bufferPool,
+                 DownloadJournal journal, DownloadMetrics metrics, BandwidthLimiter limiter,
+                 ScheduledExecutorService retryTimer) {
         this.request = request;
         this.response = response;
+        this.bufferPool = bufferPool;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.limiter = limiter;
+        this.retryTimer = retryTimer;
+        this.host = request.getUrl().getHost().toLowerCase();
     }
 
     /**
@@ -30,65 +54,268 @@ abstract class DownloadTask implements Runnable {
     @Override
     public void run() {
         URLConnection conn = null;
+        boolean reusable = false;
+        response.workerStarted();
         try {
+            if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+                return;
+            }
             conn = prepareConnection();
-            prepareStream(conn);
-
-            response.setStatus(DownloadResponseImpl.Status.IN_PROGRESS);
-
-            try (InputStream inputStream = conn.getInputStream()) {
-                byte[] tmpBuf = new byte[TMP_BUF_SIZE];
-
-                while (!Thread.currentThread().isInterrupted()) {
-                    int len = inputStream.read(tmpBuf);
-                    if (len == -1) {
-                        response.setStatus(DownloadResponseImpl.Status.FINISHED);
-                        break;
-                    }
-                    response.getStream().write(tmpBuf, 0, len);
-
-                    if (response.checkPaused(supportsRangedDownload(conn))) {
-                        // Should release the current thread and connection on pause
-                        return;
-                    }
-
-                    if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
-                        //Clean up already downloaded memory
-                        response.setStream(null);
-                        return;
-                    }
+            prepareRequest(conn);
+            long started = connect(conn);
+            download(conn, started);
+            reusable = true;
+        } catch (IOException | InterruptedException e) {
+            if (!retryLater(e, conn)) {
+                metrics.downloadFailed(host, e);
+                closeStorage();
+                response.fail();
+            }
+        } finally {
+            finalizeConnection(conn, reusable);
+            response.workerStopped();
+        }
+    }
+
+    /**
+     * Schedules the download to be started again after a failure if the retry policy of the request allows it
+     *
+     * @param conn the connection of the failed attempt or {@code null}
+     * @return true if the retry is scheduled, false if the download should fail
+     */
+    boolean retryLater(Exception cause, URLConnection conn) {
+        return retryLater(cause, conn, new Runnable() {
+            @Override
+            public void run() {
+                response.retry();
+            }
+        });
+    }
+
+    /**
+     * Schedules another attempt after a failure if the retry policy of the request allows it.
+     * <p/>
+     * The downloaded bytes are kept, the next attempt continues from them with a ranged request
+     * if the server supports it. The attempt is started by the timer, no thread waits for it.
+     *
+     * @param conn the connection of the failed attempt or {@code null}
+     * @param retry starts the next attempt
+     * @return true if the retry is scheduled, false if the download should fail
+     */
+    boolean retryLater(Exception cause, URLConnection conn, Runnable retry) {
+        return retryLater(request, response, retryTimer, metrics, host, cause,
+                conn == null ? -1 : getResponseCode(conn), retry);
+    }
+
+    /**
+     * Schedules another attempt of a blocking download after a failure if the retry policy of the request allows it.
+     * Shared by the downloads of all the protocols run on the worker threads.
+     *
+     * @param retryTimer the timer starting the attempt once its backoff has passed
+     * @param statusCode the status code of the failed attempt, -1 if there is none
+     * @param retry starts the next attempt
+     * @return true if the retry is scheduled, false if the download should fail
+     */
+    static boolean retryLater(DownloadRequest request, DownloadResponseImpl response,
+                              ScheduledExecutorService retryTimer, DownloadMetrics metrics, String host,
+                              Exception cause, int statusCode, Runnable retry) {
+        RetryPolicy policy = request.getRetryPolicy();
+        if (!(cause instanceof IOException)
+                || response.getStatus() == DownloadResponseImpl.Status.CANCELLED
+                || !policy.isRetryable((IOException) cause, statusCode)) {
+            return false;
+        }
+        int retries = response.countRetry();
+        if (retries >= policy.getMaxAttempts()) {
+            return false;
+        }
+        try {
+            retryTimer.schedule(retry, policy.getBackoff(retries), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The manager is closed
+            return false;
+        }
+        metrics.downloadRetried(host, cause);
+        return true;
+    }
+
+    /**
+     * Sends the prepared request and waits for the head of the response,
+     * recording the time to connect and the time to the first byte
+     *
+     * @return the time the connection was requested, in nanoseconds
+     * @throws IOException if failed to connect
+     */
+    long connect(URLConnection conn) throws IOException {
+        long started = System.nanoTime();
+        conn.connect();
+        metrics.connected(host, System.nanoTime() - started);
+        // Reading a header field waits for the response, the errors are reported once the content is read
+        conn.getHeaderField(0);
+        metrics.responseReceived(host, System.nanoTime() - started);
+        return started;
+    }
+
+    /**
+     * Downloads the content from the already connected connection
+     *
+     * @param started the time the connection was requested, in nanoseconds
+     */
+    void download(URLConnection conn, long started) throws IOException, InterruptedException {
+        prepareStream(conn);
+
+        AdaptiveBuffer tmpBuf = new AdaptiveBuffer(bufferPool);
+        try (InputStream inputStream = conn.getInputStream()) {
+            if (!response.start()) {
+                // Paused or cancelled while connecting
+                if (response.checkPaused(supportsRangedDownload(conn))
+                        || response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+                    return;
+                }
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                int len = inputStream.read(tmpBuf.array(), 0, limitRead(tmpBuf.array().length));
+                if (len == -1) {
+                    // The stream of the JDK just ends if the connection is dropped
+                    response.checkContentComplete();
+                    response.getStorage().close();
+                    response.verifyDigest();
+                    metrics.downloadFinished(host, System.nanoTime() - started);
+                    // A download paused meanwhile is finished by its resume, a cancelled one is not
+                    response.finish();
+                    break;
+                }
+                int written = response.storeContent(tmpBuf.array(), 0, len);
+                tmpBuf.adapt(len);
+                metrics.bytesDownloaded(host, len);
+                response.contentWritten(written, len, true);
+                throttle(len);
+
+                if (response.checkPaused(supportsRangedDownload(conn))) {
+                    // Should release the current thread and connection on pause
+                    return;
+                }
+
+                if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+                    // Already downloaded bytes are cleaned up when the worker stops
+                    return;
                 }
             }
-        } catch (IOException | InterruptedException e) {
-            response.setStatus(DownloadResponseImpl.Status.FAILED);
         } finally {
-            finalizeConnection(conn);
+            tmpBuf.release();
         }
     }
 
     /**
-     * Prepares an output stream to start or resume a download and sets in to the
+     * @param length the size of the read buffer
+     * @return the number of bytes to read at once within the rate limits
+     */
+    int limitRead(int length) {
+        return limiter.limitRead(host, response.getBandwidth(), length);
+    }
+
+    /**
+     * Charges the read bytes to the rate limits and waits if the download is ahead of them.
+     * The connection is not read meanwhile, so the server is slowed down by the flow control of TCP
+     */
+    void throttle(int len) throws InterruptedException {
+        response.awaitBandwidth(limiter.take(host, response.getBandwidth(), len));
+    }
+
+    /**
+     * Sets the request to continue the download from the already downloaded bytes, if any.
+     * Should only get here if it is supported.
+     * <p/>
+     * The download is resumed only if the content has not changed since it was started.
+     * The decoded content is continued from the encoded bytes decoded so far
+     */
+    private void prepareRequest(URLConnection conn) {
+        if (response.getStorage() != null) {
+            setContinueDownloadFrom(response.getResumePosition(), conn);
+            String validator = response.getValidator();
+            if (validator != null) {
+                setValidator(validator, conn);
+            }
+        }
+    }
+
+    /**
+     * Prepares a storage to start or resume a download and sets in to the
      * {@link pchelolo.downloader.DownloadResponse}.
      * Checks and saves if the server and a protocol supports resuming downloads.
+     * <p/>
+     * If the content has changed since the download was started,
+     * the already downloaded bytes are dropped and the download starts over.
      *
-     * @throws RuntimeException if the {@link pchelolo.downloader.DownloadResponse}
-     *                          already has some output,
-     *                          but the server does not support resuming connections
-     */
-    private void prepareStream(URLConnection conn) {
-        if (response.getStream() == null) {
-            // Starting a new download task
-            // Initialize the stream
-            int contentLength = conn.getContentLength();
-            //If the contentLength is not set - take some initial size
-            if (contentLength == -1) {
-                contentLength = INITIAL_OUTPUT_SIZE;
+     * @throws IOException if failed to create the destination file
+     */
+    private void prepareStream(URLConnection conn) throws IOException {
+        if (response.getStorage() != null) {
+            if (isRangeApplied(conn)) {
+                return;
+            }
+            // The whole content is sent instead
+            response.getStorage().discard();
+            response.setBytesDownloaded(0);
+        }
+        // Starting a new download task
+        // Initialize the storage
+        response.setContentLength(conn.getContentLengthLong());
+        response.setValidator(getValidator(conn));
+        response.setStorage(createStorage(request, conn.getContentLengthLong()));
+        ContentDecoder decoder = createDecoder(conn);
+        response.setDecoder(decoder);
+        // The state of the decoder could not be recorded to continue the download after a restart
+        if (journal != null && request.getDestination() != null && supportsRangedDownload(conn) && decoder == null) {
+            journal.register(request, response);
+        }
+    }
+
+    /**
+     * Creates the decoder of the content if the server has encoded it and the request asks to decode it
+     *
+     * @return the decoder or {@code null} if the content is stored as received
+     */
+    ContentDecoder createDecoder(URLConnection conn) {
+        if (request.getCompression() != DownloadRequest.Compression.DECODED) {
+            return null;
+        }
+        return ContentDecoder.forEncoding(getContentEncoding(conn));
+    }
+
+    /**
+     * Creates a storage for a new download: a file if the request has a destination,
+     * a memory buffer otherwise
+     *
+     * @param contentLength the length of the content or -1 if it is not known
+     * @throws IOException if failed to create the destination file
+     */
+    static DownloadStorage createStorage(DownloadRequest request, long contentLength) throws IOException {
+        if (request.getDestination() != null) {
+            return new FileStorage(request.getDestination());
+        }
+        //If the contentLength is not set or does not fit an array - take some initial size
+        if (contentLength == -1 || contentLength > Integer.MAX_VALUE) {
+            contentLength = INITIAL_OUTPUT_SIZE;
+        }
+        return new MemoryStorage((int) contentLength);
+    }
+
+    void closeStorage() {
+        closeStorage(response);
+    }
+
+    /**
+     * Closes the storage of a failing download, if it has any
+     */
+    static void closeStorage(DownloadResponseImpl response) {
+        DownloadStorage storage = response.getStorage();
+        if (storage != null) {
+            try {
+                storage.close();
+            } catch (IOException e) {
+                // Already failing, the download result is incomplete anyway
             }
-            response.setStream(new ByteArrayOutputStream(contentLength));
-        } else {
-            // Set to continue the download process from the specific point.
-            // Should only get here if it is supported.
-            setContinueDownloadFrom(response.getStream().size(), conn);
         }
     }
 
@@ -103,9 +330,12 @@ abstract class DownloadTask implements Runnable {
     protected abstract URLConnection prepareConnection() throws IOException;
 
     /**
-     * Closes the connection
+     * Releases the connection
+     *
+     * @param reusable true if the content was read without errors and the stream was closed,
+     *                 so the connection could be kept alive for the following requests to the same server
      */
-    protected abstract void finalizeConnection(URLConnection conn);
+    protected abstract void finalizeConnection(URLConnection conn, boolean reusable);
 
     /**
      * Checks if the server and a protocol supports resuming the download from a specific place
@@ -118,5 +348,74 @@ abstract class DownloadTask implements Runnable {
      *
      * @param byteNumber where to start download form. Inclusively
      */
-    protected abstract void setContinueDownloadFrom(int byteNumber, URLConnection conn);
+    protected abstract void setContinueDownloadFrom(long byteNumber, URLConnection conn);
+
+    /**
+     * Returns a validator identifying the version of the content, so that a download
+     * could be resumed later only if the content has not changed
+     *
+     * @return the validator or {@code null} if the server has not provided any
+     */
+    protected abstract String getValidator(URLConnection conn);
+
+    /**
+     * Makes the ranged request conditional: the server responds with the whole content
+     * instead of the range if the content does not match the validator anymore
+     */
+    protected abstract void setValidator(String validator, URLConnection conn);
+
+    /**
+     * @return the entity tag identifying the version of the content or {@code null}
+     */
+    protected abstract String getETag(URLConnection conn);
+
+    /**
+     * @return the date the content was last modified or {@code null}
+     */
+    protected abstract String getLastModified(URLConnection conn);
+
+    /**
+     * Makes the request conditional: the server responds without the content
+     * if the cached version of the content is still valid
+     *
+     * @param eTag the entity tag of the cached version or {@code null}
+     * @param lastModified the date the cached version was last modified or {@code null}
+     */
+    protected abstract void setRevalidation(String eTag, String lastModified, URLConnection conn);
+
+    /**
+     * Checks if the server has confirmed the cached version of the content is still valid
+     *
+     * @throws IOException if failed to read the response
+     */
+    protected abstract boolean isNotModified(URLConnection conn) throws IOException;
+
+    /**
+     * Sets to download only the specific range of bytes
+     *
+     * @param from the first byte of the range. Inclusively
+     * @param to the last byte of the range. Inclusively
+     */
+    protected abstract void setDownloadRange(long from, long to, URLConnection conn);
+
+    /**
+     * Returns the status code of the response, so that the failures could be told apart
+     *
+     * @return the status code or -1 if there was no response or the protocol has no status codes
+     */
+    protected abstract int getResponseCode(URLConnection conn);
+
+    /**
+     * Returns the encoding the content is compressed with for the transfer
+     *
+     * @return the encoding or {@code null} if the content is sent as is
+     */
+    protected abstract String getContentEncoding(URLConnection conn);
+
+    /**
+     * Checks if the server has responded with the requested range rather than with the whole content
+     *
+     * @throws IOException if failed to read the response
+     */
+    protected abstract boolean isRangeApplied(URLConnection conn) throws IOException;
 }
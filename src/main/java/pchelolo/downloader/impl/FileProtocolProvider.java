@@ -0,0 +1,100 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.ContentSource;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.ProtocolProvider;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Provides the content of the local files, the {@code file} protocol.
+ * <p/>
+ * The content is read from a {@link FileChannel}, so it is copied to a destination file
+ * by the operating system and mapped into memory otherwise.
+ * The version of the file is identified by its modification time and size.
+ */
+public class FileProtocolProvider implements ProtocolProvider {
+
+    @Override
+    public boolean supports(String protocol) {
+        return "file".equals(protocol);
+    }
+
+    @Override
+    public ContentSource open(URL url, DownloadRequest request, long position, String validator)
+            throws IOException {
+        Path path;
+        try {
+            path = Paths.get(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Invalid file URL " + url, e);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            String current = Files.getLastModifiedTime(path).toMillis() + "-" + size;
+            if (position > size || !current.equals(validator)) {
+                // The file has changed, starting over
+                position = 0;
+            }
+            channel.position(position);
+            return new FileSource(channel, position, size, current);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static class FileSource implements ContentSource {
+
+        private final FileChannel channel;
+        private final long position;
+        private final long size;
+        private final String validator;
+
+        FileSource(FileChannel channel, long position, long size, String validator) {
+            this.channel = channel;
+            this.position = position;
+            this.size = size;
+            this.validator = validator;
+        }
+
+        @Override
+        public ReadableByteChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public long getContentLength() {
+            return size;
+        }
+
+        @Override
+        public String getValidator() {
+            return validator;
+        }
+
+        @Override
+        public boolean supportsRanges() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the downloaded bytes to a file through a {@link FileChannel},
+ * so nothing but the read buffer is kept in memory.
+ */
+class FileStorage implements DownloadStorage {
+
+    private final Path path;
+    private volatile FileChannel channel;
+    private volatile long size;
+
+    /**
+     * Creates the destination file or truncates it if it exists
+     */
+    FileStorage(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Opens the existing file to continue a download, dropping the bytes after the length.
+     * The bytes are appended after the length
+     *
+     * @param length the number of bytes already stored or the allocated length
+     * @throws IOException if the file does not exist or is shorter than the length
+     */
+    FileStorage(Path path, long length) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        if (channel.size() < length) {
+            channel.close();
+            throw new IOException("File " + path + " is shorter than " + length + " bytes");
+        }
+        channel.truncate(length);
+        channel.position(length);
+        this.size = length;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(buf, off, len);
+        while (data.hasRemaining()) {
+            size += channel.write(data);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The file is created sparse, the filesystem allocates blocks as they are written
+     */
+    @Override
+    public void allocate(long length) throws IOException {
+        if (length > 0) {
+            channel.write(ByteBuffer.allocate(1), length - 1);
+        }
+        size = length;
+    }
+
+    @Override
+    public void write(long position, byte[] buf, int off, int len) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(buf, off, len);
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A file is copied by the operating system, without passing through the memory of the JVM
+     */
+    @Override
+    public long transferFrom(ReadableByteChannel source, long count) throws IOException {
+        long len;
+        if (source instanceof FileChannel) {
+            FileChannel file = (FileChannel) source;
+            long position = file.position();
+            if (position >= file.size()) {
+                return -1;
+            }
+            len = file.transferTo(position, count, channel);
+            file.position(position + len);
+        } else {
+            // The appended bytes are written at the position of the channel
+            len = channel.transferFrom(source, size, count);
+            if (len == 0) {
+                // A blocking channel only reads nothing at its end
+                return -1;
+            }
+            channel.position(size + len);
+        }
+        size += len;
+        return len;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+        return Files.readAllBytes(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The file is mapped into memory, so the bytes are paged in on access
+     *
+     * @throws IOException if the file is too large to be mapped
+     */
+    @Override
+    public ByteBuffer asByteBuffer() throws IOException {
+        try (FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = readChannel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File of " + length + " bytes could not be mapped");
+            }
+            // The mapping stays valid after the channel is closed
+            return readChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The channel follows the file while it grows
+     */
+    @Override
+    public ReadableByteChannel openChannel() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    @Override
+    public void force() throws IOException {
+        FileChannel channel = this.channel;
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public void discard() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+        size = 0;
+    }
+}
@@ -0,0 +1,271 @@
+package pchelolo.downloader.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The representations of HPACK, the header compression of HTTP/2 (RFC 7541):
+ * the static table, the integers, the strings and their Huffman code.
+ * <p/>
+ * The request headers are encoded as literals not added to the dynamic table of the server,
+ * so the encoding is stateless. The response headers are decoded by a {@link HpackDecoder}.
+ */
+final class Hpack {
+
+    /**
+     * The entries of the static table, the index of an entry is its position plus one
+     */
+    static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+
+    /**
+     * The lengths of the Huffman codes of the octets and of the end of string, the last one.
+     * The code is canonical, so the codes themselves follow from their lengths
+     */
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+
+    // The symbols ordered by their codes, and per code length the first code and the position of its symbol
+    private static final int[] SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+
+    static {
+        int code = 0;
+        int position = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            FIRST_SYMBOL[length] = position;
+            for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+                if (HUFFMAN_LENGTHS[symbol] == length) {
+                    SYMBOLS[position++] = symbol;
+                    CODE_COUNT[length]++;
+                }
+            }
+            code = (code + CODE_COUNT[length]) << 1;
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Encodes the header as an entry of the static table if it is there,
+     * or as a literal never added to the dynamic table otherwise
+     *
+     * @param name the lowercase name of the header
+     */
+    static void writeHeader(ByteArrayOutputStream out, String name, String value) {
+        int nameIndex = 0;
+        for (int i = 0; i < STATIC_TABLE.length; i++) {
+            if (STATIC_TABLE[i][0].equals(name)) {
+                if (STATIC_TABLE[i][1].equals(value)) {
+                    writeInteger(out, 0x80, 7, i + 1);
+                    return;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = i + 1;
+                }
+            }
+        }
+        // Literal header field without indexing
+        writeInteger(out, 0x00, 4, nameIndex);
+        if (nameIndex == 0) {
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    /**
+     * Writes the integer with an N-bit prefix
+     *
+     * @param flags the bits of the first octet before the prefix
+     */
+    static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Writes the string as its raw octets, the short request headers would not gain much from the Huffman code
+     */
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInteger(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads the integer with an N-bit prefix, the bits of the first octet before the prefix are ignored
+     *
+     * @throws IOException if the integer is truncated or too large
+     */
+    static int readInteger(ByteBuffer in, int prefixBits) throws IOException {
+        int max = (1 << prefixBits) - 1;
+        int value = in.get() & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (!in.hasRemaining() || shift > 21) {
+                throw new IOException("Malformed HPACK integer");
+            }
+            b = in.get() & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (value < 0) {
+            throw new IOException("Malformed HPACK integer");
+        }
+        return value;
+    }
+
+    /**
+     * Reads the string, decoding its Huffman code if it is encoded
+     *
+     * @throws IOException if the string is truncated or its Huffman code is malformed
+     */
+    static String readString(ByteBuffer in) throws IOException {
+        if (!in.hasRemaining()) {
+            throw new IOException("Malformed HPACK string");
+        }
+        boolean huffman = (in.get(in.position()) & 0x80) != 0;
+        int length = readInteger(in, 7);
+        if (length > in.remaining()) {
+            throw new IOException("Malformed HPACK string");
+        }
+        if (huffman) {
+            return decodeHuffman(in, length);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.ISO_8859_1);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static String decodeHuffman(ByteBuffer in, int length) throws IOException {
+        StringBuilder value = new StringBuilder(length * 8 / 5);
+        int code = 0;
+        int codeLength = 0;
+        for (int i = 0; i < length; i++) {
+            int b = in.get() & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                code = (code << 1) | ((b >>> bit) & 1);
+                codeLength++;
+                // The codes of the same length are consecutive, the prefixes of the longer codes follow them
+                int offset = code - FIRST_CODE[codeLength];
+                if (offset >= 0 && offset < CODE_COUNT[codeLength]) {
+                    int symbol = SYMBOLS[FIRST_SYMBOL[codeLength] + offset];
+                    if (symbol == EOS) {
+                        throw new IOException("Huffman code contains the end of string");
+                    }
+                    value.append((char) symbol);
+                    code = 0;
+                    codeLength = 0;
+                } else if (codeLength == MAX_CODE_LENGTH) {
+                    throw new IOException("Malformed Huffman code");
+                }
+            }
+        }
+        // Padded with the most significant bits of the end of string, all ones
+        if (codeLength > 7 || code != (1 << codeLength) - 1) {
+            throw new IOException("Malformed Huffman padding");
+        }
+        return value.toString();
+    }
+}
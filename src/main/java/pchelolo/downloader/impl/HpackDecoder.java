@@ -0,0 +1,124 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the header blocks received over an HTTP/2 connection (RFC 7541).
+ * <p/>
+ * The blocks share the dynamic table of the connection, so they are decoded in the order they are received,
+ * including the blocks of the streams which are already reset.
+ * Only accessed by the thread reading the connection.
+ */
+class HpackDecoder {
+
+    // The size of an entry counts its name and value octets and the overhead
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private final int maxTableSize;
+    // The oldest entry first, the newest entry has the lowest index
+    private final List<String[]> dynamicTable = new ArrayList<>();
+    private int tableSize = 0;
+    private int tableLimit;
+
+    /**
+     * @param maxTableSize the limit of the dynamic table advertised to the server
+     */
+    HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        this.tableLimit = maxTableSize;
+    }
+
+    /**
+     * Decodes the complete header block
+     *
+     * @return the headers by their lowercase names, the values of a repeated header are joined with commas
+     * @throws IOException if the block is malformed, the connection could not be used anymore
+     */
+    Map<String, String> decode(ByteBuffer block) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        try {
+            while (block.hasRemaining()) {
+                int b = block.get(block.position()) & 0xff;
+                if ((b & 0x80) != 0) {
+                    // Indexed header field
+                    String[] entry = entry(Hpack.readInteger(block, 7));
+                    addHeader(headers, entry[0], entry[1]);
+                } else if ((b & 0xc0) == 0x40) {
+                    // Literal header field with incremental indexing
+                    String[] entry = readLiteral(block, 6);
+                    insert(entry);
+                    addHeader(headers, entry[0], entry[1]);
+                } else if ((b & 0xe0) == 0x20) {
+                    // Dynamic table size update
+                    int limit = Hpack.readInteger(block, 5);
+                    if (limit > maxTableSize) {
+                        throw new IOException("Dynamic table size " + limit + " exceeds the limit");
+                    }
+                    tableLimit = limit;
+                    evict(0);
+                } else {
+                    // Literal header field without indexing or never indexed
+                    String[] entry = readLiteral(block, 4);
+                    addHeader(headers, entry[0], entry[1]);
+                }
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("Truncated header block", e);
+        }
+        return headers;
+    }
+
+    private String[] readLiteral(ByteBuffer block, int prefixBits) throws IOException {
+        int nameIndex = Hpack.readInteger(block, prefixBits);
+        String name = nameIndex == 0 ? Hpack.readString(block) : entry(nameIndex)[0];
+        return new String[] {name, Hpack.readString(block)};
+    }
+
+    /**
+     * @throws IOException if there is no entry with the index
+     */
+    private String[] entry(int index) throws IOException {
+        if (index >= 1 && index <= Hpack.STATIC_TABLE.length) {
+            return Hpack.STATIC_TABLE[index - 1];
+        }
+        int dynamicIndex = index - Hpack.STATIC_TABLE.length - 1;
+        if (dynamicIndex < 0 || dynamicIndex >= dynamicTable.size()) {
+            throw new IOException("Invalid header index " + index);
+        }
+        return dynamicTable.get(dynamicTable.size() - 1 - dynamicIndex);
+    }
+
+    /**
+     * Adds the entry to the dynamic table, evicting the oldest entries to fit it.
+     * An entry larger than the table empties it and is not added
+     */
+    private void insert(String[] entry) {
+        int size = entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+        evict(size);
+        if (size <= tableLimit) {
+            dynamicTable.add(entry);
+            tableSize += size;
+        }
+    }
+
+    /**
+     * Evicts the oldest entries until there is room for the number of octets
+     */
+    private void evict(int room) {
+        while (!dynamicTable.isEmpty() && tableSize + room > tableLimit) {
+            String[] oldest = dynamicTable.remove(0);
+            tableSize -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    private static void addHeader(Map<String, String> headers, String name, String value) {
+        String previous = headers.get(name);
+        headers.put(name, previous == null ? value : previous + ", " + value);
+    }
+}
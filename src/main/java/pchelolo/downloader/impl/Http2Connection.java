@@ -0,0 +1,695 @@
+package pchelolo.downloader.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTP/2 connection multiplexing the downloads from a server as concurrent streams,
+ * driven by a {@link SelectorLoop}.
+ * <p/>
+ * The connection speaks cleartext HTTP/2 with prior knowledge (h2c): it starts with the connection preface
+ * rather than an upgrade from HTTP/1.1. The downloads exceeding the limit of concurrent streams
+ * of the server wait for the running streams to be over.
+ * <p/>
+ * The flow control windows are only replenished for the content already stored, so the server never sends
+ * more than a window ahead of the storage. The {@link Http2DownloadTask tasks} withhold the windows
+ * of the paused and throttled downloads, while the window of the connection is replenished for all
+ * the streams, so the other downloads go on.
+ * <p/>
+ * A failed connection fails or retries all its downloads. The streams refused by the server or left
+ * unprocessed by its GOAWAY are started again on a new connection. A connection without streams
+ * is closed once it is idle for a timeout.
+ * Only accessed by the loop thread.
+ */
+class Http2Connection implements SelectorLoop.Handler, SelectorLoop.Task {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int FRAME_DATA = 0x0;
+    private static final int FRAME_HEADERS = 0x1;
+    private static final int FRAME_RST_STREAM = 0x3;
+    private static final int FRAME_SETTINGS = 0x4;
+    private static final int FRAME_PUSH_PROMISE = 0x5;
+    private static final int FRAME_PING = 0x6;
+    private static final int FRAME_GOAWAY = 0x7;
+    private static final int FRAME_WINDOW_UPDATE = 0x8;
+    private static final int FRAME_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    // The default limit of both sides, never changed
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The window of a stream: the content the server could send ahead of a paused or throttled download
+     */
+    static final int STREAM_WINDOW = 1 << 18;
+
+    /**
+     * The window of the connection, shared by all the streams
+     */
+    private static final int CONNECTION_WINDOW = 1 << 24;
+
+    /**
+     * The limit of concurrent streams assumed until the settings of the server are received
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+    /**
+     * A violation of the protocol, the connection could not be used anymore
+     */
+    private static class ConnectionError extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int errorCode;
+
+        ConnectionError(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    private final Http2DownloadManager manager;
+    private final SelectorLoop loop;
+    private final String route;
+    private final InetSocketAddress address;
+    private final HpackDecoder decoder = new HpackDecoder(HEADER_TABLE_SIZE);
+    private final Map<Integer, Http2DownloadTask> streams = new HashMap<>();
+    private final Deque<Http2DownloadTask> pending = new ArrayDeque<>();
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private long connectDeadline;
+    private int nextStreamId = 1;
+    private int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+    // The content received since the window of the connection was replenished
+    private int credit = 0;
+    private long idleSince;
+    private boolean isConnected = false;
+    private boolean isSettingsReceived = false;
+    private boolean isRegistered = false;
+    private boolean isGoingAway = false;
+    private boolean isClosed = false;
+
+    // The header block continued by CONTINUATION frames
+    private ByteArrayOutputStream headerBlock;
+    private int headerStreamId;
+    private boolean isHeaderEndStream;
+
+    /**
+     * Queues the preface and the settings of the connection, followed by the requests of the streams
+     * opened before the connection is established
+     *
+     * @param route the host and port of the server
+     * @param address the resolved address of the server
+     */
+    Http2Connection(Http2DownloadManager manager, SelectorLoop loop, String route, InetSocketAddress address) {
+        this.manager = manager;
+        this.loop = loop;
+        this.route = route;
+        this.address = address;
+        ByteArrayOutputStream settings = new ByteArrayOutputStream();
+        writeSetting(settings, SETTINGS_HEADER_TABLE_SIZE, HEADER_TABLE_SIZE);
+        writeSetting(settings, SETTINGS_ENABLE_PUSH, 0);
+        writeSetting(settings, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+        outbound.add(ByteBuffer.wrap(PREFACE));
+        writeFrame(FRAME_SETTINGS, 0, 0, settings.toByteArray());
+        writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+    }
+
+    String getRoute() {
+        return route;
+    }
+
+    /**
+     * @return true if new streams could be opened on the connection
+     */
+    boolean isAcceptingStreams() {
+        return !isClosed && !isGoingAway;
+    }
+
+    /**
+     * Connects to the server, the queued frames are written once connected.
+     * A failure to connect fails or retries the downloads of the connection
+     *
+     * @param connectionWaitTime milliseconds to wait for the connection or 0 to wait indefinitely
+     */
+    void connect(int connectionWaitTime) {
+        try {
+            if (address.isUnresolved()) {
+                throw new IOException("Unknown host " + address.getHostString());
+            }
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            // The small frames, such as the window updates, should not wait for each other
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connectDeadline = connectionWaitTime > 0
+                    ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectionWaitTime) : 0;
+            if (channel.connect(address)) {
+                isConnected = true;
+                key = channel.register(loop.getSelector(), SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+            } else {
+                key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            failConnection(e);
+        }
+    }
+
+    /**
+     * Starts the download on a new stream, or once a running stream is over if the limit
+     * of concurrent streams is reached
+     */
+    void open(Http2DownloadTask task) {
+        task.streamQueued(this);
+        pending.add(task);
+        startPending();
+    }
+
+    /**
+     * Lets the server send more content of the stream
+     *
+     * @param increment the number of bytes stored since the window was replenished
+     */
+    void windowUpdate(int streamId, int increment) {
+        if (!isClosed) {
+            writeWindowUpdate(streamId, increment);
+        }
+    }
+
+    /**
+     * Forgets the download, resetting its stream (RST_STREAM) if it is still open
+     */
+    void reset(Http2DownloadTask task, int errorCode) {
+        pending.remove(task);
+        int streamId = task.getStreamId();
+        if (streams.get(streamId) == task) {
+            streams.remove(streamId);
+            if (!isClosed) {
+                ByteBuffer payload = ByteBuffer.allocate(4).putInt(errorCode);
+                writeFrame(FRAME_RST_STREAM, 0, streamId, payload.array());
+            }
+        }
+        streamClosed();
+    }
+
+    @Override
+    public void handle(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    isConnected = true;
+                    updateInterest();
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            failConnection(e);
+        }
+    }
+
+    /**
+     * Periodic check of the connect timeout
+     */
+    @Override
+    public void sweep(long now) {
+        if (!isConnected && connectDeadline != 0 && now - connectDeadline >= 0) {
+            failConnection(new SocketTimeoutException("Connect timed out"));
+        }
+    }
+
+    /**
+     * Fails all the downloads of the connection, the loop is broken
+     */
+    @Override
+    public void fail() {
+        List<Http2DownloadTask> tasks = takeTasks();
+        close(NO_ERROR);
+        for (Http2DownloadTask task : tasks) {
+            task.fail();
+        }
+    }
+
+    /**
+     * Closes the connection if it has no streams, called by the closing manager
+     */
+    void closeIfIdle() {
+        if (streams.isEmpty() && pending.isEmpty()) {
+            close(NO_ERROR);
+        }
+    }
+
+    private void flush() throws IOException {
+        if (!outbound.isEmpty()) {
+            // The frames queued meanwhile are written at once
+            channel.write(outbound.toArray(new ByteBuffer[outbound.size()]));
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+            }
+        }
+        updateInterest();
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(readBuf);
+        if (read == -1) {
+            throw new EOFException("The connection was closed by the server");
+        }
+        readBuf.flip();
+        while (!isClosed && readBuf.remaining() >= FRAME_HEADER_LENGTH) {
+            int start = readBuf.position();
+            int length = ((readBuf.get(start) & 0xff) << 16)
+                    | ((readBuf.get(start + 1) & 0xff) << 8)
+                    | (readBuf.get(start + 2) & 0xff);
+            int type = readBuf.get(start + 3) & 0xff;
+            int flags = readBuf.get(start + 4) & 0xff;
+            int streamId = readBuf.getInt(start + 5) & Integer.MAX_VALUE;
+            if (!isSettingsReceived && type != FRAME_SETTINGS) {
+                throw new ConnectionError(PROTOCOL_ERROR, "The server does not speak HTTP/2");
+            }
+            if (length > MAX_FRAME_SIZE) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes exceeds the limit");
+            }
+            if (readBuf.remaining() < FRAME_HEADER_LENGTH + length) {
+                break;
+            }
+            readBuf.position(start + FRAME_HEADER_LENGTH);
+            ByteBuffer payload = readBuf.slice();
+            payload.limit(length);
+            readBuf.position(start + FRAME_HEADER_LENGTH + length);
+            onFrame(type, flags, streamId, payload);
+        }
+        if (!isClosed) {
+            readBuf.compact();
+        }
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (headerBlock != null && type != FRAME_CONTINUATION) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Header block is interrupted by a frame of type " + type);
+        }
+        switch (type) {
+            case FRAME_DATA:
+                onData(flags, streamId, payload);
+                break;
+            case FRAME_HEADERS:
+                onHeaders(flags, streamId, payload);
+                break;
+            case FRAME_CONTINUATION:
+                if (headerBlock == null || streamId != headerStreamId) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+                }
+                headerBlock.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    onHeaderBlock();
+                }
+                break;
+            case FRAME_RST_STREAM:
+                if (payload.remaining() != 4) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Malformed RST_STREAM frame");
+                }
+                Http2DownloadTask task = streams.remove(streamId);
+                if (task != null) {
+                    task.streamReset(payload.getInt(0));
+                    streamClosed();
+                }
+                break;
+            case FRAME_SETTINGS:
+                onSettings(flags, streamId, payload);
+                break;
+            case FRAME_PING:
+                if (payload.remaining() != 8) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Malformed PING frame");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    byte[] data = new byte[8];
+                    payload.get(data);
+                    writeFrame(FRAME_PING, FLAG_ACK, 0, data);
+                }
+                break;
+            case FRAME_GOAWAY:
+                if (payload.remaining() < 8) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Malformed GOAWAY frame");
+                }
+                onGoAway(payload.getInt(0) & Integer.MAX_VALUE);
+                break;
+            case FRAME_PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "Server push is disabled");
+            default:
+                // PRIORITY, WINDOW_UPDATE and the extensions: nothing is sent but the requests
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on the connection");
+        }
+        int frameLength = payload.remaining();
+        // The frames of the reset streams count against the window of the connection as well
+        credit += frameLength;
+        if (credit >= CONNECTION_WINDOW / 2) {
+            writeWindowUpdate(0, credit);
+            credit = 0;
+        }
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            padding = frameLength > 0 ? payload.get() & 0xff : frameLength;
+            if (padding >= frameLength) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds the frame");
+            }
+        }
+        Http2DownloadTask task = streams.get(streamId);
+        if (task == null) {
+            // Reset meanwhile, its window is never replenished
+            return;
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if (endStream) {
+            streams.remove(streamId);
+        }
+        task.onData(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining() - padding,
+                frameLength, endStream);
+        if (endStream) {
+            streamClosed();
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS frame on the connection");
+        }
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            padding = payload.hasRemaining() ? payload.get() & 0xff : 0;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            payload.position(Math.min(payload.position() + 5, payload.limit()));
+        }
+        if (padding > payload.remaining()) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds the frame");
+        }
+        headerBlock = new ByteArrayOutputStream();
+        headerBlock.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining() - padding);
+        headerStreamId = streamId;
+        isHeaderEndStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    /**
+     * Decodes the complete header block, even if its stream is already reset, to keep the dynamic table in sync
+     */
+    private void onHeaderBlock() throws IOException {
+        ByteBuffer block = ByteBuffer.wrap(headerBlock.toByteArray());
+        headerBlock = null;
+        Map<String, String> headers;
+        try {
+            headers = decoder.decode(block);
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        Http2DownloadTask task = streams.get(headerStreamId);
+        if (task == null) {
+            return;
+        }
+        if (isHeaderEndStream) {
+            streams.remove(headerStreamId);
+        }
+        task.onHeaders(headers, isHeaderEndStream);
+        if (isHeaderEndStream) {
+            streamClosed();
+        }
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId != 0 || payload.remaining() % 6 != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Malformed SETTINGS frame");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            long value = payload.getInt() & 0xffffffffL;
+            if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+                maxConcurrentStreams = (int) Math.min(value, Integer.MAX_VALUE);
+            } else if (id == SETTINGS_INITIAL_WINDOW_SIZE && value > Integer.MAX_VALUE) {
+                throw new ConnectionError(FLOW_CONTROL_ERROR, "Initial window size " + value + " exceeds the limit");
+            }
+            // The other settings limit what is sent to the server, nothing is sent but the small requests
+        }
+        isSettingsReceived = true;
+        writeFrame(FRAME_SETTINGS, FLAG_ACK, 0, new byte[0]);
+        startPending();
+    }
+
+    /**
+     * The server is closing the connection: the streams it has not processed are started again
+     * on a new connection, the rest are finished before the connection is closed
+     */
+    private void onGoAway(int lastStreamId) {
+        isGoingAway = true;
+        manager.connectionRetired(this);
+        List<Http2DownloadTask> unprocessed = new ArrayList<>(pending);
+        pending.clear();
+        for (Iterator<Map.Entry<Integer, Http2DownloadTask>> it = streams.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Http2DownloadTask> stream = it.next();
+            if (stream.getKey() > lastStreamId) {
+                unprocessed.add(stream.getValue());
+                it.remove();
+            }
+        }
+        for (Http2DownloadTask task : unprocessed) {
+            task.streamRefused();
+        }
+        streamClosed();
+    }
+
+    /**
+     * Opens the streams of the pending downloads within the limit of concurrent streams
+     */
+    private void startPending() {
+        while (!isClosed && !pending.isEmpty() && streams.size() < maxConcurrentStreams) {
+            if (isGoingAway) {
+                // Out of stream identifiers, the pending downloads move to a new connection
+                List<Http2DownloadTask> moved = new ArrayList<>(pending);
+                pending.clear();
+                for (Http2DownloadTask task : moved) {
+                    task.streamRefused();
+                }
+                break;
+            }
+            Http2DownloadTask task = pending.poll();
+            int streamId = nextStreamId;
+            nextStreamId += 2;
+            streams.put(streamId, task);
+            task.streamOpened(streamId);
+            writeHeaders(streamId, task.buildHeaders());
+            if (nextStreamId < 0) {
+                isGoingAway = true;
+                manager.connectionRetired(this);
+            }
+        }
+        updateRegistration();
+    }
+
+    /**
+     * Starts the pending downloads in place of a stream which is over, or lets the connection idle
+     */
+    private void streamClosed() {
+        startPending();
+        if (!isClosed && streams.isEmpty() && pending.isEmpty()) {
+            if (isGoingAway || manager.isClosed()) {
+                close(NO_ERROR);
+                return;
+            }
+            final long since = System.nanoTime();
+            idleSince = since;
+            loop.schedule(this, new Runnable() {
+                @Override
+                public void run() {
+                    if (idleSince == since) {
+                        closeIfIdle();
+                    }
+                }
+            }, manager.getIdleTimeout());
+        }
+    }
+
+    /**
+     * Keeps the loop running while the connection has downloads
+     */
+    private void updateRegistration() {
+        boolean busy = !isClosed && (!streams.isEmpty() || !pending.isEmpty());
+        if (busy && !isRegistered) {
+            loop.register(this);
+            idleSince = 0;
+        } else if (!busy && isRegistered) {
+            loop.unregister(this);
+        }
+        isRegistered = busy;
+    }
+
+    private List<Http2DownloadTask> takeTasks() {
+        List<Http2DownloadTask> tasks = new ArrayList<>(streams.values());
+        tasks.addAll(pending);
+        streams.clear();
+        pending.clear();
+        return tasks;
+    }
+
+    /**
+     * Closes the connection and fails or retries all its downloads
+     */
+    private void failConnection(IOException cause) {
+        List<Http2DownloadTask> tasks = takeTasks();
+        close(cause instanceof ConnectionError ? ((ConnectionError) cause).errorCode : NO_ERROR);
+        for (Http2DownloadTask task : tasks) {
+            task.connectionFailed(cause);
+        }
+    }
+
+    /**
+     * Closes the connection, letting the server know with a GOAWAY frame if it is connected
+     */
+    private void close(int errorCode) {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        manager.connectionRetired(this);
+        if (channel != null) {
+            if (isConnected) {
+                ByteBuffer payload = ByteBuffer.allocate(8).putInt(0).putInt(errorCode);
+                outbound.clear();
+                writeFrame(FRAME_GOAWAY, 0, 0, payload.array());
+                try {
+                    // Best effort, the connection is closed anyway
+                    channel.write(outbound.poll());
+                } catch (IOException e) {
+                    // Already broken
+                }
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The connection is not used anymore
+            }
+        }
+        outbound.clear();
+        updateRegistration();
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid() || !isConnected) {
+            // Not connected yet, the frames are written once connected
+            return;
+        }
+        key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Sends the request of a stream, split into CONTINUATION frames if it exceeds a frame
+     */
+    private void writeHeaders(int streamId, List<String[]> headers) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        for (String[] header : headers) {
+            Hpack.writeHeader(block, header[0], header[1]);
+        }
+        byte[] bytes = block.toByteArray();
+        int offset = 0;
+        do {
+            int length = Math.min(bytes.length - offset, MAX_FRAME_SIZE);
+            int flags = offset + length == bytes.length ? FLAG_END_HEADERS : 0;
+            if (offset == 0) {
+                // Nothing is sent after the request head
+                writeFrame(FRAME_HEADERS, flags | FLAG_END_STREAM, streamId, bytes, offset, length);
+            } else {
+                writeFrame(FRAME_CONTINUATION, flags, streamId, bytes, offset, length);
+            }
+            offset += length;
+        } while (offset < bytes.length);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) {
+        writeFrame(FRAME_WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private static void writeSetting(ByteArrayOutputStream out, int id, int value) {
+        out.write(id >>> 8);
+        out.write(id);
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) {
+        writeFrame(type, flags, streamId, payload, 0, payload.length);
+    }
+
+    /**
+     * Queues the frame to be written once the channel is writable
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + len);
+        frame.put((byte) (len >>> 16)).put((byte) (len >>> 8)).put((byte) len)
+                .put((byte) type)
+                .put((byte) flags)
+                .putInt(streamId)
+                .put(payload, off, len);
+        frame.flip();
+        outbound.add(frame);
+        updateInterest();
+    }
+}
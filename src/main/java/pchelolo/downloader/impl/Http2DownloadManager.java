@@ -0,0 +1,226 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadBatch;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+import pchelolo.downloader.MirrorResolver;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download manager multiplexing the downloads from the same server as streams of a single HTTP/2 connection.
+ * <p/>
+ * Suits many small downloads from a server: they share the connection instead of paying for a connection
+ * and a request round trip each, and their requests are sent at once within the limit of concurrent
+ * streams of the server. The connections are served by a single selector thread.
+ * <p/>
+ * The downloads are paused with the flow control of their streams: the server stops sending the content
+ * of a paused download once its window is exhausted, while the rest of the streams go on, and it continues
+ * on resume without a new request. A cancelled download resets its stream.
+ * <p/>
+ * The servers are spoken to in cleartext HTTP/2 with prior knowledge (h2c), so only the {@code http} URLs
+ * of the servers known to support it are downloaded. The segmented downloads are not supported,
+ * the number of segments is ignored.
+ */
+public class Http2DownloadManager implements DownloadManagerImpl {
+
+    private static final long DEFAULT_IDLE_TIMEOUT = 5000;
+
+    private final SelectorLoop loop;
+    private final long idleTimeout;
+    private final ConcurrentMap<DownloadResponseImpl, Http2DownloadTask> tasks = new ConcurrentHashMap<>();
+    // Only accessed by the loop thread
+    private final Map<String, Http2Connection> connections = new HashMap<>();
+    private final BandwidthLimiter limiter = new BandwidthLimiter();
+    private volatile boolean closed = false;
+
+    /**
+     * @throws IllegalStateException if failed to open the selector
+     */
+    public Http2DownloadManager() {
+        this(DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param idleTimeout milliseconds to keep a connection without streams open
+     * @throws IllegalStateException if failed to open the selector
+     */
+    public Http2DownloadManager(long idleTimeout) {
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        try {
+            // The pool of the loop is left empty, the connections are shared rather than leased
+            loop = new SelectorLoop("download-http2", new ConnectionPool(this.idleTimeout, 0));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open a selector", e);
+        }
+        loop.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The paused downloads keep their streams, their windows are replenished by the tasks on resume
+     */
+    @Override
+    public void resumeDownload(DownloadRequest request, DownloadResponseImpl response) {
+        if (tasks.containsKey(response)) {
+            return;
+        }
+        String protocol = request.getUrl().getProtocol().toLowerCase();
+        if (!"http".equals(protocol)) {
+            throw new UnsupportedOperationException("Protocol " + protocol + " is not supported");
+        }
+        if (closed) {
+            throw new RejectedExecutionException("The download manager is closed");
+        }
+        final Http2DownloadTask task = new Http2DownloadTask(this, loop, request, response);
+        tasks.put(response, task);
+        loop.execute(task, new Runnable() {
+            @Override
+            public void run() {
+                task.start();
+            }
+        });
+    }
+
+    /**
+     * Opens a stream of the download on the connection to its server, connecting if there is none.
+     * Only called by the loop thread.
+     */
+    void openStream(Http2DownloadTask task) {
+        Http2Connection connection = connections.get(task.getRoute());
+        if (connection != null && connection.isAcceptingStreams()) {
+            connection.open(task);
+            return;
+        }
+        connection = new Http2Connection(this, loop, task.getRoute(), task.getAddress());
+        connections.put(task.getRoute(), connection);
+        connection.open(task);
+        connection.connect(task.getConnectionWaitTime());
+    }
+
+    /**
+     * Stops opening new streams on the connection, which is closed or going away.
+     * Only called by the loop thread.
+     */
+    void connectionRetired(Http2Connection connection) {
+        connections.remove(connection.getRoute(), connection);
+    }
+
+    BandwidthLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @return nanoseconds to keep a connection without streams open
+     */
+    long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Forgets the task which is over
+     */
+    void taskFinished(DownloadResponseImpl response, Http2DownloadTask task) {
+        tasks.remove(response, task);
+    }
+
+    // ------------- PUBLIC API ---------- //
+
+    /**
+     * {@inheritDoc}
+     *
+     * The downloads are not journaled by this manager, so there is nothing to recover
+     */
+    @Override
+    public List<DownloadResponse> recover() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public DownloadResponse download(DownloadRequest request) {
+        DownloadResponseImpl response = new DownloadResponseImpl(request, this);
+        resumeDownload(request, response);
+        return response;
+    }
+
+    @Override
+    public DownloadBatch downloadAll(Iterator<? extends DownloadRequest> requests, int maxInFlight) {
+        return new DownloadBatchImpl(this, requests, maxInFlight);
+    }
+
+    @Override
+    public DownloadBatch downloadAll(Iterable<? extends DownloadRequest> requests, int maxInFlight) {
+        return downloadAll(requests.iterator(), maxInFlight);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A throttled download withholds the window of its stream until a timer lets it continue,
+     * the server could send up to the window ahead of the limits
+     */
+    @Override
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        limiter.setMaxBytesPerSecond(maxBytesPerSecond);
+    }
+
+    @Override
+    public void setMaxBytesPerSecondPerHost(String host, long maxBytesPerSecond) {
+        limiter.setMaxBytesPerSecondPerHost(host, maxBytesPerSecond);
+    }
+
+    /**
+     * Not supported: the connections only speak cleartext HTTP/2
+     */
+    @Override
+    public void setSSLContext(SSLContext sslContext) {
+        throw new UnsupportedOperationException("Protocol https is not supported");
+    }
+
+    /**
+     * Not supported: the connections only speak cleartext HTTP/2, the mirrors are served by the protocol providers
+     */
+    @Override
+    public void setMirrorResolver(MirrorResolver mirrorResolver) {
+        throw new UnsupportedOperationException("The mirrors are not supported");
+    }
+
+    /**
+     * Stops accepting new downloads, the idle connections are closed right away and the rest
+     * once their downloads are over, then the selector thread terminates
+     * @throws Exception
+     */
+    @Override
+    public void close() throws Exception {
+        closed = true;
+        try {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Http2Connection connection : new ArrayList<>(connections.values())) {
+                        connection.closeIfIdle();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Already closed
+        }
+        loop.shutdown();
+    }
+}
@@ -0,0 +1,506 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+import pchelolo.downloader.RetryPolicy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A download multiplexed as a stream of an {@link Http2Connection}.
+ * <p/>
+ * The content is stored as its frames are received, and the flow control window of the stream is replenished
+ * once half of it is stored. The window of a paused download is withheld, so the server stops sending
+ * its content without a reconnect, and is replenished on resume. A download ahead of its rate limits
+ * withholds the window until a timer of the loop lets it continue. A cancelled download resets its stream
+ * (RST_STREAM) right away. The status changes are noticed by a listener of the response, handing them over
+ * to the loop.
+ * <p/>
+ * A failed download is retried on a new stream according to the retry policy of the request,
+ * continuing from the downloaded bytes with a ranged request if the server supports it.
+ * Only accessed by the loop thread.
+ */
+class Http2DownloadTask implements SelectorLoop.Task {
+
+    private static final int MAX_REDIRECTS = 20;
+
+    private final Http2DownloadManager manager;
+    private final SelectorLoop loop;
+    private final DownloadRequest request;
+    private final DownloadResponseImpl response;
+    private final DownloadResponse.StatusListener statusListener;
+
+    private URL url;
+    private InetSocketAddress address;
+    private String route;
+    private String host;
+    private Http2Connection connection;
+    private int streamId;
+    private int statusCode = -1;
+    // The content stored since the window of the stream was replenished
+    private int credit = 0;
+    private int redirects = 0;
+    private boolean isHeadReceived = false;
+    private boolean supportsRangedDownload = false;
+    private boolean isThrottled = false;
+    private boolean isWorkerRunning = false;
+    private boolean isClosed = false;
+
+    /**
+     * Resolves the address of the server on the calling thread, so that the loop is not blocked by DNS
+     */
+    Http2DownloadTask(Http2DownloadManager manager, SelectorLoop loop, DownloadRequest request,
+                      DownloadResponseImpl response) {
+        this.manager = manager;
+        this.loop = loop;
+        this.request = request;
+        this.response = response;
+        this.statusListener = new DownloadResponse.StatusListener() {
+            @Override
+            public void statusChanged(DownloadResponse response, DownloadResponse.Status oldStatus,
+                                      DownloadResponse.Status newStatus) {
+                if (oldStatus == DownloadResponse.Status.PAUSED && (newStatus == DownloadResponse.Status.IN_PROGRESS
+                        || newStatus == DownloadResponse.Status.NOT_STARTED)) {
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            resume();
+                        }
+                    });
+                } else if (newStatus == DownloadResponse.Status.CANCELLED) {
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            cancel();
+                        }
+                    });
+                }
+            }
+        };
+        setUrl(request.getUrl());
+    }
+
+    String getRoute() {
+        return route;
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    int getConnectionWaitTime() {
+        return request.getConnectionWaitTime();
+    }
+
+    int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Starts the download on a stream of the connection to the server
+     */
+    void start() {
+        response.workerStarted();
+        isWorkerRunning = true;
+        response.addStatusListener(statusListener);
+        if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+            close();
+            return;
+        }
+        openStream();
+    }
+
+    private void openStream() {
+        isHeadReceived = false;
+        statusCode = -1;
+        manager.openStream(this);
+    }
+
+    /**
+     * Called by the connection once the download is queued for a stream of it
+     */
+    void streamQueued(Http2Connection connection) {
+        this.connection = connection;
+        this.streamId = 0;
+    }
+
+    /**
+     * Called by the connection once the request is sent on the stream
+     */
+    void streamOpened(int streamId) {
+        this.streamId = streamId;
+        this.credit = 0;
+    }
+
+    /**
+     * @return the request headers of the stream, the pseudo-headers first
+     */
+    List<String[]> buildHeaders() {
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        String authority = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[] {":method", "GET"});
+        headers.add(new String[] {":scheme", "http"});
+        headers.add(new String[] {":authority", authority});
+        headers.add(new String[] {":path", path});
+        headers.add(new String[] {"accept", "*/*"});
+        if (request.getCompression() != DownloadRequest.Compression.NONE) {
+            headers.add(new String[] {"accept-encoding", "gzip, deflate"});
+        }
+        if (response.getStorage() != null) {
+            // Continue the download process from the specific point.
+            // Should only get here if it is supported.
+            headers.add(new String[] {"range", "bytes=" + response.getResumePosition() + "-"});
+        }
+        return headers;
+    }
+
+    /**
+     * Handles the response head, the informational heads or the trailers
+     *
+     * @param endStream true if the stream is over, it is already closed by the connection
+     */
+    void onHeaders(Map<String, String> headers, boolean endStream) {
+        try {
+            if (isHeadReceived) {
+                // The trailers are ignored
+                if (endStream) {
+                    finish();
+                }
+                return;
+            }
+            int code;
+            try {
+                code = Integer.parseInt(headers.get(":status"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed response status " + headers.get(":status"));
+            }
+            if (code / 100 == 1) {
+                if (endStream) {
+                    throw new IOException("The stream was closed before the response");
+                }
+                return;
+            }
+            statusCode = code;
+            isHeadReceived = true;
+            if (prepareStream(headers) && endStream) {
+                finish();
+            }
+        } catch (IOException e) {
+            reset();
+            failOrRetry(e);
+        }
+    }
+
+    /**
+     * Stores the content of a DATA frame
+     *
+     * @param len the length of the content, without the padding
+     * @param frameLength the length of the frame counted against the window
+     * @param endStream true if the stream is over, it is already closed by the connection
+     */
+    void onData(byte[] buf, int off, int len, int frameLength, boolean endStream) {
+        try {
+            if (!isHeadReceived) {
+                throw new IOException("The content was sent before the response head");
+            }
+            int written = response.storeContent(buf, off, len);
+            // The loop thread could not wait for slow content streams
+            response.contentWritten(written, len, false);
+            if (endStream) {
+                finish();
+                return;
+            }
+            credit += frameLength;
+            long wait = manager.getLimiter().take(host, response.getBandwidth(), len);
+            if (wait > 0) {
+                throttle(wait);
+            } else {
+                replenish(false);
+            }
+        } catch (IOException e) {
+            reset();
+            failOrRetry(e);
+        } catch (InterruptedException e) {
+            reset();
+            fail();
+        }
+    }
+
+    /**
+     * Checks the response head and prepares a storage to start or resume a download.
+     *
+     * @return false if the response is a redirect which is followed by a new stream
+     * @throws IOException if the server has responded with an error
+     *                     or has ignored the range request while resuming
+     */
+    private boolean prepareStream(Map<String, String> headers) throws IOException {
+        String location = headers.get("location");
+        if (statusCode / 100 == 3 && location != null && request.isFollowsRedirects()) {
+            redirect(new URL(url, location));
+            return false;
+        }
+        if (statusCode >= 400) {
+            throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + url);
+        }
+
+        supportsRangedDownload = "bytes".equals(headers.get("accept-ranges"));
+        if (response.getStorage() == null) {
+            long contentLength = parseContentLength(headers.get("content-length"));
+            response.setContentLength(contentLength);
+            response.setStorage(DownloadTask.createStorage(request, contentLength));
+            if (request.getCompression() == DownloadRequest.Compression.DECODED) {
+                response.setDecoder(ContentDecoder.forEncoding(headers.get("content-encoding")));
+            }
+        } else if (statusCode != 206) {
+            throw new IOException("The server has ignored the range request");
+        }
+        // A paused download stays paused, it is resumed by its listener
+        response.start();
+        return true;
+    }
+
+    private static long parseContentLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void redirect(URL location) throws IOException {
+        if (++redirects > MAX_REDIRECTS || !"http".equalsIgnoreCase(location.getProtocol())) {
+            throw new IOException("Could not follow the redirect to " + location);
+        }
+        reset();
+        // Blocks the loop on DNS, but redirects are rare
+        setUrl(location);
+        openStream();
+    }
+
+    /**
+     * Replenishes the window of the stream for the stored content unless the download is paused or throttled
+     *
+     * @param force true to replenish any stored content, otherwise only once half of the window is stored
+     */
+    private void replenish(boolean force) {
+        if (connection == null || isThrottled || credit == 0
+                || response.getStatus() == DownloadResponseImpl.Status.PAUSED) {
+            return;
+        }
+        if (force || credit >= Http2Connection.STREAM_WINDOW / 2) {
+            connection.windowUpdate(streamId, credit);
+            credit = 0;
+        }
+    }
+
+    /**
+     * Withholds the window of the stream until the download is within its rate limits again
+     */
+    private void throttle(long nanos) {
+        isThrottled = true;
+        loop.schedule(this, new Runnable() {
+            @Override
+            public void run() {
+                isThrottled = false;
+                replenish(true);
+            }
+        }, nanos);
+    }
+
+    /**
+     * Lets the server continue the content of the resumed download
+     */
+    private void resume() {
+        if (!isClosed) {
+            replenish(true);
+        }
+    }
+
+    /**
+     * Resets the stream of the cancelled download, the downloaded bytes are deleted once the worker stops
+     */
+    private void cancel() {
+        if (!isClosed) {
+            reset();
+            close();
+        }
+    }
+
+    /**
+     * Called by the connection if the server has refused the stream or is going away without processing it,
+     * the download is safe to start again on a new connection
+     */
+    void streamRefused() {
+        connection = null;
+        if (isHeadReceived) {
+            failOrRetry(new IOException("The stream was refused after the response head"));
+        } else if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+            close();
+        } else {
+            openStream();
+        }
+    }
+
+    /**
+     * Called by the connection if the server has reset the stream
+     */
+    void streamReset(int errorCode) {
+        if (errorCode == Http2Connection.REFUSED_STREAM) {
+            streamRefused();
+            return;
+        }
+        connection = null;
+        failOrRetry(new IOException("The stream was reset by the server with error code " + errorCode));
+    }
+
+    /**
+     * Called by the connection once it has failed
+     */
+    void connectionFailed(IOException cause) {
+        connection = null;
+        failOrRetry(cause);
+    }
+
+    private void finish() {
+        connection = null;
+        try {
+            // The content could end early if the server has not sent a length
+            response.checkContentComplete();
+            response.getStorage().close();
+            response.verifyDigest();
+            // A download paused meanwhile is finished by its resume, a cancelled one is not
+            response.finish();
+            close();
+        } catch (IOException e) {
+            failOrRetry(e);
+        }
+    }
+
+    /**
+     * Schedules another attempt after a failure if the retry policy of the request allows it,
+     * fails the download otherwise.
+     * <p/>
+     * The next attempt continues from the downloaded bytes with a ranged request
+     * if the server supports it, otherwise it starts over.
+     */
+    private void failOrRetry(IOException cause) {
+        RetryPolicy policy = request.getRetryPolicy();
+        if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED
+                || !policy.isRetryable(cause, statusCode)) {
+            fail();
+            return;
+        }
+        int retries = response.countRetry();
+        if (retries >= policy.getMaxAttempts()) {
+            fail();
+            return;
+        }
+        DownloadStorage storage = response.getStorage();
+        if (storage != null && !supportsRangedDownload) {
+            try {
+                storage.discard();
+            } catch (IOException e) {
+                fail();
+                return;
+            }
+            response.setStorage(null);
+            response.setBytesDownloaded(0);
+        }
+        loop.schedule(this, new Runnable() {
+            @Override
+            public void run() {
+                retry();
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(policy.getBackoff(retries)));
+    }
+
+    private void retry() {
+        if (isClosed) {
+            return;
+        }
+        if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+            close();
+            return;
+        }
+        openStream();
+    }
+
+    /**
+     * The timeouts are checked by the connection of the stream
+     */
+    @Override
+    public void sweep(long now) {
+    }
+
+    /**
+     * Fails the download and releases its stream
+     */
+    @Override
+    public void fail() {
+        DownloadStorage storage = response.getStorage();
+        if (storage != null) {
+            try {
+                storage.close();
+            } catch (IOException e) {
+                // Already failing, the download result is incomplete anyway
+            }
+        }
+        response.fail();
+        close();
+    }
+
+    /**
+     * Resets the stream if it is still open
+     */
+    private void reset() {
+        if (connection != null) {
+            Http2Connection connection = this.connection;
+            this.connection = null;
+            connection.reset(this, Http2Connection.CANCEL);
+        }
+    }
+
+    private void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        reset();
+        response.removeStatusListener(statusListener);
+        manager.taskFinished(response, this);
+        if (isWorkerRunning) {
+            isWorkerRunning = false;
+            response.workerStopped();
+        }
+    }
+
+    /**
+     * Hands the action over to the loop, does nothing if the loop is over and so is the download
+     */
+    private void execute(Runnable action) {
+        try {
+            loop.execute(this, action);
+        } catch (RejectedExecutionException e) {
+            // Nothing is running the download anymore
+        }
+    }
+
+    private void setUrl(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        this.url = url;
+        this.address = new InetSocketAddress(url.getHost(), port);
+        this.host = url.getHost().toLowerCase();
+        this.route = host + ":" + port;
+    }
+}
@@ -1,36 +1,52 @@
 package pchelolo.downloader.impl;
 
+import pchelolo.downloader.DownloadMetrics;
 import pchelolo.downloader.DownloadRequest;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URLConnection;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class HttpDownloadTask extends DownloadTask {
 
-    public HttpDownloadTask(DownloadRequest request, DownloadResponseImpl response) {
-        super(request, response);
+    HttpDownloadTask(DownloadRequest request, DownloadResponseImpl response, BufferPool bufferPool,
+                     DownloadJournal journal, DownloadMetrics metrics, BandwidthLimiter limiter,
+                     ScheduledExecutorService retryTimer) {
+        super(request, response, bufferPool, journal, metrics, limiter, retryTimer);
     }
 
     /**
      * {@inheritDoc}
+     *
+     * http-specific: the compressed content is accepted with an Accept-Encoding header if the request allows it
      */
     @Override
     protected URLConnection prepareConnection() throws IOException {
         HttpURLConnection conn = (HttpURLConnection)request.getUrl().openConnection();
         conn.setConnectTimeout(request.getConnectionWaitTime());
         conn.setInstanceFollowRedirects(request.isFollowsRedirects());
+        if (request.getCompression() != DownloadRequest.Compression.NONE) {
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
         return conn;
     }
 
     /**
      *  {@inheritDoc}
      *
-     *  http-specific: disconnects from the server
+     *  http-specific: a reusable connection is left to the keep-alive cache of the JDK,
+     *  which takes it back once the stream is closed and hands it out to the next connection to the same server.
+     *  If the stream was closed before the end of the content, the rest is drained in the background
+     *  if it is small enough, otherwise the connection is closed.
+     *  The number of idle connections per server is limited by the {@code http.maxConnections} system property,
+     *  they are closed after the keep-alive timeout of the server.
+     *  <p/>
+     *  Disconnects from the server otherwise
      */
     @Override
-    protected void finalizeConnection(URLConnection conn) {
-        if (conn != null) {
+    protected void finalizeConnection(URLConnection conn, boolean reusable) {
+        if (conn != null && !reusable) {
             ((HttpURLConnection)conn).disconnect();
         }
     }
@@ -51,9 +67,131 @@ public class HttpDownloadTask extends DownloadTask {
      *  http-specific: uses a Range header
      */
     @Override
-    protected void setContinueDownloadFrom(int byteNumber, URLConnection conn) {
+    protected void setContinueDownloadFrom(long byteNumber, URLConnection conn) {
         conn.setRequestProperty("Range", "bytes=" + byteNumber + "-");
     }
 
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: uses a strong ETag header, the Last-Modified header otherwise.
+     *  Weak ETags could not be used to resume a download
+     */
+    @Override
+    protected String getValidator(URLConnection conn) {
+        String eTag = getETag(conn);
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return getLastModified(conn);
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: uses an If-Range header
+     */
+    @Override
+    protected void setValidator(String validator, URLConnection conn) {
+        conn.setRequestProperty("If-Range", validator);
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: uses an ETag header
+     */
+    @Override
+    protected String getETag(URLConnection conn) {
+        return conn.getHeaderField("ETag");
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: uses a Last-Modified header
+     */
+    @Override
+    protected String getLastModified(URLConnection conn) {
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: uses If-None-Match and If-Modified-Since headers
+     */
+    @Override
+    protected void setRevalidation(String eTag, String lastModified, URLConnection conn) {
+        if (eTag != null) {
+            conn.setRequestProperty("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            conn.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: checks for the 304 Not Modified status
+     */
+    @Override
+    protected boolean isNotModified(URLConnection conn) throws IOException {
+        return ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: uses a Range header
+     */
+    @Override
+    protected void setDownloadRange(long from, long to, URLConnection conn) {
+        conn.setRequestProperty("Range", "bytes=" + from + "-" + to);
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: the status of the response, -1 if it has not been received.
+     *  The failure of the connection is remembered, so it is not connected again
+     */
+    @Override
+    protected int getResponseCode(URLConnection conn) {
+        try {
+            return ((HttpURLConnection) conn).getResponseCode();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: uses a Content-Encoding header, the identity encoding means the content is sent as is
+     */
+    @Override
+    protected String getContentEncoding(URLConnection conn) {
+        String encoding = conn.getContentEncoding();
+        return encoding == null || "identity".equalsIgnoreCase(encoding.trim()) ? null : encoding;
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  http-specific: checks for the 206 Partial Content status
+     *
+     *  @throws IOException if the server has responded with an error
+     */
+    @Override
+    protected boolean isRangeApplied(URLConnection conn) throws IOException {
+        int responseCode = ((HttpURLConnection) conn).getResponseCode();
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + conn.getURL());
+        }
+        return responseCode == HttpURLConnection.HTTP_PARTIAL;
+    }
+
 
 }
\ No newline at end of file
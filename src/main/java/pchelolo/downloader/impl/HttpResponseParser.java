@@ -0,0 +1,230 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An incremental parser of an HTTP/1.1 response, fed with the bytes as they arrive
+ * from a non-blocking channel.
+ * <p/>
+ * Parses the status line and the headers, then locates the body bytes in the input
+ * according to the response framing: Content-Length, chunked transfer encoding
+ * or reading until the connection is closed.
+ * Not thread safe.
+ */
+class HttpResponseParser {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private static enum State {
+        STATUS_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, DONE
+    }
+
+    private final StringBuilder line = new StringBuilder();
+    private final Map<String, String> headers = new HashMap<>();
+
+    private State state = State.STATUS_LINE;
+    private int statusCode;
+    private boolean isHttp11;
+    private long contentLength = -1;
+    private long remaining;
+
+    /**
+     * Consumes the status line and the headers from the input
+     *
+     * @return true if the response head is complete, the rest of the input is the body
+     * @throws IOException if the response is malformed
+     */
+    boolean parseHead(ByteBuffer in) throws IOException {
+        while (state == State.STATUS_LINE || state == State.HEADERS) {
+            String headLine = readLine(in);
+            if (headLine == null) {
+                return false;
+            }
+            if (state == State.STATUS_LINE) {
+                parseStatusLine(headLine);
+                state = State.HEADERS;
+            } else if (headLine.isEmpty()) {
+                startBody();
+            } else {
+                int colon = headLine.indexOf(':');
+                if (colon <= 0) {
+                    throw new IOException("Malformed header: " + headLine);
+                }
+                headers.put(headLine.substring(0, colon).trim().toLowerCase(), headLine.substring(colon + 1).trim());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Locates the next portion of the body bytes in the input, consuming the framing around it.
+     * <p/>
+     * The body bytes start at the current position of the input and should be consumed by the caller
+     * by advancing the position.
+     *
+     * @return the number of body bytes available, 0 if the input has no more body bytes
+     * @throws IOException if the chunked framing is malformed
+     */
+    int readBody(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case BODY:
+                case CHUNK_DATA:
+                    int len = remaining < 0 ? in.remaining() : (int) Math.min(in.remaining(), remaining);
+                    if (remaining > 0) {
+                        remaining -= len;
+                        if (remaining == 0) {
+                            state = state == State.BODY ? State.DONE : State.CHUNK_DATA_END;
+                        }
+                    }
+                    return len;
+                case CHUNK_SIZE:
+                    String sizeLine = readLine(in);
+                    if (sizeLine != null) {
+                        startChunk(sizeLine);
+                    }
+                    break;
+                case CHUNK_DATA_END:
+                    String end = readLine(in);
+                    if (end != null) {
+                        if (!end.isEmpty()) {
+                            throw new IOException("Malformed chunk end: " + end);
+                        }
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    String trailer = readLine(in);
+                    if (trailer != null && trailer.isEmpty()) {
+                        state = State.DONE;
+                    }
+                    break;
+                default:
+                    return 0;
+            }
+        }
+        return 0;
+    }
+
+    boolean isHeadComplete() {
+        return state != State.STATUS_LINE && state != State.HEADERS;
+    }
+
+    /**
+     * @return true if the whole body was received
+     */
+    boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * @return true if the end of the body is marked by closing the connection
+     */
+    boolean isDelimitedByClose() {
+        return state == State.BODY && remaining < 0;
+    }
+
+    /**
+     * @return true if the connection could be reused for the next request once the body is read
+     */
+    boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if (isDelimitedByClose() || "close".equalsIgnoreCase(connection)) {
+            return false;
+        }
+        return isHttp11 || "keep-alive".equalsIgnoreCase(connection);
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the length of the body or -1 if it is not known in advance
+     */
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @param name case-insensitive header name
+     * @return the header value or {@code null} if the response has no such header
+     */
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    private void parseStatusLine(String statusLine) throws IOException {
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        try {
+            statusCode = Integer.parseInt(parts[1]);
+            isHttp11 = !"HTTP/1.0".equals(parts[0]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine, e);
+        }
+    }
+
+    private void startBody() throws IOException {
+        String length = getHeader("Content-Length");
+        if (length != null) {
+            try {
+                contentLength = Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Length: " + length, e);
+            }
+        }
+        if (statusCode / 100 == 1 || statusCode == 204 || statusCode == 304) {
+            state = State.DONE;
+        } else if ("chunked".equalsIgnoreCase(getHeader("Transfer-Encoding"))) {
+            contentLength = -1;
+            state = State.CHUNK_SIZE;
+        } else if (contentLength == 0) {
+            state = State.DONE;
+        } else {
+            remaining = contentLength;
+            state = State.BODY;
+        }
+    }
+
+    private void startChunk(String sizeLine) throws IOException {
+        int extension = sizeLine.indexOf(';');
+        String size = (extension == -1 ? sizeLine : sizeLine.substring(0, extension)).trim();
+        try {
+            remaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + sizeLine, e);
+        }
+        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+    }
+
+    /**
+     * Reads a CRLF-terminated line, accumulating it across the inputs
+     *
+     * @return the line without the terminator or {@code null} if the line is not complete yet
+     */
+    private String readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            char c = (char) (in.get() & 0xFF);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                String result = line.toString();
+                line.setLength(0);
+                return result;
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("The response line is too long");
+            }
+            line.append(c);
+        }
+        return null;
+    }
+}
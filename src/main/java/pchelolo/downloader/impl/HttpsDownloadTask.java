@@ -0,0 +1,48 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadMetrics;
+import pchelolo.downloader.DownloadRequest;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The https download, the same as the http one over TLS.
+ * <p/>
+ * The sockets are created by the factory shared by all the downloads of the manager, so the TLS sessions
+ * cached by its context are resumed by the following connections to the same server, including
+ * the reconnects of the ranged continuations after a pause or a failure, with an abbreviated handshake.
+ * Sharing the factory also lets the keep-alive cache of the JDK hand out the idle connections,
+ * which are only reused for the same factory.
+ */
+public class HttpsDownloadTask extends HttpDownloadTask {
+
+    private final SSLSocketFactory socketFactory;
+
+    /**
+     * @param socketFactory the factory of the TLS sockets of the manager or {@code null} for the default one
+     */
+    HttpsDownloadTask(DownloadRequest request, DownloadResponseImpl response, BufferPool bufferPool,
+                      DownloadJournal journal, DownloadMetrics metrics, BandwidthLimiter limiter,
+                      ScheduledExecutorService retryTimer, SSLSocketFactory socketFactory) {
+        super(request, response, bufferPool, journal, metrics, limiter, retryTimer);
+        this.socketFactory = socketFactory;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * https-specific: uses the TLS socket factory of the manager
+     */
+    @Override
+    protected URLConnection prepareConnection() throws IOException {
+        URLConnection conn = super.prepareConnection();
+        if (socketFactory != null && conn instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(socketFactory);
+        }
+        return conn;
+    }
+}
@@ -0,0 +1,92 @@
+package pchelolo.downloader.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies with a fixed relative precision, recording without locking or allocating.
+ * <p/>
+ * The latencies are recorded in microseconds into log-linear buckets, like the HdrHistogram:
+ * the values below {@link #SUB_BUCKETS} are counted exactly, each following power of two range is split
+ * into {@link #SUB_BUCKETS} / 2 buckets, so a reported percentile is within 1.6% of the recorded value.
+ * The latencies longer than about 25 days are counted as the maximum.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param nanos the latency to record
+     */
+    void record(long nanos) {
+        long micros = Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(micros));
+        count.increment();
+        sum.add(micros);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS + 1;
+        // The top bits of the value, from HALF_SUB_BUCKETS to SUB_BUCKETS - 1
+        int subBucket = (int) (value >>> shift);
+        return shift * HALF_SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value counted by the bucket
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index - shift * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Captures the distribution recorded so far.
+     * The counts recorded while capturing might be partially included
+     */
+    LatencySnapshot snapshot() {
+        long[] buckets = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = counts.get(i);
+            total += buckets[i];
+        }
+        long mean = total == 0 ? 0 : sum.sum() / Math.max(count.sum(), 1);
+        return new LatencySnapshot(total, mean,
+                percentile(buckets, total, 0.5), percentile(buckets, total, 0.9),
+                percentile(buckets, total, 0.99), percentile(buckets, total, 0.999),
+                percentile(buckets, total, 1.0));
+    }
+
+    private static long percentile(long[] buckets, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(total * percentile), 1);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+}
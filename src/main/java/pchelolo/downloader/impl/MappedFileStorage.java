@@ -0,0 +1,204 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Assembles the segments of a content in a preallocated file mapped into memory.
+ * <p/>
+ * The file is mapped in windows on their first write, so the segments are copied straight
+ * into the page cache without a system call per write, and the operating system writes
+ * the dirty pages back in the background. The file is sparse, the filesystem allocates blocks
+ * as they are written. The windows are released by the GC once the storage is closed.
+ * <p/>
+ * Only written at known positions, by the threads downloading separate segments.
+ */
+class MappedFileStorage implements DownloadStorage {
+
+    private static final int WINDOW_SIZE = 1 << 26;
+
+    private final Path path;
+    private volatile FileChannel channel;
+    private volatile AtomicReferenceArray<MappedByteBuffer> windows = new AtomicReferenceArray<>(0);
+    private volatile long size;
+
+    /**
+     * Creates the destination file or truncates it if it exists
+     */
+    MappedFileStorage(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Opens the existing file to fill the gaps of a download
+     *
+     * @param length the allocated length
+     * @throws IOException if the file does not exist or is shorter than the length
+     */
+    MappedFileStorage(Path path, long length) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < length) {
+            channel.close();
+            throw new IOException("File " + path + " is shorter than " + length + " bytes");
+        }
+        allocate(length);
+    }
+
+    /**
+     * Not supported, the content is only written at known positions
+     *
+     * @throws IllegalStateException always
+     */
+    @Override
+    public void write(byte[] buf, int off, int len) {
+        throw new IllegalStateException("Mapped file is only written at known positions");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The file is extended sparse, the windows are mapped on their first write
+     */
+    @Override
+    public void allocate(long length) throws IOException {
+        channel.truncate(length);
+        if (length > 0 && channel.size() < length) {
+            channel.write(ByteBuffer.allocate(1), length - 1);
+        }
+        windows = new AtomicReferenceArray<>((int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE));
+        size = length;
+    }
+
+    @Override
+    public void write(long position, byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            int index = (int) (position / WINDOW_SIZE);
+            // Positioned on a copy, the window is shared by the segments
+            ByteBuffer window = window(index).duplicate();
+            window.position((int) (position - (long) index * WINDOW_SIZE));
+            int written = Math.min(len, window.remaining());
+            window.put(buf, off, written);
+            position += written;
+            off += written;
+            len -= written;
+        }
+    }
+
+    private MappedByteBuffer window(int index) throws IOException {
+        AtomicReferenceArray<MappedByteBuffer> windows = this.windows;
+        if (index >= windows.length()) {
+            // Released on close
+            throw new ClosedChannelException();
+        }
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            FileChannel channel = this.channel;
+            if (channel == null) {
+                throw new ClosedChannelException();
+            }
+            long start = (long) index * WINDOW_SIZE;
+            window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, size - start));
+            if (!windows.compareAndSet(index, null, window)) {
+                // Mapped concurrently by another segment, the extra mapping is released by the GC
+                window = windows.get(index);
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Not supported, the content is only written at known positions
+     *
+     * @throws IllegalStateException always
+     */
+    @Override
+    public long transferFrom(ReadableByteChannel channel, long count) {
+        throw new IllegalStateException("Mapped file is only written at known positions");
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The mapped pages are shared with the reads of the file, so the written bytes are read
+     * before they are written back
+     */
+    @Override
+    public byte[] toByteArray() throws IOException {
+        return Files.readAllBytes(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IOException if the file is too large to be mapped
+     */
+    @Override
+    public ByteBuffer asByteBuffer() throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File of " + size + " bytes could not be mapped");
+        }
+        try (FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return readChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    @Override
+    public ReadableByteChannel openChannel() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Writes back the dirty pages of the mapped windows
+     */
+    @Override
+    public void force() throws IOException {
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        AtomicReferenceArray<MappedByteBuffer> windows = this.windows;
+        for (int i = 0; i < windows.length(); i++) {
+            MappedByteBuffer window = windows.get(i);
+            if (window != null) {
+                window.force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            windows = new AtomicReferenceArray<>(0);
+        }
+    }
+
+    @Override
+    public void discard() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+        size = 0;
+    }
+}
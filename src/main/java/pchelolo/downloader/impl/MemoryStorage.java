@@ -0,0 +1,232 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the downloaded bytes in memory as a list of chunks.
+ * <p/>
+ * The storage grows by appending new chunks, so the already stored bytes are never copied.
+ * If the content length is known in advance, the whole content fits a single chunk,
+ * which could be exposed without copying.
+ * <p/>
+ * The bytes could be read by other threads while the download is in progress,
+ * the chunks are never moved and the number of stored bytes is published after the bytes are written.
+ */
+class MemoryStorage implements DownloadStorage {
+
+    private static final int MIN_CHUNK_SIZE = 16384;
+    private static final int MAX_CHUNK_SIZE = 4 << 20;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    // Chunks are added rarely, readers iterate without locking
+    private final List<byte[]> chunks = new CopyOnWriteArrayList<>();
+    private int lastChunkCount;
+    private volatile long count;
+
+    /**
+     * @param initialSize the size of the first chunk, the expected content length if known
+     */
+    MemoryStorage(int initialSize) {
+        if (initialSize > 0) {
+            chunks.add(new byte[initialSize]);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            byte[] last = lastChunk();
+            int chunkLen = Math.min(len, last.length - lastChunkCount);
+            System.arraycopy(b, off, last, lastChunkCount, chunkLen);
+            lastChunkCount += chunkLen;
+            count += chunkLen;
+            off += chunkLen;
+            len -= chunkLen;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The bytes are read straight into the last chunk
+     */
+    @Override
+    public long transferFrom(ReadableByteChannel source, long max) throws IOException {
+        byte[] last = lastChunk();
+        int len = source.read(ByteBuffer.wrap(last, lastChunkCount, (int) Math.min(max, last.length - lastChunkCount)));
+        if (len > 0) {
+            lastChunkCount += len;
+            count += len;
+        }
+        return len;
+    }
+
+    /**
+     * Returns the chunk the bytes are appended to, adding a new one if the last one is full
+     */
+    private byte[] lastChunk() {
+        byte[] last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (last == null || lastChunkCount == last.length) {
+            // Grow geometrically, keeping the number of chunks logarithmic
+            last = new byte[(int) Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, count))];
+            chunks.add(last);
+            lastChunkCount = 0;
+        }
+        return last;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException if the length does not fit into an array
+     */
+    @Override
+    public void allocate(long length) {
+        if (length > MAX_ARRAY_SIZE) {
+            throw new IllegalArgumentException("Content of " + length + " bytes does not fit into memory");
+        }
+        chunks.clear();
+        chunks.add(new byte[(int) length]);
+        lastChunkCount = (int) length;
+        count = length;
+    }
+
+    @Override
+    public void write(long position, byte[] b, int off, int len) {
+        for (byte[] chunk : chunks) {
+            if (len == 0) {
+                return;
+            }
+            if (position < chunk.length) {
+                int chunkLen = (int) Math.min(len, chunk.length - position);
+                System.arraycopy(b, off, chunk, (int) position, chunkLen);
+                off += chunkLen;
+                len -= chunkLen;
+                position = 0;
+            } else {
+                position -= chunk.length;
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if the content does not fit into an array
+     */
+    @Override
+    public byte[] toByteArray() {
+        if (count > MAX_ARRAY_SIZE) {
+            throw new IllegalStateException("Content of " + count + " bytes does not fit into an array");
+        }
+        byte[] result = new byte[(int) count];
+        int position = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            int len = chunkCount(i);
+            System.arraycopy(chunks.get(i), 0, result, position, len);
+            position += len;
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The content is only copied if it was stored in several chunks
+     */
+    @Override
+    public ByteBuffer asByteBuffer() {
+        if (chunks.size() == 1) {
+            return ByteBuffer.wrap(chunks.get(0), 0, lastChunkCount).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The channel follows the storage while it grows
+     */
+    @Override
+    public ReadableByteChannel openChannel() {
+        return new ChunksChannel();
+    }
+
+    @Override
+    public void force() {
+        // Nothing to sync
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+    @Override
+    public void discard() {
+        chunks.clear();
+        lastChunkCount = 0;
+        count = 0;
+    }
+
+    /**
+     * @return the number of bytes stored in the chunk
+     */
+    private int chunkCount(int index) {
+        return index == chunks.size() - 1 ? lastChunkCount : chunks.get(index).length;
+    }
+
+    /**
+     * Reads the chunks in place, up to the number of bytes stored at the moment of the read
+     */
+    private class ChunksChannel implements ReadableByteChannel {
+
+        private long position = 0;
+        private boolean open = true;
+
+        @Override
+        public int read(ByteBuffer dst) {
+            long available = count - position;
+            if (available <= 0) {
+                return -1;
+            }
+            int total = 0;
+            long skip = position;
+            for (byte[] chunk : chunks) {
+                if (!dst.hasRemaining() || available == 0) {
+                    break;
+                }
+                if (skip >= chunk.length) {
+                    skip -= chunk.length;
+                    continue;
+                }
+                int len = (int) Math.min(Math.min(dst.remaining(), chunk.length - skip), available);
+                dst.put(chunk, (int) skip, len);
+                skip = 0;
+                available -= len;
+                total += len;
+            }
+            position += total;
+            return total;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
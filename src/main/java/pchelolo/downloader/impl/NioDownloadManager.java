@@ -0,0 +1,200 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadBatch;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.DownloadResponse;
+import pchelolo.downloader.MirrorResolver;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download manager driving HTTP/1.1 over non-blocking socket channels.
+ * <p/>
+ * All the downloads are multiplexed over a fixed number of selector threads,
+ * so the number of threads does not depend on the number of concurrent downloads.
+ * Paused downloads do not hold a thread: the connection is either closed and later resumed
+ * with a ranged request, or parked until resume if the server does not support ranged downloads.
+ * The connections are kept alive after the download and reused by the following downloads from the same server.
+ * <p/>
+ * The segmented downloads are not supported, the number of segments is ignored.
+ */
+public class NioDownloadManager implements DownloadManagerImpl {
+
+    private static final long DEFAULT_IDLE_TIMEOUT     = 5000;
+    private static final int  DEFAULT_MAX_IDLE_PER_HOST = 5;
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ConcurrentMap<DownloadResponseImpl, NioDownloadTask> tasks = new ConcurrentHashMap<>();
+    private final BufferPool bufferPool = new BufferPool();
+    private final BandwidthLimiter limiter = new BandwidthLimiter();
+    private volatile boolean closed = false;
+
+    /**
+     * @param selectorThreads the number of threads serving the connections
+     * @throws IllegalStateException if failed to open the selectors
+     */
+    public NioDownloadManager(int selectorThreads) {
+        this(selectorThreads, DEFAULT_IDLE_TIMEOUT, DEFAULT_MAX_IDLE_PER_HOST);
+    }
+
+    /**
+     * @param selectorThreads the number of threads serving the connections
+     * @param idleTimeout milliseconds to keep an idle connection alive
+     * @param maxIdlePerHost the maximum number of idle connections kept per server by each selector thread
+     * @throws IllegalStateException if failed to open the selectors
+     */
+    public NioDownloadManager(int selectorThreads, long idleTimeout, int maxIdlePerHost) {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("At least one selector thread is required");
+        }
+        loops = new SelectorLoop[selectorThreads];
+        try {
+            for (int i = 0; i < selectorThreads; i++) {
+                ConnectionPool pool = new ConnectionPool(TimeUnit.MILLISECONDS.toNanos(idleTimeout), maxIdlePerHost);
+                loops[i] = new SelectorLoop("download-selector-" + i, pool);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open a selector", e);
+        }
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Hands the paused download over to its selector thread, which either continues reading
+     * from the parked connection or opens a new one to continue with a ranged download
+     */
+    @Override
+    public void resumeDownload(DownloadRequest request, DownloadResponseImpl response) {
+        final NioDownloadTask pausedTask = tasks.get(response);
+        if (pausedTask != null) {
+            // The selector thread has already released the task before the resume was allowed
+            pausedTask.getLoop().execute(pausedTask, new Runnable() {
+                @Override
+                public void run() {
+                    pausedTask.resume();
+                }
+            });
+            return;
+        }
+
+        String protocol = request.getUrl().getProtocol().toLowerCase();
+        if (!"http".equals(protocol)) {
+            throw new UnsupportedOperationException("Protocol " + protocol + " is not supported");
+        }
+        if (closed) {
+            throw new RejectedExecutionException("The download manager is closed");
+        }
+        SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        final NioDownloadTask task = new NioDownloadTask(this, loop, request, response);
+        tasks.put(response, task);
+        loop.execute(task, new Runnable() {
+            @Override
+            public void run() {
+                task.start();
+            }
+        });
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    BandwidthLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Forgets the task which is over and would not be resumed
+     */
+    void taskFinished(DownloadResponseImpl response, NioDownloadTask task) {
+        tasks.remove(response, task);
+    }
+
+    // ------------- PUBLIC API ---------- //
+
+    /**
+     * {@inheritDoc}
+     *
+     * The downloads are not journaled by this manager, so there is nothing to recover
+     */
+    @Override
+    public List<DownloadResponse> recover() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public DownloadResponse download(DownloadRequest request) {
+        DownloadResponseImpl response = new DownloadResponseImpl(request, this);
+        resumeDownload(request, response);
+        return response;
+    }
+
+    @Override
+    public DownloadBatch downloadAll(Iterator<? extends DownloadRequest> requests, int maxInFlight) {
+        return new DownloadBatchImpl(this, requests, maxInFlight);
+    }
+
+    @Override
+    public DownloadBatch downloadAll(Iterable<? extends DownloadRequest> requests, int maxInFlight) {
+        return downloadAll(requests.iterator(), maxInFlight);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A throttled download stops reading from its connection until a timer of its selector thread
+     * lets it continue, so the thread serves the other downloads meanwhile
+     */
+    @Override
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        limiter.setMaxBytesPerSecond(maxBytesPerSecond);
+    }
+
+    @Override
+    public void setMaxBytesPerSecondPerHost(String host, long maxBytesPerSecond) {
+        limiter.setMaxBytesPerSecondPerHost(host, maxBytesPerSecond);
+    }
+
+    /**
+     * Not supported: the selector loops only speak plain http
+     */
+    @Override
+    public void setSSLContext(SSLContext sslContext) {
+        throw new UnsupportedOperationException("Protocol https is not supported");
+    }
+
+    /**
+     * Not supported: the selector loops only speak plain http, the mirrors are served by the protocol providers
+     */
+    @Override
+    public void setMirrorResolver(MirrorResolver mirrorResolver) {
+        throw new UnsupportedOperationException("The mirrors are not supported");
+    }
+
+    /**
+     * Stops accepting new downloads, the selector threads terminate
+     * once the already started downloads are over
+     * @throws Exception
+     */
+    @Override
+    public void close() throws Exception {
+        closed = true;
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.RetryPolicy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A download driven by a {@link SelectorLoop} over a non-blocking HTTP/1.1 connection.
+ * <p/>
+ * The task reacts to the readiness events of its channel instead of blocking a thread.
+ * On pause, the connection is closed if the server supports ranged downloads,
+ * otherwise the connection is parked: the loop stops reading from it until resume.
+ * The same task continues the download on resume.
+ * The connections are leased from the {@link ConnectionPool} of the loop and returned to it
+ * once the response is completely read.
+ * A download ahead of its rate limits stops reading from the connection until a timer of the loop
+ * lets it continue, so it does not hold the loop meanwhile.
+ * A failed download is retried by a timer of the loop as well, according to the retry policy of the request.
+ * Only accessed by the loop thread.
+ */
+class NioDownloadTask implements SelectorLoop.Handler, SelectorLoop.Task {
+
+    private static final int MAX_REDIRECTS = 20;
+
+    private final NioDownloadManager manager;
+    private final SelectorLoop loop;
+    private final DownloadRequest request;
+    private final DownloadResponseImpl response;
+
+    private URL url;
+    private InetSocketAddress address;
+    private String route;
+    private String host;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private AdaptiveBuffer buffer;
+    private ByteBuffer readBuf;
+    private ByteBuffer requestBuf;
+    private HttpResponseParser parser;
+    private long connectDeadline;
+    private int redirects = 0;
+    private boolean isReused = false;
+    private boolean supportsRangedDownload = false;
+    private boolean isWorkerRunning = false;
+    private boolean isPaused = false;
+
+    /**
+     * Resolves the address of the server on the calling thread, so that the loop is not blocked by DNS
+     */
+    NioDownloadTask(NioDownloadManager manager, SelectorLoop loop, DownloadRequest request, DownloadResponseImpl response) {
+        this.manager = manager;
+        this.loop = loop;
+        this.request = request;
+        this.response = response;
+        setUrl(request.getUrl());
+    }
+
+    SelectorLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Starts the download, connecting to the server
+     */
+    void start() {
+        response.workerStarted();
+        isWorkerRunning = true;
+        loop.register(this);
+        if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+            close();
+            return;
+        }
+        try {
+            connect(true);
+        } catch (IOException e) {
+            failOrRetry(e);
+        }
+    }
+
+    /**
+     * Continues the paused download either reading from the parked connection
+     * or reconnecting with a ranged request
+     */
+    void resume() {
+        response.workerStarted();
+        isWorkerRunning = true;
+        isPaused = false;
+        if (channel != null) {
+            acquireBuffer();
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        try {
+            connect(true);
+        } catch (IOException e) {
+            failOrRetry(e);
+        }
+    }
+
+    /**
+     * Handles the readiness event of the channel
+     */
+    @Override
+    public void handle(SelectionKey key) {
+        try {
+            try {
+                if (key.isConnectable()) {
+                    onConnectable();
+                } else if (key.isWritable()) {
+                    onWritable();
+                } else if (key.isReadable()) {
+                    onReadable();
+                }
+            } catch (IOException e) {
+                if (!isReused || parser.isHeadComplete()) {
+                    throw e;
+                }
+                // The server has closed the idle connection before it was leased, retry with a new one
+                closeChannel();
+                connect(false);
+            }
+        } catch (IOException e) {
+            failOrRetry(e);
+        } catch (InterruptedException e) {
+            fail();
+        }
+    }
+
+    /**
+     * Periodic check of the timeouts and of the cancellation of parked downloads
+     */
+    @Override
+    public void sweep(long now) {
+        if (key != null && key.isValid()
+                && key.interestOps() == SelectionKey.OP_CONNECT
+                && connectDeadline != 0 && now - connectDeadline >= 0) {
+            failOrRetry(new SocketTimeoutException("Connect timed out"));
+        } else if (isPaused && response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+            // Nobody is going to resume the download, release the connection
+            close();
+        }
+    }
+
+    /**
+     * @param leasePooled true to reuse an idle connection to the server if there is one
+     */
+    private void connect(boolean leasePooled) throws IOException {
+        if (address.isUnresolved()) {
+            throw new IOException("Unknown host " + address.getHostString());
+        }
+        parser = new HttpResponseParser();
+        acquireBuffer();
+        readBuf.clear();
+        requestBuf = ByteBuffer.wrap(buildRequest().getBytes(StandardCharsets.ISO_8859_1));
+
+        SelectionKey pooled = leasePooled ? loop.getConnectionPool().lease(route) : null;
+        isReused = pooled != null;
+        if (isReused) {
+            key = pooled;
+            key.attach(this);
+            key.interestOps(SelectionKey.OP_WRITE);
+            channel = (SocketChannel) key.channel();
+            connectDeadline = 0;
+            return;
+        }
+
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        int timeout = request.getConnectionWaitTime();
+        connectDeadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        if (channel.connect(address)) {
+            key = channel.register(loop.getSelector(), SelectionKey.OP_WRITE, this);
+        } else {
+            key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    private String buildRequest() {
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        StringBuilder builder = new StringBuilder()
+                .append("GET ").append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            builder.append(':').append(url.getPort());
+        }
+        builder.append("\r\n")
+                .append("Accept: */*\r\n");
+        if (request.getCompression() != DownloadRequest.Compression.NONE) {
+            builder.append("Accept-Encoding: gzip, deflate\r\n");
+        }
+        if (response.getStorage() != null) {
+            // Continue the download process from the specific point.
+            // Should only get here if it is supported.
+            builder.append("Range: bytes=").append(response.getResumePosition()).append("-\r\n");
+        }
+        return builder.append("\r\n").toString();
+    }
+
+    private void onConnectable() throws IOException {
+        if (channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void onWritable() throws IOException {
+        channel.write(requestBuf);
+        if (!requestBuf.hasRemaining()) {
+            requestBuf = null;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void onReadable() throws IOException, InterruptedException {
+        BandwidthLimiter limiter = manager.getLimiter();
+        readBuf.limit(readBuf.position() + limiter.limitRead(host, response.getBandwidth(), readBuf.remaining()));
+        int read = channel.read(readBuf);
+        readBuf.limit(readBuf.capacity());
+        if (read == -1) {
+            if (parser.isHeadComplete() && parser.isDelimitedByClose()) {
+                finish(false);
+                return;
+            }
+            throw new EOFException("The connection was closed before the download was finished");
+        }
+
+        readBuf.flip();
+        if (!parser.isHeadComplete()) {
+            if (!parser.parseHead(readBuf)) {
+                readBuf.compact();
+                return;
+            }
+            if (!prepareStream()) {
+                // Redirected to a new connection with a fresh buffer
+                return;
+            }
+        }
+        // The body is written straight from the read buffer
+        int len;
+        int written = 0;
+        int received = 0;
+        while ((len = parser.readBody(readBuf)) > 0) {
+            written += response.storeContent(readBuf.array(), readBuf.arrayOffset() + readBuf.position(), len);
+            readBuf.position(readBuf.position() + len);
+            received += len;
+        }
+        readBuf.compact();
+        if (readBuf.position() == 0 && buffer.adapt(read)) {
+            readBuf = ByteBuffer.wrap(buffer.array());
+        }
+        // The loop thread could not wait for slow content streams
+        response.contentWritten(written, received, false);
+
+        if (parser.isComplete()) {
+            // Nothing but the response should have been sent over the connection to reuse it
+            finish(parser.isKeepAlive() && readBuf.position() == 0);
+            return;
+        }
+
+        // Never waits: the loop thread is released in any case
+        if (response.checkPaused(true)) {
+            pause();
+            return;
+        }
+
+        if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+            // Already downloaded bytes are cleaned up when the worker stops
+            close();
+            return;
+        }
+
+        long wait = limiter.take(host, response.getBandwidth(), received);
+        if (wait > 0) {
+            throttle(wait);
+        }
+    }
+
+    /**
+     * Stops reading from the connection until the download is within its rate limits again
+     */
+    private void throttle(long nanos) {
+        // Neither paused nor resumed meanwhile, as the pause is only noticed by reading
+        key.interestOps(0);
+        loop.schedule(this, new Runnable() {
+            @Override
+            public void run() {
+                // The connection might have failed meanwhile
+                if (key != null && key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }, nanos);
+    }
+
+    /**
+     * Checks the response head and prepares a storage to start or resume a download.
+     *
+     * @return false if the response is a redirect which is followed by a new connection
+     * @throws IOException if the server has responded with an error
+     *                     or has ignored the range request while resuming
+     */
+    private boolean prepareStream() throws IOException {
+        int statusCode = parser.getStatusCode();
+        String location = parser.getHeader("Location");
+        if (statusCode / 100 == 3 && location != null && request.isFollowsRedirects()) {
+            redirect(new URL(url, location));
+            return false;
+        }
+        if (statusCode >= 400) {
+            throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + url);
+        }
+
+        supportsRangedDownload = "bytes".equals(parser.getHeader("Accept-Ranges"));
+        if (response.getStorage() == null) {
+            response.setContentLength(parser.getContentLength());
+            response.setStorage(DownloadTask.createStorage(request, parser.getContentLength()));
+            if (request.getCompression() == DownloadRequest.Compression.DECODED) {
+                response.setDecoder(ContentDecoder.forEncoding(parser.getHeader("Content-Encoding")));
+            }
+        } else if (statusCode != 206) {
+            throw new IOException("The server has ignored the range request");
+        }
+        // A download paused or cancelled while connecting is noticed once the content read so far is stored
+        response.start();
+        return true;
+    }
+
+    private void redirect(URL location) throws IOException {
+        if (++redirects > MAX_REDIRECTS || !"http".equalsIgnoreCase(location.getProtocol())) {
+            throw new IOException("Could not follow the redirect to " + location);
+        }
+        closeChannel();
+        // Blocks the loop on DNS, but redirects are rare
+        setUrl(location);
+        connect(true);
+    }
+
+    private void pause() {
+        if (supportsRangedDownload) {
+            // The download will proceed using a ranged download
+            closeChannel();
+        } else {
+            key.interestOps(0);
+        }
+        // Everything read was consumed, the buffer is not needed until resume
+        releaseBuffer();
+        isPaused = true;
+        stopWorker();
+    }
+
+    /**
+     * @param reusable true if the connection could be returned to the pool
+     */
+    private void finish(boolean reusable) {
+        if (reusable) {
+            loop.getConnectionPool().release(route, key);
+            key = null;
+            channel = null;
+        }
+        try {
+            // A close-delimited content could end early if the connection is dropped
+            response.checkContentComplete();
+            response.getStorage().close();
+            response.verifyDigest();
+            // A download paused meanwhile is finished by its resume, a cancelled one is not
+            response.finish();
+            close();
+        } catch (IOException e) {
+            failOrRetry(e);
+        }
+    }
+
+    /**
+     * Schedules another attempt after a failure if the retry policy of the request allows it,
+     * fails the download otherwise.
+     * <p/>
+     * The connection is closed meanwhile. The next attempt continues from the downloaded bytes
+     * with a ranged request if the server supports it, otherwise it starts over.
+     */
+    private void failOrRetry(IOException cause) {
+        RetryPolicy policy = request.getRetryPolicy();
+        int statusCode = parser != null && parser.isHeadComplete() ? parser.getStatusCode() : -1;
+        if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED
+                || !policy.isRetryable(cause, statusCode)) {
+            fail();
+            return;
+        }
+        int retries = response.countRetry();
+        if (retries >= policy.getMaxAttempts()) {
+            fail();
+            return;
+        }
+        closeChannel();
+        releaseBuffer();
+        loop.schedule(this, new Runnable() {
+            @Override
+            public void run() {
+                retry();
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(policy.getBackoff(retries)));
+    }
+
+    private void retry() {
+        if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+            close();
+            return;
+        }
+        try {
+            DownloadStorage storage = response.getStorage();
+            if (storage != null && !supportsRangedDownload) {
+                // The content could not be continued, the next attempt starts over
+                storage.discard();
+                response.setStorage(null);
+                response.setBytesDownloaded(0);
+            }
+            connect(true);
+        } catch (IOException e) {
+            failOrRetry(e);
+        }
+    }
+
+    /**
+     * Fails the download and releases the connection
+     */
+    @Override
+    public void fail() {
+        DownloadStorage storage = response.getStorage();
+        if (storage != null) {
+            try {
+                storage.close();
+            } catch (IOException e) {
+                // Already failing, the download result is incomplete anyway
+            }
+        }
+        response.fail();
+        close();
+    }
+
+    private void close() {
+        closeChannel();
+        releaseBuffer();
+        loop.unregister(this);
+        manager.taskFinished(response, this);
+        stopWorker();
+    }
+
+    private void acquireBuffer() {
+        if (buffer == null) {
+            buffer = new AdaptiveBuffer(manager.getBufferPool());
+            readBuf = ByteBuffer.wrap(buffer.array());
+        }
+    }
+
+    private void releaseBuffer() {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+            readBuf = null;
+        }
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The connection is not used anymore
+            }
+            channel = null;
+        }
+    }
+
+    private void stopWorker() {
+        if (isWorkerRunning) {
+            isWorkerRunning = false;
+            response.workerStopped();
+        }
+    }
+
+    private void setUrl(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        this.url = url;
+        this.address = new InetSocketAddress(url.getHost(), port);
+        this.host = url.getHost().toLowerCase();
+        this.route = host + ":" + port;
+    }
+}
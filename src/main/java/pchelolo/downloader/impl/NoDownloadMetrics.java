@@ -0,0 +1,50 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadMetrics;
+
+/**
+ * Ignores the measurements, used by the managers which are not instrumented
+ */
+class NoDownloadMetrics implements DownloadMetrics {
+
+    static final NoDownloadMetrics INSTANCE = new NoDownloadMetrics();
+
+    private NoDownloadMetrics() {
+    }
+
+    @Override
+    public void downloadQueued(String host) {
+    }
+
+    @Override
+    public void downloadStarted(String host, long waitNanos) {
+    }
+
+    @Override
+    public void downloadStopped(String host) {
+    }
+
+    @Override
+    public void connected(String host, long connectNanos) {
+    }
+
+    @Override
+    public void responseReceived(String host, long nanos) {
+    }
+
+    @Override
+    public void bytesDownloaded(String host, int bytes) {
+    }
+
+    @Override
+    public void downloadFinished(String host, long nanos) {
+    }
+
+    @Override
+    public void downloadFailed(String host, Throwable cause) {
+    }
+
+    @Override
+    public void downloadRetried(String host, Throwable cause) {
+    }
+}
@@ -0,0 +1,181 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.ContentSource;
+import pchelolo.downloader.DownloadMetrics;
+import pchelolo.downloader.DownloadRequest;
+import pchelolo.downloader.ProtocolProvider;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A runnable downloading the content opened by a {@link ProtocolProvider}.
+ * <p/>
+ * The content is moved from the channel of the provider straight into the storage in chunks,
+ * so the download could be throttled, paused and cancelled between them.
+ * A local file is copied to a destination file by the operating system, and mapped into memory
+ * as a whole if the content is kept in memory: the mapped download is finished at once.
+ * Immutable.
+ */
+class ProviderDownloadTask implements Runnable {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final ProtocolProvider provider;
+    private final URL url;
+    private final DownloadRequest request;
+    private final DownloadResponseImpl response;
+    private final DownloadJournal journal;
+    private final DownloadMetrics metrics;
+    private final BandwidthLimiter limiter;
+    private final ScheduledExecutorService retryTimer;
+    private final String host;
+
+    /**
+     * @param url the URL of the content, the URL of the request or of its mirror
+     * @param journal the journal recording the progress of the downloads or {@code null}
+     * @param metrics the measurements of the downloads of the manager
+     * @param limiter the rate limits of the downloads of the manager
+     * @param retryTimer the timer starting the failed downloads again once their backoff has passed
+     */
+    ProviderDownloadTask(ProtocolProvider provider, URL url, DownloadRequest request, DownloadResponseImpl response,
+                         DownloadJournal journal, DownloadMetrics metrics, BandwidthLimiter limiter,
+                         ScheduledExecutorService retryTimer) {
+        this.provider = provider;
+        this.url = url;
+        this.request = request;
+        this.response = response;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.limiter = limiter;
+        this.retryTimer = retryTimer;
+        this.host = request.getUrl().getHost().toLowerCase();
+    }
+
+    @Override
+    public void run() {
+        response.workerStarted();
+        try {
+            if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+                return;
+            }
+            download();
+        } catch (IOException | InterruptedException e) {
+            if (!retryLater(e)) {
+                metrics.downloadFailed(host, e);
+                DownloadTask.closeStorage(response);
+                response.fail();
+            }
+        } finally {
+            response.workerStopped();
+        }
+    }
+
+    private void download() throws IOException, InterruptedException {
+        DownloadStorage storage = response.getStorage();
+        long started = System.nanoTime();
+        try (ContentSource source = provider.open(url, request, storage == null ? 0 : storage.size(),
+                response.getValidator())) {
+            metrics.connected(host, System.nanoTime() - started);
+            metrics.responseReceived(host, System.nanoTime() - started);
+            ReadableByteChannel channel = source.getChannel();
+            storage = prepareStorage(source);
+
+            if (!response.start()) {
+                // Paused or cancelled while opening the source
+                if (response.checkPaused(source.supportsRanges())
+                        || response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+                    return;
+                }
+            }
+            if (storage instanceof CachedStorage) {
+                // Mapped as a whole
+                response.contentWritten((int) storage.size(), (int) storage.size(), false);
+                finish(started);
+                return;
+            }
+
+            while (!Thread.currentThread().isInterrupted()) {
+                long len = storage.transferFrom(channel, limiter.limitRead(host, response.getBandwidth(), CHUNK_SIZE));
+                if (len == -1) {
+                    finish(started);
+                    return;
+                }
+                metrics.bytesDownloaded(host, (int) len);
+                response.contentWritten((int) len, (int) len, true);
+                response.awaitBandwidth(limiter.take(host, response.getBandwidth(), (int) len));
+
+                if (response.checkPaused(source.supportsRanges())) {
+                    // Should release the current thread and the source on pause
+                    return;
+                }
+
+                if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+                    // Already downloaded bytes are cleaned up when the worker stops
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Prepares a storage to start or continue the download.
+     * If the source has not continued the content, the already downloaded bytes are dropped
+     * and the download starts over.
+     *
+     * @throws IOException if failed to create the destination file or to map the content
+     */
+    private DownloadStorage prepareStorage(ContentSource source) throws IOException {
+        DownloadStorage storage = response.getStorage();
+        if (storage != null) {
+            if (source.getPosition() == storage.size()) {
+                return storage;
+            }
+            storage.discard();
+            response.setBytesDownloaded(0);
+        }
+        long contentLength = source.getContentLength();
+        response.setContentLength(contentLength);
+        response.setValidator(source.getValidator());
+        ReadableByteChannel channel = source.getChannel();
+        if (request.getDestination() == null && channel instanceof FileChannel
+                && contentLength != -1 && contentLength <= Integer.MAX_VALUE) {
+            // Shares the pages of the file with the page cache instead of copying them,
+            // the mapping stays valid after the channel is closed
+            storage = new CachedStorage(((FileChannel) channel).map(FileChannel.MapMode.READ_ONLY, 0, contentLength));
+        } else {
+            storage = DownloadTask.createStorage(request, contentLength);
+        }
+        response.setStorage(storage);
+        if (journal != null && request.getDestination() != null && source.supportsRanges()) {
+            journal.register(request, response);
+        }
+        return storage;
+    }
+
+    private void finish(long started) throws IOException {
+        response.checkContentComplete();
+        response.getStorage().close();
+        response.verifyDigest();
+        metrics.downloadFinished(host, System.nanoTime() - started);
+        // A download paused meanwhile is finished by its resume, a cancelled one is not
+        response.finish();
+    }
+
+    /**
+     * Schedules the download to be started again after a failure if the retry policy of the request allows it
+     *
+     * @return true if the retry is scheduled, false if the download should fail
+     */
+    private boolean retryLater(Exception cause) {
+        return DownloadTask.retryLater(request, response, retryTimer, metrics, host, cause, -1, new Runnable() {
+            @Override
+            public void run() {
+                response.retry();
+            }
+        });
+    }
+}
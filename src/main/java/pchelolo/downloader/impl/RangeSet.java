@@ -0,0 +1,137 @@
+package pchelolo.downloader.impl;
+
+import java.util.Arrays;
+
+/**
+ * A compact set of byte ranges of the content, e.g. the ranges already downloaded.
+ * <p/>
+ * The ranges are kept sorted and merged as a flat array of their bounds, so the set of a download
+ * assembled out of order takes a few longs per gap rather than a bit per block.
+ * Not thread safe.
+ */
+class RangeSet {
+
+    // The start (inclusively) and the end (exclusively) of each range, sorted, not overlapping nor adjacent
+    private long[] bounds = new long[8];
+    private int count = 0;
+
+    /**
+     * Adds the range, merging it with the overlapping and adjacent ones
+     *
+     * @param start the first byte of the range. Inclusively
+     * @param end the last byte of the range. Exclusively
+     */
+    void add(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        // The first range ending at or after the start, the ranges before it stay as they are
+        int first = 0;
+        while (first < count && bounds[2 * first + 1] < start) {
+            first++;
+        }
+        // The ranges from the first one starting at or before the end are merged
+        int last = first;
+        while (last < count && bounds[2 * last] <= end) {
+            start = Math.min(start, bounds[2 * last]);
+            end = Math.max(end, bounds[2 * last + 1]);
+            last++;
+        }
+        int removed = last - first;
+        if (removed == 0) {
+            if (2 * (count + 1) > bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            System.arraycopy(bounds, 2 * first, bounds, 2 * first + 2, 2 * (count - first));
+            count++;
+        } else if (removed > 1) {
+            System.arraycopy(bounds, 2 * last, bounds, 2 * first + 2, 2 * (count - last));
+            count -= removed - 1;
+        }
+        bounds[2 * first] = start;
+        bounds[2 * first + 1] = end;
+    }
+
+    /**
+     * @return the number of separate ranges
+     */
+    int size() {
+        return count;
+    }
+
+    long getStart(int range) {
+        return bounds[2 * range];
+    }
+
+    long getEnd(int range) {
+        return bounds[2 * range + 1];
+    }
+
+    /**
+     * @return the total number of bytes in the ranges
+     */
+    long getCovered() {
+        long covered = 0;
+        for (int i = 0; i < count; i++) {
+            covered += bounds[2 * i + 1] - bounds[2 * i];
+        }
+        return covered;
+    }
+
+    /**
+     * @return the number of bytes in the set without gaps from the beginning of the content
+     */
+    long getContiguous() {
+        return count > 0 && bounds[0] == 0 ? bounds[1] : 0;
+    }
+
+    /**
+     * @param length the length of the content
+     * @return the ranges of the content missing from the set
+     */
+    RangeSet getGaps(long length) {
+        RangeSet gaps = new RangeSet();
+        long position = 0;
+        for (int i = 0; i < count && position < length; i++) {
+            gaps.add(position, Math.min(bounds[2 * i], length));
+            position = bounds[2 * i + 1];
+        }
+        gaps.add(position, length);
+        return gaps;
+    }
+
+    /**
+     * Parses the ranges written by {@link #toString()}
+     *
+     * @throws IllegalArgumentException if the ranges are malformed
+     */
+    static RangeSet parse(String ranges) {
+        RangeSet set = new RangeSet();
+        if (ranges.isEmpty()) {
+            return set;
+        }
+        for (String range : ranges.split(",")) {
+            String[] rangeBounds = range.split("-");
+            if (rangeBounds.length != 2) {
+                throw new IllegalArgumentException("Malformed range " + range);
+            }
+            set.add(Long.parseLong(rangeBounds[0]), Long.parseLong(rangeBounds[1]));
+        }
+        return set;
+    }
+
+    /**
+     * @return the ranges as {@code start-end} pairs separated by commas, the ends are exclusive
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(bounds[2 * i]).append('-').append(bounds[2 * i + 1]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package pchelolo.downloader.impl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A byte range of the content downloaded by a separate connection.
+ * <p/>
+ * Tracks the download progress of the range, so that it could be resumed independently
+ */
+class Segment {
+
+    private final long start;
+    private final long end;
+    private volatile long position;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * @param start the first byte of the segment. Inclusively
+     * @param end the last byte of the segment. Exclusively
+     */
+    Segment(long start, long end) {
+        this(start, end, start);
+    }
+
+    /**
+     * @param position the position of the next byte to download
+     */
+    Segment(long start, long end, long position) {
+        this.start = start;
+        this.end = end;
+        this.position = position;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the position of the next byte to download
+     */
+    long getPosition() {
+        return position;
+    }
+
+    long getRemaining() {
+        return end - position;
+    }
+
+    boolean isComplete() {
+        return position >= end;
+    }
+
+    /**
+     * Marks the bytes as downloaded. Only called by the thread owning the segment.
+     */
+    void advance(int len) {
+        position += len;
+    }
+
+    /**
+     * Tries to take the ownership of the segment for a downloading thread
+     *
+     * @return true if the segment was not owned by any other thread
+     */
+    boolean tryStart() {
+        return running.compareAndSet(false, true);
+    }
+
+    /**
+     * Releases the ownership of the segment
+     */
+    void stop() {
+        running.set(false);
+    }
+}
@@ -0,0 +1,162 @@
+package pchelolo.downloader.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A runnable downloading a single segment of the content using a ranged request.
+ * <p/>
+ * A failed segment is retried on its own according to the retry policy of the request,
+ * continuing from its position, the other segments are not interrupted.
+ * Should only be run after taking the ownership of the segment with {@link Segment#tryStart()}
+ */
+class SegmentDownloadTask implements Runnable {
+
+    private final DownloadTask protocol;
+    private final DownloadResponseImpl response;
+    private final Segments segments;
+    private final Segment segment;
+    private final Executor executor;
+
+    SegmentDownloadTask(DownloadTask protocol, Segments segments, Segment segment, Executor executor) {
+        this.protocol = protocol;
+        this.response = protocol.response;
+        this.segments = segments;
+        this.segment = segment;
+        this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+        URLConnection conn = null;
+        boolean reusable = false;
+        boolean retrying = false;
+        response.workerStarted();
+        try {
+            if (response.checkPaused(true)
+                    || response.getStatus() != DownloadResponseImpl.Status.IN_PROGRESS) {
+                return;
+            }
+            conn = protocol.prepareConnection();
+            protocol.setDownloadRange(segment.getPosition(), segment.getEnd() - 1, conn);
+            String validator = response.getValidator();
+            if (validator != null) {
+                protocol.setValidator(validator, conn);
+            }
+            long started = protocol.connect(conn);
+            if (!protocol.isRangeApplied(conn)) {
+                throw new IOException("The server has ignored the range request or the content has changed");
+            }
+            download(conn, started);
+            reusable = true;
+        } catch (IOException | InterruptedException e) {
+            // The segment is kept started while waiting, so that nobody else starts it meanwhile
+            retrying = protocol.retryLater(e, conn, new Runnable() {
+                @Override
+                public void run() {
+                    restart();
+                }
+            });
+            if (!retrying) {
+                protocol.metrics.downloadFailed(protocol.host, e);
+                protocol.closeStorage();
+                response.fail();
+            }
+        } finally {
+            protocol.finalizeConnection(conn, reusable);
+            if (!retrying) {
+                stop();
+            }
+            response.workerStopped();
+        }
+    }
+
+    /**
+     * Downloads the segment from the connection, positioned at the beginning of the segment.
+     * The rest of the content provided by the connection is ignored.
+     *
+     * @param started the time the connection was requested, in nanoseconds
+     */
+    void download(URLConnection conn, long started) throws IOException, InterruptedException {
+        DownloadStorage storage = response.getStorage();
+        AdaptiveBuffer tmpBuf = new AdaptiveBuffer(protocol.bufferPool);
+        try (InputStream inputStream = conn.getInputStream()) {
+            while (!segment.isComplete() && !Thread.currentThread().isInterrupted()) {
+                byte[] buf = tmpBuf.array();
+                int len = inputStream.read(buf, 0, (int) Math.min(protocol.limitRead(buf.length), segment.getRemaining()));
+                if (len == -1) {
+                    throw new EOFException("The connection was closed before the segment was downloaded");
+                }
+                storage.write(segment.getPosition(), buf, 0, len);
+                segment.advance(len);
+                tmpBuf.adapt(len);
+                protocol.metrics.bytesDownloaded(protocol.host, len);
+                response.contentWritten(len, len, false);
+                if (segment.isComplete()) {
+                    break;
+                }
+                // The segments share the limits of the download
+                protocol.throttle(len);
+
+                if (response.checkPaused(true)) {
+                    // Should release the current thread and connection on pause
+                    return;
+                }
+
+                DownloadResponseImpl.Status status = response.getStatus();
+                if (status == DownloadResponseImpl.Status.CANCELLED
+                        || status == DownloadResponseImpl.Status.FAILED) {
+                    return;
+                }
+            }
+        } finally {
+            tmpBuf.release();
+        }
+        if (segment.isComplete() && segments.segmentFinished()) {
+            storage.close();
+            // The segments are digested at once, as they were written out of order
+            response.verifyDigest();
+            protocol.metrics.downloadFinished(protocol.host, System.nanoTime() - started);
+            response.finish();
+        }
+    }
+
+    /**
+     * Runs the segment again after a failed attempt, the segment is still owned by this task
+     */
+    private void restart() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // The manager was closed while waiting
+            segment.stop();
+            protocol.closeStorage();
+            response.fail();
+        }
+    }
+
+    /**
+     * Releases the segment. If the download was resumed while the segment
+     * was being released, nobody else would restart it, so restart here.
+     */
+    private void stop() {
+        segment.stop();
+        if (segment.isComplete()) {
+            return;
+        }
+        try {
+            // If the download was paused again, make sure the next resume restarts the segment
+            if (!response.checkPaused(true)
+                    && response.getStatus() == DownloadResponseImpl.Status.IN_PROGRESS
+                    && segment.tryStart()) {
+                executor.execute(new SegmentDownloadTask(protocol, segments, segment, executor));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
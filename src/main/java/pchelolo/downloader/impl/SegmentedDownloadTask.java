@@ -0,0 +1,140 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A runnable splitting the content of a known length into segments
+ * and downloading them in parallel using ranged requests.
+ * <p/>
+ * The segments are written directly to their positions of the preallocated storage.
+ * Falls back to a sequential download if the content length is not known
+ * or the server does not support ranged downloads.
+ */
+class SegmentedDownloadTask implements Runnable {
+
+    private final DownloadTask protocol;
+    private final DownloadResponseImpl response;
+    private final Executor executor;
+
+    SegmentedDownloadTask(DownloadTask protocol, Executor executor) {
+        this.protocol = protocol;
+        this.response = protocol.response;
+        this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+        Segments segments = response.getSegments();
+        if (segments == null && response.getStorage() != null) {
+            // Resuming a download which has fallen back to a sequential one
+            protocol.run();
+            return;
+        }
+
+        URLConnection conn = null;
+        boolean reusable = false;
+        response.workerStarted();
+        try {
+            if (response.getStatus() == DownloadResponseImpl.Status.CANCELLED) {
+                return;
+            }
+            if (segments != null) {
+                // Resuming the segments, released on pause
+                startSegments(segments.getSegments());
+                return;
+            }
+
+            conn = protocol.prepareConnection();
+            long started = protocol.connect(conn);
+            segments = prepareSegments(conn);
+            if (segments == null) {
+                protocol.download(conn, started);
+                reusable = true;
+                return;
+            }
+
+            // A download paused or cancelled while connecting starts none of the segments,
+            // the paused one leaves them to the resume
+            response.start();
+            List<Segment> list = segments.getSegments();
+            startSegments(list.subList(1, list.size()));
+
+            // The first segment is read from the already opened connection,
+            // which is not reusable as the rest of the content is left unread
+            Segment first = list.get(0);
+            if (response.getStatus() == DownloadResponseImpl.Status.IN_PROGRESS && first.tryStart()) {
+                try {
+                    new SegmentDownloadTask(protocol, segments, first, executor).download(conn, started);
+                } finally {
+                    // Released on failure as well, so that the retry could start it again
+                    first.stop();
+                }
+            }
+            if (!first.isComplete()) {
+                startSegments(list.subList(0, 1));
+            }
+        } catch (IOException | InterruptedException e) {
+            // The segments already started retry on their own, the retry starts the rest
+            if (!protocol.retryLater(e, conn)) {
+                protocol.metrics.downloadFailed(protocol.host, e);
+                protocol.closeStorage();
+                response.fail();
+            }
+        } finally {
+            protocol.finalizeConnection(conn, reusable);
+            response.workerStopped();
+        }
+    }
+
+    /**
+     * Allocates the storage and splits the content into segments
+     *
+     * @return the segments or {@code null} if the content could not be downloaded in parallel
+     */
+    private Segments prepareSegments(URLConnection conn) throws IOException {
+        long contentLength = conn.getContentLengthLong();
+        int count = protocol.request.getSegments();
+        // The decoded content could only be decoded in order
+        if (contentLength < count || !protocol.supportsRangedDownload(conn) || protocol.createDecoder(conn) != null) {
+            return null;
+        }
+        DownloadStorage storage;
+        if (protocol.request.getDestination() != null) {
+            storage = new MappedFileStorage(protocol.request.getDestination());
+        } else if (contentLength <= Integer.MAX_VALUE) {
+            storage = new MemoryStorage(0);
+        } else {
+            return null;
+        }
+        storage.allocate(contentLength);
+        Segments segments = Segments.split(contentLength, count);
+        // The segments are set first, so that the allocated storage is not taken for the downloaded content
+        response.setContentLength(contentLength);
+        response.setValidator(protocol.getValidator(conn));
+        response.setSegments(segments);
+        response.setStorage(storage);
+        if (protocol.journal != null && protocol.request.getDestination() != null) {
+            protocol.journal.register(protocol.request, response);
+        }
+        return segments;
+    }
+
+    private void startSegments(List<Segment> segments) throws InterruptedException {
+        for (Segment segment : segments) {
+            if (response.checkPaused(true)) {
+                // Paused again before the segments were started,
+                // let the next resume start them
+                return;
+            }
+            if (response.getStatus() != DownloadResponseImpl.Status.IN_PROGRESS) {
+                return;
+            }
+            if (!segment.isComplete() && segment.tryStart()) {
+                executor.execute(new SegmentDownloadTask(protocol, response.getSegments(), segment, executor));
+            }
+        }
+    }
+}
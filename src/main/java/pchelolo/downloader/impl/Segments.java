@@ -0,0 +1,140 @@
+package pchelolo.downloader.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The segments of a content downloaded in parallel.
+ * <p/>
+ * The segments of a resumed download only cover the gaps left by the previous downloads,
+ * whose ranges are kept as the completed ones.
+ */
+class Segments {
+
+    private final RangeSet completed;
+    private final List<Segment> segments;
+    private final AtomicInteger unfinished;
+
+    private Segments(RangeSet completed, List<Segment> segments) {
+        this.completed = completed;
+        this.segments = Collections.unmodifiableList(segments);
+        int unfinished = 0;
+        for (Segment segment : segments) {
+            if (!segment.isComplete()) {
+                unfinished++;
+            }
+        }
+        this.unfinished = new AtomicInteger(unfinished);
+    }
+
+    /**
+     * Splits the content into the specified number of segments of (almost) equal sizes
+     */
+    static Segments split(long length, int count) {
+        return fill(new RangeSet(), length, count);
+    }
+
+    /**
+     * Splits the gaps of the content missing from the completed ranges into the specified number of segments.
+     * Each gap gets a segment even if there are more gaps than segments, the rest of the segments are given
+     * to the gaps in proportion to their sizes, so that the segments are of (almost) equal sizes
+     *
+     * @param completed the ranges of the content already downloaded, not modified
+     */
+    static Segments fill(RangeSet completed, long length, int count) {
+        RangeSet gaps = completed.getGaps(length);
+        long remaining = gaps.getCovered();
+        int[] counts = new int[gaps.size()];
+        int spare = count - gaps.size();
+        for (int i = 0; i < gaps.size(); i++) {
+            counts[i] = 1;
+            if (spare > 0) {
+                long gap = gaps.getEnd(i) - gaps.getStart(i);
+                int extra = (int) Math.min(spare, (count - gaps.size()) * gap / remaining);
+                counts[i] += extra;
+                spare -= extra;
+            }
+        }
+        // Rounded down, the rest goes to the largest gaps
+        while (spare > 0 && gaps.size() > 0) {
+            int largest = 0;
+            for (int i = 1; i < gaps.size(); i++) {
+                if ((gaps.getEnd(i) - gaps.getStart(i)) / (counts[i] + 1)
+                        > (gaps.getEnd(largest) - gaps.getStart(largest)) / (counts[largest] + 1)) {
+                    largest = i;
+                }
+            }
+            counts[largest]++;
+            spare--;
+        }
+
+        List<Segment> segments = new ArrayList<>(Math.max(count, gaps.size()));
+        for (int i = 0; i < gaps.size(); i++) {
+            long start = gaps.getStart(i);
+            long segmentLength = (gaps.getEnd(i) - start) / counts[i];
+            for (int j = 0; j < counts[i]; j++) {
+                long end = j == counts[i] - 1 ? gaps.getEnd(i) : start + segmentLength;
+                if (end > start) {
+                    segments.add(new Segment(start, end));
+                }
+                start = end;
+            }
+        }
+        RangeSet base = new RangeSet();
+        for (int i = 0; i < completed.size(); i++) {
+            base.add(completed.getStart(i), Math.min(completed.getEnd(i), length));
+        }
+        return new Segments(base, segments);
+    }
+
+    List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return a snapshot of the ranges of the content already downloaded
+     */
+    RangeSet getCompleted() {
+        RangeSet ranges = new RangeSet();
+        for (int i = 0; i < completed.size(); i++) {
+            ranges.add(completed.getStart(i), completed.getEnd(i));
+        }
+        for (Segment segment : segments) {
+            ranges.add(segment.getStart(), segment.getPosition());
+        }
+        return ranges;
+    }
+
+    /**
+     * @return the number of bytes downloaded without gaps from the beginning of the content
+     */
+    long getContiguousPosition() {
+        return getCompleted().getContiguous();
+    }
+
+    /**
+     * @return the number of bytes downloaded by all the segments and the previous downloads
+     */
+    long getDownloaded() {
+        long downloaded = completed.getCovered();
+        for (Segment segment : segments) {
+            downloaded += segment.getPosition() - segment.getStart();
+        }
+        return downloaded;
+    }
+
+    boolean isComplete() {
+        return unfinished.get() == 0;
+    }
+
+    /**
+     * Registers a completion of a segment
+     *
+     * @return true if it was the last segment to complete
+     */
+    boolean segmentFinished() {
+        return unfinished.decrementAndGet() == 0;
+    }
+}
@@ -0,0 +1,301 @@
+package pchelolo.downloader.impl;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread multiplexing the connections of many downloads with a single {@link Selector}.
+ * <p/>
+ * The tasks are only touched by the loop thread, other threads hand work over
+ * to the loop with {@link #execute(Task, Runnable)}.
+ * The idle keep-alive connections are kept in a pool of the loop.
+ * The delayed actions, such as continuing the throttled downloads, are run by the loop as well.
+ */
+class SelectorLoop implements Runnable {
+
+    /**
+     * Reacts to the readiness events of a channel registered with the loop
+     */
+    interface Handler {
+
+        void handle(SelectionKey key);
+    }
+
+    /**
+     * The owner of connections or of actions run by the loop. A task registered with the loop
+     * keeps the loop running until it is over
+     */
+    interface Task {
+
+        /**
+         * Periodic check of the timeouts
+         *
+         * @param now the current {@link System#nanoTime()}
+         */
+        void sweep(long now);
+
+        /**
+         * Fails the downloads of the task, the loop is broken
+         */
+        void fail();
+    }
+
+    /**
+     * An action run by the loop on behalf of its task
+     */
+    private static class Action {
+
+        // The task failed if the action breaks, null if the action is not owned by any
+        final Task owner;
+        final Runnable runnable;
+
+        Action(Task owner, Runnable runnable) {
+            this.owner = owner;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * An action delayed until the deadline
+     */
+    private static class Timer implements Comparable<Timer> {
+
+        final long deadline;
+        final Action action;
+
+        Timer(long deadline, Action action) {
+            this.deadline = deadline;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    private static final long SWEEP_INTERVAL = 100;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Action> pending = new ConcurrentLinkedQueue<>();
+    private final Set<Task> tasks = new HashSet<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final ConnectionPool connectionPool;
+
+    private volatile boolean shutdown = false;
+    private volatile boolean terminated = false;
+    private long nextSweep;
+
+    /**
+     * @param connectionPool the pool of the idle connections served by this loop
+     * @throws IOException if failed to open a selector
+     */
+    SelectorLoop(String name, ConnectionPool connectionPool) throws IOException {
+        this.connectionPool = connectionPool;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        // The downloads are awaited by the callers, the loop should not keep the JVM running
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Runs the action on the loop thread on behalf of the task, the task is failed if the action breaks
+     *
+     * @throws RejectedExecutionException if the loop has already terminated
+     */
+    void execute(Task owner, Runnable action) {
+        if (terminated) {
+            throw new RejectedExecutionException("The selector loop is terminated");
+        }
+        pending.add(new Action(owner, action));
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the action not owned by any task on the loop thread, the action is dropped if it breaks
+     *
+     * @throws RejectedExecutionException if the loop has already terminated
+     */
+    void execute(Runnable action) {
+        execute(null, action);
+    }
+
+    /**
+     * Runs the action on the loop thread on behalf of the task once the delay passes,
+     * the task is failed if the action breaks. Only called by the loop thread.
+     */
+    void schedule(Task owner, Runnable action, long delayNanos) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, new Action(owner, action)));
+    }
+
+    /**
+     * @return milliseconds to wait for the readiness events, 0 if a timer is already due
+     */
+    private long selectTimeout() {
+        Timer next = timers.peek();
+        if (next == null) {
+            return SWEEP_INTERVAL;
+        }
+        long nanos = next.deadline - System.nanoTime();
+        if (nanos <= 0) {
+            return 0;
+        }
+        // Rounded up, so that the loop does not wake up right before the deadline
+        return Math.min(TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1), SWEEP_INTERVAL);
+    }
+
+    /**
+     * Registers a task owning a connection. Only called by the loop thread.
+     */
+    void register(Task task) {
+        tasks.add(task);
+    }
+
+    /**
+     * Unregisters a task which has closed its connection. Only called by the loop thread.
+     */
+    void unregister(Task task) {
+        tasks.remove(task);
+    }
+
+    /**
+     * Lets the loop terminate as soon as all its downloads are over
+     */
+    void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Passes the readiness event to the handler of the key. A handler broken by an unexpected exception
+     * is failed, so that the rest of the downloads served by the loop go on
+     */
+    private void handle(SelectionKey key) {
+        Handler handler = (Handler) key.attachment();
+        try {
+            handler.handle(key);
+        } catch (RuntimeException e) {
+            if (handler instanceof Task) {
+                failBroken((Task) handler);
+            }
+            if (key.isValid()) {
+                // Not closed by the task, or an idle connection nobody owns
+                key.cancel();
+                try {
+                    key.channel().close();
+                } catch (IOException closeFailure) {
+                    // The connection is not used anymore
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the handed over or delayed action. The task of an action broken by an unexpected exception
+     * is failed, so that the rest of the downloads served by the loop go on
+     */
+    private void runAction(Action action) {
+        try {
+            action.runnable.run();
+        } catch (RuntimeException e) {
+            if (action.owner != null) {
+                failBroken(action.owner);
+            }
+        }
+    }
+
+    /**
+     * Fails the task broken by an unexpected exception and stops waiting for it
+     */
+    private void failBroken(Task task) {
+        try {
+            task.fail();
+        } catch (RuntimeException e) {
+            // Broken beyond failing, its downloads could not be helped anymore
+        } finally {
+            tasks.remove(task);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!shutdown || !tasks.isEmpty() || !pending.isEmpty()) {
+                long timeout = selectTimeout();
+                if (timeout > 0) {
+                    selector.select(timeout);
+                } else {
+                    selector.selectNow();
+                }
+
+                Action action;
+                while ((action = pending.poll()) != null) {
+                    runAction(action);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        handle(key);
+                    }
+                }
+
+                long now = System.nanoTime();
+                Timer timer;
+                while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+                    runAction(timers.poll().action);
+                }
+
+                if (now - nextSweep >= 0) {
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL);
+                    for (Task task : new ArrayList<>(tasks)) {
+                        try {
+                            task.sweep(now);
+                        } catch (RuntimeException e) {
+                            failBroken(task);
+                        }
+                    }
+                    connectionPool.evict(now);
+                }
+            }
+        } catch (IOException e) {
+            // The selector is broken, nothing could progress anymore
+            for (Task task : new ArrayList<>(tasks)) {
+                task.fail();
+            }
+        } finally {
+            terminated = true;
+            connectionPool.close();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Terminating anyway
+            }
+        }
+    }
+}
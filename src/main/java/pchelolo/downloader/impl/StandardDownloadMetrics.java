@@ -0,0 +1,251 @@
+package pchelolo.downloader.impl;
+
+import pchelolo.downloader.DownloadMetrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The default implementation of the {@link DownloadMetrics}, which could be exported over JMX.
+ * <p/>
+ * Keeps the global and per-host throughput, the latency histograms of the queue wait, the connection,
+ * the time to the first byte and the total time, the utilisation of the download slots
+ * and the counts of the failures and the retries by their cause.
+ * Recording never locks and allocates only for a new host or cause.
+ * <p/>
+ * The hosts are never forgotten, so a manager downloading from an unbounded number of hosts
+ * should use another implementation.
+ */
+public class StandardDownloadMetrics implements DownloadMetrics, StandardDownloadMetricsMXBean {
+
+    private static final String HTTP_ERROR_PREFIX = "Server returned HTTP response code: ";
+
+    private final ThroughputMeter throughput = new ThroughputMeter();
+    private final ConcurrentMap<String, ThroughputMeter> hostThroughput = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram queueWaitTime = new LatencyHistogram();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram totalTime = new LatencyHistogram();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+
+    private final LongAdder finished = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> retries = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the metrics with the platform MBean server
+     *
+     * @param name distinguishes the metrics of the managers of the application
+     * @return the name of the registered MBean
+     * @throws JMException if failed to register, e.g. the name is already used
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("pchelolo.downloader:type=DownloadMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Groups the failures by the HTTP status or by the exception class
+     */
+    static String causeOf(Throwable cause) {
+        String message = cause.getMessage();
+        if (message != null && message.startsWith(HTTP_ERROR_PREFIX)) {
+            int end = message.indexOf(' ', HTTP_ERROR_PREFIX.length());
+            return "HTTP " + message.substring(HTTP_ERROR_PREFIX.length(), end == -1 ? message.length() : end);
+        }
+        return cause.getClass().getSimpleName();
+    }
+
+    private static void count(ConcurrentMap<String, LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.increment();
+    }
+
+    private ThroughputMeter hostThroughput(String host) {
+        ThroughputMeter meter = hostThroughput.get(host);
+        if (meter == null) {
+            ThroughputMeter created = new ThroughputMeter();
+            meter = hostThroughput.putIfAbsent(host, created);
+            if (meter == null) {
+                meter = created;
+            }
+        }
+        return meter;
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+        Map<String, Long> sums = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            sums.put(counter.getKey(), counter.getValue().sum());
+        }
+        return sums;
+    }
+
+    // ------------ DownloadMetrics --------------- //
+
+    @Override
+    public void downloadQueued(String host) {
+        queued.incrementAndGet();
+    }
+
+    @Override
+    public void downloadStarted(String host, long waitNanos) {
+        queued.decrementAndGet();
+        int running = active.incrementAndGet();
+        int peak;
+        while ((peak = peakActive.get()) < running && !peakActive.compareAndSet(peak, running)) {
+            // Raced with another start
+        }
+        queueWaitTime.record(waitNanos);
+    }
+
+    @Override
+    public void downloadStopped(String host) {
+        active.decrementAndGet();
+    }
+
+    @Override
+    public void connected(String host, long connectNanos) {
+        connectTime.record(connectNanos);
+    }
+
+    @Override
+    public void responseReceived(String host, long nanos) {
+        timeToFirstByte.record(nanos);
+    }
+
+    @Override
+    public void bytesDownloaded(String host, int bytes) {
+        throughput.record(bytes);
+        hostThroughput(host).record(bytes);
+    }
+
+    @Override
+    public void downloadFinished(String host, long nanos) {
+        finished.increment();
+        totalTime.record(nanos);
+    }
+
+    @Override
+    public void downloadFailed(String host, Throwable cause) {
+        failed.increment();
+        count(failures, causeOf(cause));
+    }
+
+    @Override
+    public void downloadRetried(String host, Throwable cause) {
+        retried.increment();
+        count(retries, causeOf(cause));
+    }
+
+    // ------------ PUBLIC API --------------- //
+
+    @Override
+    public long getBytesDownloaded() {
+        return throughput.getTotal();
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return throughput.getBytesPerSecond();
+    }
+
+    @Override
+    public Map<String, Long> getHostBytesDownloaded() {
+        Map<String, Long> bytes = new TreeMap<>();
+        for (Map.Entry<String, ThroughputMeter> host : hostThroughput.entrySet()) {
+            bytes.put(host.getKey(), host.getValue().getTotal());
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String, Long> getHostBytesPerSecond() {
+        Map<String, Long> rates = new TreeMap<>();
+        for (Map.Entry<String, ThroughputMeter> host : hostThroughput.entrySet()) {
+            rates.put(host.getKey(), host.getValue().getBytesPerSecond());
+        }
+        return rates;
+    }
+
+    @Override
+    public int getQueuedDownloads() {
+        return queued.get();
+    }
+
+    @Override
+    public int getActiveDownloads() {
+        return active.get();
+    }
+
+    @Override
+    public int getPeakActiveDownloads() {
+        return peakActive.get();
+    }
+
+    @Override
+    public long getFinishedDownloads() {
+        return finished.sum();
+    }
+
+    @Override
+    public long getFailedDownloads() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getRetriedDownloads() {
+        return retried.sum();
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        return sums(failures);
+    }
+
+    @Override
+    public Map<String, Long> getRetries() {
+        return sums(retries);
+    }
+
+    @Override
+    public LatencySnapshot getQueueWaitTime() {
+        return queueWaitTime.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getConnectTime() {
+        return connectTime.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getTimeToFirstByte() {
+        return timeToFirstByte.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getTotalTime() {
+        return totalTime.snapshot();
+    }
+}
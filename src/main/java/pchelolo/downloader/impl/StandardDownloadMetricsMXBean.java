@@ -0,0 +1,50 @@
+package pchelolo.downloader.impl;
+
+import java.util.Map;
+
+/**
+ * The management interface of the {@link StandardDownloadMetrics}.
+ * <p/>
+ * The latencies are reported in microseconds, the rates in bytes per second
+ * averaged over the last seconds.
+ */
+public interface StandardDownloadMetricsMXBean {
+
+    long getBytesDownloaded();
+
+    long getBytesPerSecond();
+
+    Map<String, Long> getHostBytesDownloaded();
+
+    Map<String, Long> getHostBytesPerSecond();
+
+    int getQueuedDownloads();
+
+    int getActiveDownloads();
+
+    int getPeakActiveDownloads();
+
+    long getFinishedDownloads();
+
+    long getFailedDownloads();
+
+    long getRetriedDownloads();
+
+    /**
+     * @return the number of the failures by their cause
+     */
+    Map<String, Long> getFailures();
+
+    /**
+     * @return the number of the retries by the cause of the failed attempt
+     */
+    Map<String, Long> getRetries();
+
+    LatencySnapshot getQueueWaitTime();
+
+    LatencySnapshot getConnectTime();
+
+    LatencySnapshot getTimeToFirstByte();
+
+    LatencySnapshot getTotalTime();
+}
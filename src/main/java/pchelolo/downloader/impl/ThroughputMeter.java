@@ -0,0 +1,61 @@
+package pchelolo.downloader.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the downloaded bytes, in total and per second over a sliding window of the last seconds.
+ * <p/>
+ * The window is a ring of per-second slots reset by the first write in a new second,
+ * the bytes recorded concurrently with the reset might be lost, so the rate is approximate.
+ * Thread safe, never locks.
+ */
+class ThroughputMeter {
+
+    private static final int WINDOW_SECONDS = 10;
+
+    private final long origin = System.nanoTime();
+    private final LongAdder total = new LongAdder();
+    // The second each slot is counting and its bytes
+    private final AtomicLongArray slotSeconds = new AtomicLongArray(WINDOW_SECONDS);
+    private final AtomicLongArray slotBytes = new AtomicLongArray(WINDOW_SECONDS);
+
+    void record(long bytes) {
+        total.add(bytes);
+        long now = now();
+        int slot = (int) (now % WINDOW_SECONDS);
+        long second = slotSeconds.get(slot);
+        if (second != now && slotSeconds.compareAndSet(slot, second, now)) {
+            slotBytes.set(slot, 0);
+        }
+        slotBytes.addAndGet(slot, bytes);
+    }
+
+    /**
+     * @return the total number of bytes recorded
+     */
+    long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * @return the average rate over the complete seconds of the window, the current second is not counted
+     */
+    long getBytesPerSecond() {
+        long now = now();
+        long bytes = 0;
+        for (int slot = 0; slot < WINDOW_SECONDS; slot++) {
+            long age = now - slotSeconds.get(slot);
+            if (age > 0 && age < WINDOW_SECONDS) {
+                bytes += slotBytes.get(slot);
+            }
+        }
+        return bytes / (WINDOW_SECONDS - 1);
+    }
+
+    private long now() {
+        // Starts a window later, so the initial zero seconds of the slots are out of the window
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - origin) + WINDOW_SECONDS;
+    }
+}
@@ -0,0 +1,83 @@
+package pchelolo.downloader.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of the downloaded bytes.
+ * <p/>
+ * The bucket is kept as the time it will be full again after the bytes taken so far,
+ * so taking bytes is a single compare-and-set and the bucket never locks.
+ * The bytes are taken after they were read: the bucket might go into debt,
+ * which the reader pays off by waiting for the returned time.
+ * Up to {@link #BURST_MILLIS} milliseconds worth of bytes could be taken at once after an idle period.
+ * <p/>
+ * The rate could be changed at any time, the debt is forgiven then, so a raised limit applies at once.
+ */
+class TokenBucket {
+
+    private static final long BURST_MILLIS = 100;
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(BURST_MILLIS);
+    // The most a reader should take at once, so that a rate change applies within about a tenth of a second
+    private static final long CHUNKS_PER_SECOND = 10;
+
+    private volatile long bytesPerSecond;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param bytesPerSecond the rate limit, 0 for no limit
+     * @throws IllegalArgumentException if the rate is negative
+     */
+    TokenBucket(long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond the rate limit, 0 for no limit
+     * @throws IllegalArgumentException if the rate is negative
+     */
+    void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The rate limit should not be negative");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        fullAt.set(System.nanoTime());
+    }
+
+    /**
+     * @return the most bytes to read at once, {@link Integer#MAX_VALUE} if there is no limit
+     */
+    int getChunkSize() {
+        long rate = bytesPerSecond;
+        if (rate == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.min(Math.max(rate / CHUNKS_PER_SECOND, 1), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Takes the already read bytes from the bucket
+     *
+     * @return nanoseconds to wait before reading more, 0 if the reader could continue at once
+     */
+    long take(int bytes) {
+        long rate = bytesPerSecond;
+        if (rate == 0) {
+            return 0;
+        }
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            // An idle bucket is only filled up to the burst
+            long next = Math.max(current, now - BURST_NANOS) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(next - now, 0);
+            }
+        }
+    }
+}
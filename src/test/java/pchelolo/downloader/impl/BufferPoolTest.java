@@ -0,0 +1,73 @@
+package pchelolo.downloader.impl;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * The pool and the adaptive buffers are package private, so they are tested from their package
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void sizeClassTest() {
+        BufferPool pool = new BufferPool();
+        Assert.assertEquals("Small buffer is not rounded up:", BufferPool.MIN_BUFFER_SIZE, pool.acquire(1).length);
+        Assert.assertEquals("Size is not rounded to a power of two:", 2 * BufferPool.MIN_BUFFER_SIZE,
+                pool.acquire(BufferPool.MIN_BUFFER_SIZE + 1).length);
+        Assert.assertEquals("Exact size is rounded up:", 4 * BufferPool.MIN_BUFFER_SIZE,
+                pool.acquire(4 * BufferPool.MIN_BUFFER_SIZE).length);
+        Assert.assertEquals("Large buffer is not capped:", BufferPool.MAX_BUFFER_SIZE,
+                pool.acquire(BufferPool.MAX_BUFFER_SIZE * 4).length);
+    }
+
+    @Test
+    public void reuseTest() {
+        BufferPool pool = new BufferPool();
+        byte[] buf = pool.acquire(BufferPool.MIN_BUFFER_SIZE);
+        pool.release(buf);
+        Assert.assertSame("Buffer is not reused:", buf, pool.acquire(BufferPool.MIN_BUFFER_SIZE));
+        Assert.assertNotSame("Leased buffer is reused:", buf, pool.acquire(BufferPool.MIN_BUFFER_SIZE));
+
+        byte[] foreign = new byte[BufferPool.MIN_BUFFER_SIZE + 1];
+        pool.release(foreign);
+        Assert.assertNotSame("Foreign buffer is pooled:", foreign, pool.acquire(2 * BufferPool.MIN_BUFFER_SIZE));
+    }
+
+    @Test
+    public void maxRetainedTest() {
+        BufferPool pool = new BufferPool(BufferPool.MIN_BUFFER_SIZE);
+        byte[] first = pool.acquire(BufferPool.MIN_BUFFER_SIZE);
+        byte[] second = pool.acquire(BufferPool.MIN_BUFFER_SIZE);
+        pool.release(first);
+        pool.release(second);
+        Assert.assertSame("Buffer within the limit is not kept:", first, pool.acquire(BufferPool.MIN_BUFFER_SIZE));
+        Assert.assertNotSame("Buffer over the limit is kept:", second, pool.acquire(BufferPool.MIN_BUFFER_SIZE));
+    }
+
+    @Test
+    public void adaptiveBufferTest() {
+        BufferPool pool = new BufferPool();
+        AdaptiveBuffer buffer = new AdaptiveBuffer(pool);
+        Assert.assertEquals("Buffer does not start small:", BufferPool.MIN_BUFFER_SIZE, buffer.array().length);
+
+        Assert.assertFalse("Partial read grows the buffer:", buffer.adapt(BufferPool.MIN_BUFFER_SIZE / 2));
+        Assert.assertFalse("Small buffer shrinks:", buffer.adapt(1));
+        Assert.assertTrue("Full read does not grow the buffer:", buffer.adapt(BufferPool.MIN_BUFFER_SIZE));
+        Assert.assertEquals("Buffer is not doubled:", 2 * BufferPool.MIN_BUFFER_SIZE, buffer.array().length);
+
+        while (buffer.array().length < BufferPool.MAX_BUFFER_SIZE) {
+            Assert.assertTrue("Full read does not grow the buffer:", buffer.adapt(buffer.array().length));
+        }
+        Assert.assertFalse("Buffer grows over the maximum:", buffer.adapt(BufferPool.MAX_BUFFER_SIZE));
+
+        Assert.assertFalse("Quarter read shrinks the buffer:", buffer.adapt(BufferPool.MAX_BUFFER_SIZE / 4));
+        Assert.assertTrue("Short read does not shrink the buffer:", buffer.adapt(1));
+        Assert.assertEquals("Buffer is not halved:", BufferPool.MAX_BUFFER_SIZE / 2, buffer.array().length);
+
+        byte[] released = buffer.array();
+        buffer.release();
+        Assert.assertNull("Released buffer is still held:", buffer.array());
+        Assert.assertSame("Released buffer is not returned to the pool:", released,
+                pool.acquire(BufferPool.MAX_BUFFER_SIZE / 2));
+    }
+}
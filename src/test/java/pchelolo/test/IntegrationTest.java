@@ -4,19 +4,60 @@ import junit.framework.Assert;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import pchelolo.downloader.ContentDigest;
+import pchelolo.downloader.DownloadBatch;
 import pchelolo.downloader.DownloadManager;
 import pchelolo.downloader.DownloadRequest;
 import pchelolo.downloader.DownloadResponse;
+import pchelolo.downloader.LocalMirror;
+import pchelolo.downloader.RetryPolicy;
+import pchelolo.downloader.impl.StandardDownloadMetrics;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 
 /**
@@ -28,6 +69,26 @@ public class IntegrationTest {
     private static final String RESPONSE_CONTENT;
     private static final int RESPONSE_WAIT_TIME = 5;
     private static final int SERVER_PORT = 12345;
+    private static final int HTTPS_SERVER_PORT = 12346;
+    private static final int HTTP2_SERVER_PORT = 12347;
+    private static final String KEY_STORE = "/localhost.jks";
+    private static final String KEY_STORE_PASSWORD = "changeit";
+    private static final String SIZED_PATH = "/sized";
+    private static final String CACHED_PATH = "/cached";
+    private static final String FLAKY_PATH = "/flaky";
+    private static final String GZIP_PATH = "/gzip";
+    private static final String SLOW_START_PATH = "/slow-start";
+    private static final int SLOW_START_DELAY = 500;
+    private static final String HTTP2_LARGE_PATH = "/h2/large";
+    private static final String CONTENT_ETAG = "\"test\"";
+    private static final Set<Integer> CLIENT_PORTS = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger NOT_MODIFIED_RESPONSES = new AtomicInteger();
+    private static final AtomicInteger FLAKY_REQUESTS = new AtomicInteger();
+    private static final List<String> FLAKY_RANGES = new CopyOnWriteArrayList<>();
+    private static final List<String> GZIP_RANGES = new CopyOnWriteArrayList<>();
+    private static final String COMPRESSIBLE_CONTENT;
+    private static final byte[] GZIP_CONTENT;
+    private static final byte[] HTTP2_LARGE_CONTENT;
     private Server server;
 
     static {
@@ -36,11 +97,44 @@ public class IntegrationTest {
             builder.append("Test!");
         }
         RESPONSE_CONTENT = builder.toString();
+
+        // Random digits are compressed just enough to be served in several chunks
+        Random random = new Random(42);
+        builder.setLength(0);
+        for (int i = 0; i < 2000; i++) {
+            builder.append(random.nextInt(10));
+        }
+        COMPRESSIBLE_CONTENT = builder.toString();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(COMPRESSIBLE_CONTENT.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        GZIP_CONTENT = compressed.toByteArray();
+
+        // Large enough to outlast the stream window of a paused download
+        HTTP2_LARGE_CONTENT = new byte[1 << 20];
+        random.nextBytes(HTTP2_LARGE_CONTENT);
     }
 
     @Before
     public void startJetty() {
+        CLIENT_PORTS.clear();
+        NOT_MODIFIED_RESPONSES.set(0);
+        FLAKY_REQUESTS.set(0);
+        FLAKY_RANGES.clear();
+        GZIP_RANGES.clear();
         server = new Server(SERVER_PORT);
+        SslContextFactory sslContextFactory = new SslContextFactory();
+        sslContextFactory.setKeyStorePath(IntegrationTest.class.getResource(KEY_STORE).toExternalForm());
+        sslContextFactory.setKeyStorePassword(KEY_STORE_PASSWORD);
+        sslContextFactory.setKeyManagerPassword(KEY_STORE_PASSWORD);
+        // The old connector is not aware of TLS 1.3
+        sslContextFactory.setIncludeProtocols("TLSv1.2");
+        SslSelectChannelConnector httpsConnector = new SslSelectChannelConnector(sslContextFactory);
+        httpsConnector.setPort(HTTPS_SERVER_PORT);
+        server.addConnector(httpsConnector);
         server.setHandler(new TestHandler());
         try {
             server.start();
@@ -116,24 +210,901 @@ public class IntegrationTest {
         Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
     }
 
+    @Test
+    public void pauseCancelWhileConnectingTest() throws Exception {
+        DownloadManager[] managers = {
+                DownloadManager.Factory.createDefaultDownloadManager(),
+                DownloadManager.Factory.createNioDownloadManager(1)
+        };
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SLOW_START_PATH).build();
+        for (DownloadManager manager : managers) {
+            DownloadResponse cancelled = manager.download(request);
+            DownloadResponse paused = manager.download(request);
+            Thread.sleep(SLOW_START_DELAY / 3);
+            Assert.assertEquals("Download is not connecting:", DownloadResponse.Status.NOT_STARTED, paused.getStatus());
+            cancelled.cancel();
+            paused.pause();
+
+            // Long enough for the whole content to be sent
+            Thread.sleep(SLOW_START_DELAY * 2);
+            Assert.assertEquals("Cancellation is overwritten:", DownloadResponse.Status.CANCELLED, cancelled.getStatus());
+            Assert.assertEquals("Pause is overwritten:", DownloadResponse.Status.PAUSED, paused.getStatus());
+
+            paused.resume();
+            byte[] resultBytes = paused.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+            Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
+            manager.close();
+        }
+    }
+
+    @Test
+    public void fileDestinationDownloadTest() throws Exception {
+        Path destination = Files.createTempFile("downloader", ".tmp");
+        try {
+            DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+            DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT)
+                    .setDestination(destination)
+                    .build();
+            DownloadResponse result = manager.download(request);
+            Assert.assertEquals("Wrong destination:", destination, result.getDestination());
+
+            while (result.getStatus() != DownloadResponse.Status.FINISHED) {
+                try {
+                    result.pause();
+                } catch (IllegalStateException e) {
+                    //IGNORE... already finished probably
+                }
+                try {
+                    result.resume();
+                } catch (IllegalStateException e) {
+                    //IGNORE... already finished probably
+                }
+            }
+            Assert.assertNotNull("Download is not finished", result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS));
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(Files.readAllBytes(destination), "UTF-8"));
+        } finally {
+            Files.deleteIfExists(destination);
+        }
+    }
+
+    @Test
+    public void journalRecoveryTest() throws Exception {
+        Path journal = Files.createTempDirectory("downloader-journal");
+        Path destination = Files.createTempFile("downloader", ".tmp");
+        try {
+            DownloadManager manager = DownloadManager.Factory.createJournaledDownloadManager(journal);
+            DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT)
+                    .setDestination(destination)
+                    .build();
+            DownloadResponse interrupted = manager.download(request);
+            int waitCount = 0;
+            while (interrupted.getBytesDownloaded() == 0) {
+                Thread.sleep(10);
+                waitCount++;
+                if (waitCount > 50) {
+                    throw new RuntimeException("Failed. Test does no start");
+                }
+            }
+            interrupted.pause();
+            // Closing flushes the journal, the paused download is left unfinished as if the process has stopped
+            manager.close();
+
+            DownloadManager restarted = DownloadManager.Factory.createJournaledDownloadManager(journal);
+            List<DownloadResponse> recovered = restarted.recover();
+            Assert.assertEquals("Download is not recovered:", 1, recovered.size());
+            DownloadResponse result = recovered.get(0);
+            Assert.assertTrue("Progress is lost:", result.getBytesDownloaded() > 0);
+            Assert.assertNotNull("Download is not finished", result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS));
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(Files.readAllBytes(destination), "UTF-8"));
+            restarted.close();
+            // The entry is removed by a status listener right after the download is finished
+            waitCount = 0;
+            while (journal.toFile().list().length > 0) {
+                Thread.sleep(10);
+                waitCount++;
+                if (waitCount > 50) {
+                    throw new RuntimeException("Failed. Journal is not cleaned up");
+                }
+            }
+        } finally {
+            Files.deleteIfExists(destination);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(journal)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(journal);
+        }
+    }
+
+    @Test
+    public void segmentedJournalRecoveryTest() throws Exception {
+        Path journal = Files.createTempDirectory("downloader-journal");
+        Path destination = Files.createTempFile("downloader", ".tmp");
+        try {
+            DownloadManager manager = DownloadManager.Factory.createJournaledDownloadManager(journal);
+            DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SIZED_PATH)
+                    .setDestination(destination)
+                    .setSegments(4)
+                    // Keeps the download from finishing before it is paused
+                    .setMaxBytesPerSecond(1000)
+                    .build();
+            DownloadResponse interrupted = manager.download(request);
+            int waitCount = 0;
+            while (interrupted.getBytesDownloaded() < 200) {
+                Thread.sleep(10);
+                waitCount++;
+                if (waitCount > 50) {
+                    throw new RuntimeException("Failed. Test does no start");
+                }
+            }
+            interrupted.pause();
+            manager.close();
+            Assert.assertEquals("Sparse file is not preallocated:", RESPONSE_CONTENT.length(), Files.size(destination));
+
+            // The segments have left gaps between the downloaded ranges
+            String entry;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(journal)) {
+                entry = new String(Files.readAllBytes(files.iterator().next()), StandardCharsets.ISO_8859_1);
+            }
+            Assert.assertTrue("Ranges are not recorded:", entry.contains("completedRanges=0-"));
+            Assert.assertTrue("No gaps are left:", entry.contains(","));
+
+            DownloadManager restarted = DownloadManager.Factory.createJournaledDownloadManager(journal);
+            List<DownloadResponse> recovered = restarted.recover();
+            Assert.assertEquals("Download is not recovered:", 1, recovered.size());
+            DownloadResponse result = recovered.get(0);
+            Assert.assertTrue("Progress is lost:", result.getBytesDownloaded() >= 200);
+            Assert.assertNotNull("Download is not finished", result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS));
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(Files.readAllBytes(destination), "UTF-8"));
+            restarted.close();
+        } finally {
+            Files.deleteIfExists(destination);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(journal)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(journal);
+        }
+    }
+
+    @Test
+    public void cacheTest() throws Exception {
+        Path cache = Files.createTempDirectory("downloader-cache");
+        try {
+            DownloadManager manager = DownloadManager.Factory.createCachingDownloadManager(cache, 1 << 20);
+            DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + CACHED_PATH).build();
+            // The future is completed once the content is cached
+            byte[] downloaded = manager.download(request).getResultFuture().get(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(downloaded));
+            manager.close();
+
+            // The cache is kept on disk, so it is shared with the following instances
+            manager = DownloadManager.Factory.createCachingDownloadManager(cache, 1 << 20);
+            DownloadResponse result = manager.download(request);
+            ByteBuffer buffer = result.getResultBuffer();
+            Assert.assertNotNull("Cached buffer is null", buffer);
+            byte[] cachedBytes = new byte[buffer.remaining()];
+            buffer.get(cachedBytes);
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(cachedBytes));
+            Assert.assertEquals("Content is not revalidated:", 1, NOT_MODIFIED_RESPONSES.get());
+            manager.close();
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(cache)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(cache);
+        }
+    }
+
+    @Test
+    public void coalescingTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createCoalescingDownloadManager();
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT).build();
+        DownloadResponse first = manager.download(request);
+        DownloadResponse second = manager.download(request);
+        DownloadResponse third = manager.download(request);
+
+        // Cancelling one of the callers does not affect the others
+        third.cancel();
+        Assert.assertEquals("Handle is not cancelled:", DownloadResponse.Status.CANCELLED, third.getStatus());
+        Assert.assertNull("Cancelled handle has a result", third.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS));
+
+        byte[] firstBytes = first.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        byte[] secondBytes = second.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertNotNull("Downloaded byte[] is null", firstBytes);
+        Assert.assertNotNull("Downloaded byte[] is null", secondBytes);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(firstBytes));
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(secondBytes));
+        Assert.assertEquals("Download is not shared:", 1, CLIENT_PORTS.size());
+    }
+
+    @Test
+    public void batchTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        List<DownloadRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            requests.add(new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + "/batch/" + i).build());
+        }
+        DownloadBatch batch = manager.downloadAll(requests, 2);
+
+        int completed = 0;
+        DownloadResponse result;
+        while ((result = batch.takeCompleted()) != null) {
+            Assert.assertTrue("Too many downloads in flight:", batch.getSubmitted() - batch.getCompleted() <= 2);
+            Assert.assertEquals("Download is not finished:", DownloadResponse.Status.FINISHED, result.getStatus());
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(result.getResult()));
+            completed++;
+        }
+        Assert.assertTrue("Batch is not done:", batch.isDone());
+        Assert.assertEquals("Not all downloads completed:", requests.size(), completed);
+        Assert.assertEquals("Wrong progress:", requests.size() * RESPONSE_CONTENT.length(), batch.getBytesDownloaded());
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        StandardDownloadMetrics metrics = new StandardDownloadMetrics();
+        ObjectName name = metrics.register("metricsTest");
+        try {
+            DownloadManager manager = DownloadManager.Factory.createInstrumentedDownloadManager(metrics);
+            DownloadResponse result = manager.download(
+                    new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SIZED_PATH).build());
+            Assert.assertNotNull("Downloaded byte[] is null", result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS));
+            // Nothing listens on the port
+            DownloadResponse failed = manager.download(new DownloadRequest.Builder("http://localhost:1").build());
+            Assert.assertNull("Download has not failed", failed.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS));
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Assert.assertEquals("Wrong bytes downloaded:",
+                    (long) RESPONSE_CONTENT.length(), server.getAttribute(name, "BytesDownloaded"));
+            Assert.assertEquals("Wrong finished downloads:", 1L, server.getAttribute(name, "FinishedDownloads"));
+            Assert.assertEquals("Wrong failed downloads:", 1L, server.getAttribute(name, "FailedDownloads"));
+            CompositeData timeToFirstByte = (CompositeData) server.getAttribute(name, "TimeToFirstByte");
+            Assert.assertEquals("Wrong time to first byte count:", 1L, timeToFirstByte.get("count"));
+            CompositeData totalTime = (CompositeData) server.getAttribute(name, "TotalTime");
+            Assert.assertTrue("Wrong total time:", (Long) totalTime.get("max") >= (Long) timeToFirstByte.get("max"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+    /*
+        Checks the downloads are kept within the rate limits, which could be changed while downloading
+     */
+    @Test
+    public void throttledDownloadTest() throws Exception {
+        String url = "http://localhost:" + SERVER_PORT + SIZED_PATH;
+        // 500 bytes at 250 bytes per second
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        manager.setMaxBytesPerSecondPerHost("LOCALHOST", 250);
+        long started = System.nanoTime();
+        DownloadResponse result = manager.download(new DownloadRequest.Builder(url).build());
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertTrue("Host rate limit exceeded", System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(1500));
+
+        DownloadManager nioManager = DownloadManager.Factory.createNioDownloadManager(1);
+        nioManager.setMaxBytesPerSecond(250);
+        started = System.nanoTime();
+        result = nioManager.download(new DownloadRequest.Builder(url).build());
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertTrue("Rate limit exceeded", System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(1500));
+        nioManager.close();
+
+        // Would take 10 seconds unless the limit is lifted
+        manager.setMaxBytesPerSecondPerHost("localhost", 0);
+        result = manager.download(new DownloadRequest.Builder(url).setMaxBytesPerSecond(50).build());
+        Thread.sleep(500);
+        result.setMaxBytesPerSecond(0);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+    }
+
+    /*
+        Checks the transient failures are retried, continuing from the already downloaded bytes
+     */
+    @Test
+    public void retryDownloadTest() throws Exception {
+        RetryPolicy policy = new RetryPolicy.Builder().setMaxAttempts(3).setInitialBackoff(10).build();
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + FLAKY_PATH)
+                .setRetryPolicy(policy)
+                .build();
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        DownloadResponse result = manager.download(request);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertEquals("Wrong number of attempts:", 3, FLAKY_REQUESTS.get());
+        Assert.assertEquals("Not continued from the downloaded bytes:", "bytes=250-", FLAKY_RANGES.get(2));
+
+        FLAKY_REQUESTS.set(0);
+        FLAKY_RANGES.clear();
+        DownloadManager nioManager = DownloadManager.Factory.createNioDownloadManager(1);
+        result = nioManager.download(request);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertEquals("Not continued from the downloaded bytes:", "bytes=250-", FLAKY_RANGES.get(2));
+        nioManager.close();
+
+        // Not retried by default
+        FLAKY_REQUESTS.set(0);
+        result = manager.download(new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + FLAKY_PATH).build());
+        result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertEquals("Download has not failed", DownloadResponse.Status.FAILED, result.getStatus());
+        Assert.assertEquals("Wrong number of attempts:", 1, FLAKY_REQUESTS.get());
+    }
+
+    /*
+        Checks the content is verified against the expected digest while downloading
+     */
+    @Test
+    public void digestTest() throws Exception {
+        StringBuilder sha256 = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(RESPONSE_CONTENT.getBytes("UTF-8"))) {
+            sha256.append(String.format("%02X", b));
+        }
+        ContentDigest digest = new ContentDigest(ContentDigest.Algorithm.SHA_256, sha256.toString());
+        String url = "http://localhost:" + SERVER_PORT + SIZED_PATH;
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+
+        // Continued with a ranged request
+        DownloadResponse result = manager.download(new DownloadRequest.Builder(url).setExpectedDigest(digest).build());
+        Thread.sleep(100);
+        result.pause();
+        Thread.sleep(100);
+        result.resume();
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertEquals("Not verified:", DownloadResponse.Status.FINISHED, result.getStatus());
+
+        result = manager.download(new DownloadRequest.Builder(url).setExpectedDigest(digest).setSegments(4).build());
+        result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertEquals("Segments not verified:", DownloadResponse.Status.FINISHED, result.getStatus());
+
+        DownloadManager nioManager = DownloadManager.Factory.createNioDownloadManager(1);
+        result = nioManager.download(new DownloadRequest.Builder(url).setExpectedDigest(digest).build());
+        result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertEquals("Not verified:", DownloadResponse.Status.FINISHED, result.getStatus());
+        nioManager.close();
+
+        ContentDigest wrong = new ContentDigest(ContentDigest.Algorithm.MD5, "00000000000000000000000000000000");
+        result = manager.download(new DownloadRequest.Builder(url).setExpectedDigest(wrong).build());
+        result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertEquals("Mismatch not detected:", DownloadResponse.Status.FAILED, result.getStatus());
+    }
+
+    /*
+        Checks the compressed content is decoded while downloading and continued on the compressed bytes
+     */
+    @Test
+    public void compressionTest() throws Exception {
+        String url = "http://localhost:" + SERVER_PORT + GZIP_PATH;
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+
+        DownloadResponse result = manager.download(new DownloadRequest.Builder(url)
+                .setCompression(DownloadRequest.Compression.DECODED)
+                .build());
+        // Paused in the middle of the compressed content
+        while (result.getBytesReceived() == 0) {
+            Thread.sleep(5);
+        }
+        result.pause();
+        Thread.sleep(100);
+        result.resume();
+        Assert.assertEquals("Download error:", COMPRESSIBLE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertTrue("Not continued from the compressed bytes:",
+                GZIP_RANGES.get(GZIP_RANGES.size() - 1).startsWith("bytes="));
+        Assert.assertEquals("Wrong content length:", GZIP_CONTENT.length, result.getContentLength());
+        Assert.assertEquals("Wrong bytes received:", GZIP_CONTENT.length, result.getBytesReceived());
+        Assert.assertEquals("Wrong progress:", COMPRESSIBLE_CONTENT.length(), result.getBytesDownloaded());
+
+        result = manager.download(new DownloadRequest.Builder(url)
+                .setCompression(DownloadRequest.Compression.ENCODED)
+                .build());
+        Assert.assertTrue("Not kept compressed:",
+                Arrays.equals(GZIP_CONTENT, result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+
+        result = manager.download(new DownloadRequest.Builder(url).build());
+        Assert.assertEquals("Compressed without asking:", COMPRESSIBLE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+
+        DownloadManager nioManager = DownloadManager.Factory.createNioDownloadManager(1);
+        result = nioManager.download(new DownloadRequest.Builder(url)
+                .setCompression(DownloadRequest.Compression.DECODED)
+                .build());
+        Assert.assertEquals("Download error:", COMPRESSIBLE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertEquals("Wrong bytes received:", GZIP_CONTENT.length, result.getBytesReceived());
+        nioManager.close();
+    }
+
+    /*
+        Checks the https downloads use the TLS context of the manager and resume the TLS session on reconnects
+     */
+    @Test
+    public void httpsTest() throws Exception {
+        KeyStore trusted = KeyStore.getInstance("JKS");
+        try (InputStream keyStore = IntegrationTest.class.getResourceAsStream(KEY_STORE)) {
+            trusted.load(keyStore, KEY_STORE_PASSWORD.toCharArray());
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trusted);
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(null, trustManagers.getTrustManagers(), null);
+
+        String url = "https://localhost:" + HTTPS_SERVER_PORT + SIZED_PATH;
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        manager.setSSLContext(sslContext);
+        DownloadResponse result = manager.download(new DownloadRequest.Builder(url).build());
+        // Paused in the middle of the content to reconnect on resume
+        while (result.getBytesDownloaded() == 0) {
+            Thread.sleep(5);
+        }
+        result.pause();
+        Thread.sleep(100);
+        result.resume();
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertEquals("Not reconnected:", 2, CLIENT_PORTS.size());
+        Assert.assertEquals("TLS session not resumed:", 1,
+                Collections.list(sslContext.getClientSessionContext().getIds()).size());
+
+        // The self-signed certificate is not trusted by default
+        result = DownloadManager.Factory.createDefaultDownloadManager().download(new DownloadRequest.Builder(url).build());
+        result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertEquals("Untrusted certificate accepted:", DownloadResponse.Status.FAILED, result.getStatus());
+    }
+
+    /*
+        Checks the local files are downloaded by the built-in provider and served as mirrors
+     */
+    @Test
+    public void localFileTest() throws Exception {
+        Path source = Files.createTempFile("downloader", ".src");
+        Files.write(source, COMPRESSIBLE_CONTENT.getBytes(StandardCharsets.UTF_8));
+        Path destination = Files.createTempFile("downloader", ".tmp");
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+
+        DownloadResponse result = manager.download(new DownloadRequest.Builder(source.toUri().toURL()).build());
+        Assert.assertEquals("Mapped download error:", COMPRESSIBLE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertEquals("Wrong progress:", COMPRESSIBLE_CONTENT.length(), result.getBytesDownloaded());
+
+        result = manager.download(new DownloadRequest.Builder(source.toUri().toURL())
+                .setDestination(destination)
+                .setMaxBytesPerSecond(2000)
+                .build());
+        while (result.getBytesDownloaded() == 0) {
+            Thread.sleep(5);
+        }
+        result.pause();
+        Thread.sleep(50);
+        result.resume();
+        result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertEquals("Copied download error:", COMPRESSIBLE_CONTENT,
+                new String(Files.readAllBytes(destination), StandardCharsets.UTF_8));
+
+        // The mirrored content is not downloaded from the server
+        Path mirror = Files.createTempDirectory("downloader-mirror");
+        Files.createDirectories(mirror.resolve("localhost"));
+        Files.copy(source, mirror.resolve("localhost").resolve(SIZED_PATH.substring(1)));
+        manager.setMirrorResolver(new LocalMirror(mirror));
+        result = manager.download(new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SIZED_PATH).build());
+        Assert.assertEquals("Mirror not used:", COMPRESSIBLE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+        Assert.assertTrue("Downloaded from the server:", CLIENT_PORTS.isEmpty());
+
+        result = manager.download(new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + CACHED_PATH).build());
+        Assert.assertEquals("Not mirrored content error:", RESPONSE_CONTENT,
+                new String(result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void resultViewsTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SIZED_PATH).build();
+        DownloadResponse result = manager.download(request);
+
+        ByteBuffer buffer = result.getResultBuffer();
+        Assert.assertNotNull("Downloaded buffer is null", buffer);
+        Assert.assertTrue("Downloaded buffer is writable", buffer.isReadOnly());
+        byte[] bufferBytes = new byte[buffer.remaining()];
+        buffer.get(bufferBytes);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(bufferBytes));
+
+        ByteArrayOutputStream streamBytes = new ByteArrayOutputStream();
+        try (InputStream stream = result.getResultStream()) {
+            byte[] tmpBuf = new byte[64];
+            int len;
+            while ((len = stream.read(tmpBuf)) != -1) {
+                streamBytes.write(tmpBuf, 0, len);
+            }
+        }
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(streamBytes.toByteArray()));
+    }
+
+    @Test
+    public void contentStreamTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT).build();
+        DownloadResponse result = manager.download(request);
+
+        ByteArrayOutputStream streamBytes = new ByteArrayOutputStream();
+        try (InputStream stream = result.getContentStream()) {
+            int first = stream.read();
+            Assert.assertEquals("Content is not streamed:", DownloadResponse.Status.IN_PROGRESS, result.getStatus());
+            streamBytes.write(first);
+            byte[] tmpBuf = new byte[64];
+            int len;
+            while ((len = stream.read(tmpBuf)) != -1) {
+                streamBytes.write(tmpBuf, 0, len);
+            }
+        }
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(streamBytes.toByteArray()));
+    }
+
+    @Test
+    public void completionTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT).build();
+        DownloadResponse result = manager.download(request);
+
+        final List<DownloadResponse.Status> statuses = new CopyOnWriteArrayList<>();
+        result.addStatusListener(new DownloadResponse.StatusListener() {
+            @Override
+            public void statusChanged(DownloadResponse response, DownloadResponse.Status oldStatus, DownloadResponse.Status newStatus) {
+                statuses.add(newStatus);
+            }
+        });
+        CompletableFuture<byte[]> future = result.getResultFuture();
+
+        byte[] resultBytes = future.get(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
+        Assert.assertEquals("Missing transition:", DownloadResponse.Status.FINISHED, statuses.get(statuses.size() - 1));
+        Assert.assertSame("Future is not reused:", future, result.getResultFuture());
+    }
+
+    @Test
+    public void segmentedDownloadTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SIZED_PATH)
+                .setSegments(4)
+                .build();
+        DownloadResponse result = manager.download(request);
+
+        while (result.getStatus() != DownloadResponse.Status.FINISHED) {
+            try {
+                result.pause();
+            } catch (IllegalStateException e) {
+                //IGNORE... already finished probably
+            }
+            try {
+                result.resume();
+            } catch (IllegalStateException e) {
+                //IGNORE... already finished probably
+            }
+        }
+        byte[] resultBytes = result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
+    }
+
+    @Test
+    public void boundedDownloadTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createBoundedDownloadManager(1, 1);
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT).build();
+        DownloadResponse first = manager.download(request);
+        DownloadResponse second = manager.download(request);
+
+        int waitCount = 0;
+        while (first.getStatus() == DownloadResponse.Status.NOT_STARTED) {
+            Thread.sleep(10);
+            waitCount++;
+            if (waitCount > 20) {
+                throw new RuntimeException("Failed. Test does no start");
+            }
+        }
+        Assert.assertEquals("Queued download has started:", DownloadResponse.Status.NOT_STARTED, second.getStatus());
+
+        // Pausing the running download lets the queued one start
+        first.pause();
+        waitCount = 0;
+        while (second.getStatus() == DownloadResponse.Status.NOT_STARTED) {
+            Thread.sleep(10);
+            waitCount++;
+            if (waitCount > 50) {
+                throw new RuntimeException("Failed. Queued download does no start");
+            }
+        }
+        first.resume();
+
+        byte[] firstBytes = first.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        byte[] secondBytes = second.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertNotNull("Downloaded byte[] is null", firstBytes);
+        Assert.assertNotNull("Downloaded byte[] is null", secondBytes);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(firstBytes));
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(secondBytes));
+    }
+
+    @Test
+    public void boundedPauseResumeQueuedTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createBoundedDownloadManager(1, 1);
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SIZED_PATH).build();
+        DownloadResponse first = manager.download(request);
+        DownloadResponse second = manager.download(request);
+
+        int waitCount = 0;
+        while (first.getStatus() == DownloadResponse.Status.NOT_STARTED) {
+            Thread.sleep(10);
+            waitCount++;
+            if (waitCount > 20) {
+                throw new RuntimeException("Failed. Test does no start");
+            }
+        }
+
+        // The queued download is not started by the resume, it waits for a slot
+        second.pause();
+        Assert.assertEquals("Queued download is not paused:", DownloadResponse.Status.PAUSED, second.getStatus());
+        second.resume();
+        Assert.assertEquals("Queued download has started:", DownloadResponse.Status.NOT_STARTED, second.getStatus());
+
+        byte[] firstBytes = first.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        byte[] secondBytes = second.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertNotNull("Downloaded byte[] is null", firstBytes);
+        Assert.assertNotNull("Downloaded byte[] is null", secondBytes);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(firstBytes));
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(secondBytes));
+    }
+
+    @Test
+    public void virtualThreadDownloadTest() throws Exception {
+        DownloadManager manager;
+        try {
+            manager = DownloadManager.Factory.createVirtualThreadDownloadManager();
+        } catch (UnsupportedOperationException e) {
+            // Skipped before Java 21
+            Assume.assumeNoException(e);
+            return;
+        }
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SIZED_PATH).build();
+        List<DownloadResponse> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            results.add(manager.download(request));
+        }
+        for (DownloadResponse result : results) {
+            byte[] resultBytes = result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+            Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
+        }
+        manager.close();
+    }
+
+    @Test
+    public void nioDownloadTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createNioDownloadManager(1);
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT).build();
+        DownloadResponse result = manager.download(request);
+        byte[] resultBytes = result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
+        manager.close();
+    }
+
+    @Test
+    public void nioPauseResumeWigglingTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createNioDownloadManager(1);
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SIZED_PATH).build();
+        DownloadResponse result = manager.download(request);
+
+        while (result.getStatus() != DownloadResponse.Status.FINISHED) {
+            try {
+                result.pause();
+            } catch (IllegalStateException e) {
+                //IGNORE... already finished probably
+            }
+            try {
+                result.resume();
+            } catch (IllegalStateException e) {
+                //IGNORE... already finished probably
+            }
+        }
+        byte[] resultBytes = result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+        Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
+        manager.close();
+    }
+
+    @Test
+    public void keepAliveTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        String[] urls = {
+                "http://localhost:" + SERVER_PORT + SIZED_PATH,
+                "http://localhost:" + SERVER_PORT,
+                "http://localhost:" + SERVER_PORT + SIZED_PATH
+        };
+        for (String url : urls) {
+            DownloadResponse result = manager.download(new DownloadRequest.Builder(url).build());
+            byte[] resultBytes = result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+            Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
+        }
+        Assert.assertEquals("Connection was not reused:", 1, CLIENT_PORTS.size());
+        manager.close();
+    }
+
+    @Test
+    public void nioKeepAliveTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createNioDownloadManager(1);
+        String[] urls = {
+                "http://localhost:" + SERVER_PORT + SIZED_PATH,
+                "http://localhost:" + SERVER_PORT,
+                "http://localhost:" + SERVER_PORT + SIZED_PATH
+        };
+        for (String url : urls) {
+            DownloadResponse result = manager.download(new DownloadRequest.Builder(url).build());
+            byte[] resultBytes = result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+            Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+            Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
+        }
+        Assert.assertEquals("Connection was not reused:", 1, CLIENT_PORTS.size());
+        manager.close();
+    }
+
+    @Test
+    public void progressTest() throws Exception {
+        DownloadManager manager = DownloadManager.Factory.createDefaultDownloadManager();
+        DownloadRequest request = new DownloadRequest.Builder("http://localhost:" + SERVER_PORT + SIZED_PATH).build();
+        DownloadResponse result = manager.download(request);
+        long downloaded = 0;
+        while (result.getStatus() != DownloadResponse.Status.FINISHED) {
+            Assert.assertTrue("Progress went back:", result.getBytesDownloaded() >= downloaded);
+            downloaded = result.getBytesDownloaded();
+            Thread.sleep(5);
+        }
+        byte[] resultBytes = result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+        Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+        Assert.assertEquals("Wrong content length:", resultBytes.length, result.getContentLength());
+        Assert.assertEquals("Wrong progress:", resultBytes.length, result.getBytesDownloaded());
+    }
+
+    @Test
+    public void http2Test() throws Exception {
+        try (Http2TestServer h2Server = new Http2TestServer(HTTP2_SERVER_PORT)) {
+            DownloadManager manager = DownloadManager.Factory.createHttp2DownloadManager();
+            String baseUrl = "http://localhost:" + HTTP2_SERVER_PORT;
+
+            // Many small downloads share a single connection, more of them than the streams allowed at once
+            List<DownloadResponse> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                results.add(manager.download(new DownloadRequest.Builder(baseUrl + "/small/" + i).build()));
+            }
+            for (DownloadResponse result : results) {
+                byte[] resultBytes = result.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+                Assert.assertNotNull("Downloaded byte[] is null", resultBytes);
+                Assert.assertEquals("Download error:", RESPONSE_CONTENT, new String(resultBytes));
+            }
+            Assert.assertEquals("Connection was not shared:", 1, h2Server.getConnectionCount());
+
+            // A paused download stalls once its stream window is exhausted and continues on the same stream
+            DownloadResponse large = manager.download(new DownloadRequest.Builder(baseUrl + HTTP2_LARGE_PATH).build());
+            while (large.getBytesDownloaded() == 0) {
+                Thread.sleep(5);
+            }
+            large.pause();
+            Thread.sleep(500);
+            long stalled = large.getBytesDownloaded();
+            Thread.sleep(300);
+            Assert.assertEquals("Paused download went on:", stalled, large.getBytesDownloaded());
+            Assert.assertTrue("Paused download finished:", stalled < HTTP2_LARGE_CONTENT.length);
+            large.resume();
+            byte[] largeBytes = large.getResult(RESPONSE_WAIT_TIME, TimeUnit.SECONDS);
+            Assert.assertTrue("Download error:", Arrays.equals(HTTP2_LARGE_CONTENT, largeBytes));
+            Assert.assertEquals("Connection was not shared:", 1, h2Server.getConnectionCount());
+
+            // A cancelled download resets its stream
+            DownloadResponse cancelled = manager.download(new DownloadRequest.Builder(baseUrl + HTTP2_LARGE_PATH).build());
+            while (cancelled.getBytesDownloaded() == 0) {
+                Thread.sleep(5);
+            }
+            cancelled.cancel();
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RESPONSE_WAIT_TIME);
+            while (h2Server.getResetStreams().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals("Stream was not reset:", 1, h2Server.getResetStreams().size());
+            Assert.assertEquals("Connection was not shared:", 1, h2Server.getConnectionCount());
+            manager.close();
+        }
+    }
+
     private static class TestHandler extends AbstractHandler {
 
         @Override
         public void handle(String s, Request request, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws IOException, ServletException {
+            CLIENT_PORTS.add(httpServletRequest.getRemotePort());
+            if (CACHED_PATH.equals(s)) {
+                httpServletResponse.setHeader("ETag", CONTENT_ETAG);
+                if (CONTENT_ETAG.equals(httpServletRequest.getHeader("If-None-Match"))) {
+                    NOT_MODIFIED_RESPONSES.incrementAndGet();
+                    httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    request.setHandled(true);
+                    return;
+                }
+            }
+            if (FLAKY_PATH.equals(s)) {
+                int attempt = FLAKY_REQUESTS.incrementAndGet();
+                FLAKY_RANGES.add(String.valueOf(httpServletRequest.getHeader("Range")));
+                if (attempt == 1) {
+                    httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    request.setHandled(true);
+                    return;
+                }
+                if (attempt == 2) {
+                    // Drops the connection in the middle of the content
+                    byte[] bytesToServe = RESPONSE_CONTENT.getBytes("UTF-8");
+                    httpServletResponse.setContentLength(bytesToServe.length);
+                    httpServletResponse.setHeader("Accept-Ranges", "bytes");
+                    OutputStream outputStream = httpServletResponse.getOutputStream();
+                    outputStream.write(bytesToServe, 0, bytesToServe.length / 2);
+                    outputStream.flush();
+                    request.getConnection().getEndPoint().close();
+                    request.setHandled(true);
+                    return;
+                }
+                s = SIZED_PATH;
+            }
+            if (SLOW_START_PATH.equals(s)) {
+                // Keeps the client connecting for a while
+                try {
+                    Thread.sleep(SLOW_START_DELAY);
+                } catch (InterruptedException e) {
+                    //IGNORE
+                }
+                s = SIZED_PATH;
+            }
+            byte[] bytesToServe = RESPONSE_CONTENT.getBytes("UTF-8");
+            if (GZIP_PATH.equals(s)) {
+                GZIP_RANGES.add(String.valueOf(httpServletRequest.getHeader("Range")));
+                String acceptEncoding = httpServletRequest.getHeader("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    bytesToServe = GZIP_CONTENT;
+                    httpServletResponse.setHeader("Content-Encoding", "gzip");
+                } else {
+                    bytesToServe = COMPRESSIBLE_CONTENT.getBytes("UTF-8");
+                }
+                s = SIZED_PATH;
+            }
             try {
                 //Make a little delay before answering to let us test a pause/resume functionality
-                byte[] bytesToServe = RESPONSE_CONTENT.getBytes("UTF-8");
                 int start = 0;
+                int end = bytesToServe.length;
                 String rangeHeader = httpServletRequest.getHeader("Range");
                 if (rangeHeader != null) {
-                    start = Integer.parseInt(rangeHeader.substring(6, rangeHeader.length() - 1));
+                    String[] range = rangeHeader.substring(6).split("-", -1);
+                    start = Integer.parseInt(range[0]);
+                    if (!range[1].isEmpty()) {
+                        end = Integer.parseInt(range[1]) + 1;
+                    }
+                    httpServletResponse.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    httpServletResponse.setHeader("Content-Range",
+                            "bytes " + start + "-" + (end - 1) + "/" + bytesToServe.length);
+                } else {
+                    httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+                }
+                if (SIZED_PATH.equals(s)) {
+                    httpServletResponse.setContentLength(end - start);
                 }
                 try (OutputStream outputStream = httpServletResponse.getOutputStream()) {
                     httpServletResponse.setContentType("text/html;charset=utf-8");
                     httpServletResponse.setHeader("Accept-Ranges", "bytes");
-                    httpServletResponse.setStatus(HttpServletResponse.SC_OK);
-                    while (start < bytesToServe.length) {
-                        outputStream.write(bytesToServe, start, Math.min(bytesToServe.length - start, 50));
+                    while (start < end) {
+                        outputStream.write(bytesToServe, start, Math.min(end - start, 50));
                         start += 50;
                         Thread.sleep(20);
                         outputStream.flush();
@@ -146,4 +1117,302 @@ public class IntegrationTest {
         }
     }
 
+    /**
+     * A minimal cleartext HTTP/2 server answering every stream with the test content,
+     * or with the large content on the large path, while respecting the flow control windows
+     */
+    private static class Http2TestServer implements Closeable {
+
+        private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        private static final int FRAME_SIZE = 16384;
+        private static final int MAX_CONCURRENT_STREAMS = 8;
+
+        private final ServerSocket serverSocket;
+        private final AtomicInteger connectionCount = new AtomicInteger();
+        private final List<Integer> resetStreams = new CopyOnWriteArrayList<>();
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        Http2TestServer(int port) throws IOException {
+            serverSocket = new ServerSocket(port);
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket socket = serverSocket.accept();
+                            connectionCount.incrementAndGet();
+                            sockets.add(socket);
+                            Thread reader = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        new Connection(socket).serve();
+                                    } catch (IOException | InterruptedException e) {
+                                        //IGNORE... the connection is closed
+                                    }
+                                }
+                            });
+                            reader.setDaemon(true);
+                            reader.start();
+                        }
+                    } catch (IOException e) {
+                        //IGNORE... the server is closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getConnectionCount() {
+            return connectionCount.get();
+        }
+
+        List<Integer> getResetStreams() {
+            return resetStreams;
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+
+        private class Connection {
+
+            private final Socket socket;
+            private final DataInputStream in;
+            private final OutputStream out;
+            // Guarded by the connection
+            private final Map<Integer, int[]> streamWindows = new HashMap<>();
+            private final Set<Integer> cancelledStreams = new HashSet<>();
+            private int connectionWindow = 65535;
+            private int initialWindow = 65535;
+            private boolean isClosed = false;
+            private boolean isAcceptRangesIndexed = false;
+
+            Connection(Socket socket) throws IOException {
+                this.socket = socket;
+                this.in = new DataInputStream(socket.getInputStream());
+                this.out = socket.getOutputStream();
+            }
+
+            void serve() throws IOException, InterruptedException {
+                byte[] preface = new byte[PREFACE.length];
+                in.readFully(preface);
+                if (!Arrays.equals(PREFACE, preface)) {
+                    socket.close();
+                    return;
+                }
+                ByteBuffer settings = ByteBuffer.allocate(6);
+                settings.putShort((short) 0x3).putInt(MAX_CONCURRENT_STREAMS);
+                writeFrame(0x4, 0, 0, settings.array());
+                try {
+                    while (true) {
+                        int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+                        int type = in.readUnsignedByte();
+                        int flags = in.readUnsignedByte();
+                        int streamId = in.readInt() & 0x7fffffff;
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        onFrame(type, flags, streamId, ByteBuffer.wrap(payload));
+                    }
+                } finally {
+                    synchronized (this) {
+                        isClosed = true;
+                        notifyAll();
+                    }
+                    socket.close();
+                }
+            }
+
+            private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+                switch (type) {
+                    case 0x1:
+                        // The request fits a single HEADERS frame without padding or priority
+                        final String path = readPath(payload);
+                        final int id = streamId;
+                        synchronized (this) {
+                            streamWindows.put(id, new int[] {initialWindow});
+                        }
+                        Thread responder = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    respond(id, path);
+                                } catch (IOException | InterruptedException e) {
+                                    //IGNORE... the connection is closed
+                                }
+                            }
+                        });
+                        responder.setDaemon(true);
+                        responder.start();
+                        break;
+                    case 0x3:
+                        resetStreams.add(streamId);
+                        synchronized (this) {
+                            cancelledStreams.add(streamId);
+                            notifyAll();
+                        }
+                        break;
+                    case 0x4:
+                        if ((flags & 0x1) != 0) {
+                            break;
+                        }
+                        synchronized (this) {
+                            while (payload.hasRemaining()) {
+                                int setting = payload.getShort() & 0xffff;
+                                int value = payload.getInt();
+                                if (setting == 0x4) {
+                                    for (int[] window : streamWindows.values()) {
+                                        window[0] += value - initialWindow;
+                                    }
+                                    initialWindow = value;
+                                }
+                            }
+                            notifyAll();
+                        }
+                        writeFrame(0x4, 0x1, 0, new byte[0]);
+                        break;
+                    case 0x6:
+                        if ((flags & 0x1) == 0) {
+                            writeFrame(0x6, 0x1, 0, payload.array());
+                        }
+                        break;
+                    case 0x7:
+                        socket.close();
+                        break;
+                    case 0x8:
+                        int increment = payload.getInt() & 0x7fffffff;
+                        synchronized (this) {
+                            if (streamId == 0) {
+                                connectionWindow += increment;
+                            } else if (streamWindows.containsKey(streamId)) {
+                                streamWindows.get(streamId)[0] += increment;
+                            }
+                            notifyAll();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            private void respond(int streamId, String path) throws IOException, InterruptedException {
+                boolean isLarge = HTTP2_LARGE_PATH.equals(path);
+                byte[] content = isLarge ? HTTP2_LARGE_CONTENT : RESPONSE_CONTENT.getBytes(StandardCharsets.UTF_8);
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                // :status 200 from the static table
+                block.write(0x88);
+                // content-length as a literal without indexing, its name from the static table
+                block.write(0x0f);
+                block.write(28 - 15);
+                writeString(block, String.valueOf(content.length));
+                synchronized (this) {
+                    if (isAcceptRangesIndexed) {
+                        // The first entry of the dynamic table
+                        block.write(0x80 | 62);
+                    } else {
+                        // accept-ranges as a literal added to the dynamic table
+                        block.write(0x40 | 18);
+                        writeString(block, "bytes");
+                        isAcceptRangesIndexed = true;
+                    }
+                    // Written under the lock to keep the dynamic tables in the same order
+                    writeFrame(0x1, 0x4, streamId, block.toByteArray());
+                }
+                int position = 0;
+                while (position < content.length) {
+                    int length;
+                    synchronized (this) {
+                        int[] window = streamWindows.get(streamId);
+                        while (!isClosed && !cancelledStreams.contains(streamId)
+                                && (connectionWindow <= 0 || window[0] <= 0)) {
+                            wait();
+                        }
+                        if (isClosed || cancelledStreams.contains(streamId)) {
+                            return;
+                        }
+                        length = Math.min(Math.min(connectionWindow, window[0]),
+                                Math.min(FRAME_SIZE, content.length - position));
+                        connectionWindow -= length;
+                        window[0] -= length;
+                    }
+                    boolean isLast = position + length == content.length;
+                    writeFrame(0x0, isLast ? 0x1 : 0x0, streamId, Arrays.copyOfRange(content, position, position + length));
+                    position += length;
+                    if (isLarge) {
+                        Thread.sleep(5);
+                    }
+                }
+            }
+
+            private String readPath(ByteBuffer block) throws IOException {
+                // The client sends the static entries and the literals without the Huffman code
+                String path = null;
+                while (block.hasRemaining()) {
+                    int b = block.get(block.position()) & 0xff;
+                    if ((b & 0x80) != 0) {
+                        readInteger(block, 7);
+                        continue;
+                    }
+                    int nameIndex = readInteger(block, (b & 0x40) != 0 ? 6 : 4);
+                    if (nameIndex == 0) {
+                        readString(block);
+                    }
+                    String value = readString(block);
+                    if (nameIndex == 4) {
+                        path = value;
+                    }
+                }
+                if (path == null) {
+                    throw new IOException("No path in the request");
+                }
+                return path;
+            }
+
+            private synchronized void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+                ByteBuffer header = ByteBuffer.allocate(9);
+                header.put((byte) (payload.length >>> 16)).putShort((short) payload.length)
+                        .put((byte) type).put((byte) flags).putInt(streamId);
+                out.write(header.array());
+                out.write(payload);
+                out.flush();
+            }
+        }
+
+        private static int readInteger(ByteBuffer in, int prefixBits) {
+            int max = (1 << prefixBits) - 1;
+            int value = in.get() & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            int b;
+            do {
+                b = in.get() & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private static String readString(ByteBuffer in) throws IOException {
+            if ((in.get(in.position()) & 0x80) != 0) {
+                throw new IOException("Huffman code is not expected");
+            }
+            byte[] value = new byte[readInteger(in, 7)];
+            in.get(value);
+            return new String(value, StandardCharsets.ISO_8859_1);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
 }